@@ -18,11 +18,13 @@ package org.bonej;
  *along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Random;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -41,9 +43,11 @@ import ij.measure.Calibration;
 //import ij.measure.ResultsTable;
 import ij3d.Image3DUniverse;
 
+import org.bonej.io.EllipsoidCheckpoint;
 import org.doube.geometry.Trig;
 import org.doube.geometry.Vectors;
 import org.doube.geometry.Ellipsoid;
+import org.doube.geometry.EllipsoidGrid;
 import org.doube.skeleton.Skeletonize3D;
 import org.doube.util.ArrayHelper;
 import org.doube.util.ImageCheck;
@@ -100,11 +104,25 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * diagonal length
 	 */
 	private double maxDrift = Math.sqrt(3);
+
+	/**
+	 * Seed of the random number generators used in optimisation. Each skeleton
+	 * point gets its own generator, seeded from this value and the point's
+	 * index, so that results are the same for any number of threads.
+	 */
+	private long randomSeed = 0;
+
+	/** File to save finished ellipsoids to and resume from; empty for none */
+	private String checkpointPath = "";
+
+	/** Minimum time between checkpoint saves, in seconds */
+	private double checkpointInterval = 300;
 	// private ResultsTable rt;
 	private Image3DUniverse universe;
 
 	private double stackVolume;
 
+	/** regular unit vectors, as arrays of x, y and z components */
 	private double[][] regularVectors;
 
 	public void run(String arg) {
@@ -138,6 +156,12 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		gd.addNumericField("Contact sensitivity", contactSensitivity, 0, 4, "");
 		gd.addNumericField("Maximum_iterations", maxIterations, 0);
 		gd.addNumericField("Maximum_drift", maxDrift, 5, 8, units);
+		gd.addNumericField("Random_seed", randomSeed, 0);
+
+		gd.addMessage("\nCheckpoint options");
+		gd.addStringField("Checkpoint_file", checkpointPath, 24);
+		gd.addNumericField("Checkpoint_interval", checkpointInterval, 0, 6,
+				"s");
 
 		gd.addMessage("\nOutput options");
 		gd.addCheckbox("EF_image", true);
@@ -164,6 +188,9 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		contactSensitivity = (int) Math.round(gd.getNextNumber());
 		maxIterations = (int) Math.round(gd.getNextNumber());
 		maxDrift = gd.getNextNumber();
+		randomSeed = (long) gd.getNextNumber();
+		checkpointPath = gd.getNextString().trim();
+		checkpointInterval = gd.getNextNumber();
 
 		boolean doEFImage = gd.getNextBoolean();
 		boolean doEllipsoidIDImage = gd.getNextBoolean();
@@ -176,12 +203,29 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		// }
 
 		final double[][] unitVectors = Vectors.regularVectors(nVectors);
-		regularVectors = unitVectors.clone();
+		regularVectors = Ellipsoid.getRegularVectors(nVectors);
 
 		int[][] skeletonPoints = skeletonPoints(imp);
 
 		IJ.log("Found " + skeletonPoints.length + " skeleton points");
 
+		EllipsoidCheckpoint checkpoint = null;
+		if (checkpointPath.length() > 0) {
+			try {
+				checkpoint = new EllipsoidCheckpoint(new File(checkpointPath),
+						skeletonPoints.length, runKey(imp, skeletonPoints),
+						checkpointInterval);
+			} catch (IOException e) {
+				IJ.error("Ellipsoid Factor", "Could not resume from "
+						+ checkpointPath + ":\n" + e.getMessage());
+				return;
+			}
+			if (checkpoint.getNumberDone() > 0)
+				IJ.log("Resuming from checkpoint with "
+						+ checkpoint.getNumberDone()
+						+ " seed points already optimised");
+		}
+
 		if (IJ.debugMode) {
 			universe = new Image3DUniverse();
 			universe.show();
@@ -189,7 +233,7 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 
 		long start = System.currentTimeMillis();
 		Ellipsoid[] ellipsoids = findEllipsoids(imp, skeletonPoints,
-				unitVectors);
+				unitVectors, checkpoint);
 		long stop = System.currentTimeMillis();
 
 		IJ.log("Found " + ellipsoids.length + " ellipsoids in "
@@ -687,6 +731,10 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 
 		final int[][] biggest = new int[d + 1][w * h];
 
+		// ellipsoids are sorted by descending volume, so the first one found
+		// to contain a point is the biggest
+		final EllipsoidGrid grid = new EllipsoidGrid(ellipsoids);
+
 		final AtomicInteger ai = new AtomicInteger(1);
 		Thread[] threads = Multithreader.newThreads();
 		for (int thread = 0; thread < threads.length; thread++) {
@@ -701,55 +749,16 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 						Arrays.fill(bigSlice, -ellipsoids.length);
 						final double zvD = z * vD;
 
-						// find the subset of ellipsoids whose bounding box
-						// intersects with z
-						ArrayList<Ellipsoid> nearEllipsoids = new ArrayList<Ellipsoid>();
-						final int n = ellipsoids.length;
-						for (int i = 0; i < n; i++) {
-							Ellipsoid e = ellipsoids[i];
-							double[] zMinMax = e.getZMinAndMax();
-							if (zvD >= zMinMax[0] && zvD <= zMinMax[1]) {
-								Ellipsoid f = e.copy();
-								f.id = i;
-								nearEllipsoids.add(f);
-							}
-						}
-						final int o = nearEllipsoids.size();
-						Ellipsoid[] ellipsoidSubSet = new Ellipsoid[o];
-						for (int i = 0; i < o; i++) {
-							ellipsoidSubSet[i] = nearEllipsoids.get(i);
-						}
-
-						final int q = ellipsoidSubSet.length;
 						for (int y = 0; y < h; y++) {
 							final double yvH = y * vH;
-							// find the subset of ellipsoids whose bounding box
-							// intersects with y
-							ArrayList<Ellipsoid> yEllipsoids = new ArrayList<Ellipsoid>();
-							for (int i = 0; i < q; i++) {
-								Ellipsoid e = ellipsoidSubSet[i];
-								double[] yMinMax = e.getYMinAndMax();
-								if (yvH >= yMinMax[0] && yvH <= yMinMax[1]) {
-									yEllipsoids.add(e);
-								}
-							}
-
-							final int r = yEllipsoids.size();
-							Ellipsoid[] ellipsoidSubSubSet = new Ellipsoid[r];
-							for (int i = 0; i < r; i++) {
-								ellipsoidSubSubSet[i] = yEllipsoids.get(i);
-							}
-
 							final int offset = y * w;
 							for (int x = 0; x < w; x++) {
 								if (slicePixels[offset + x] == -1) {
-									bigSlice[offset + x] = biggestEllipsoid(
-											ellipsoidSubSubSet, x * vW, yvH,
-											zvD);
+									bigSlice[offset + x] = grid
+											.firstContaining(x * vW, yvH, zvD);
 								}
 							}
 						}
-
 					}
 				}
 			});
@@ -758,33 +767,6 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		return biggest;
 	}
 
-	/**
-	 * Search the list of ellipsoids and return the index of the largest
-	 * ellipsoid which contains the point x, y, z
-	 * 
-	 * @param ellipsoids
-	 *            sorted in order of descending size and with id set to the sort
-	 *            position of the whole set. This means that subsets may be
-	 *            searched in sorted order and the ID which is returned is the
-	 *            index of the ellipsoid in the full array of ellipsoids rather
-	 *            than its index in the subset. The advantage is much faster
-	 *            searching.
-	 * @param x
-	 * @param y
-	 * @param z
-	 * @return the index of the largest ellipsoid which contains this point, -1
-	 *         if none of the ellipsoids contain the point
-	 */
-	private int biggestEllipsoid(Ellipsoid[] ellipsoids, double x, double y,
-			double z) {
-		final int l = ellipsoids.length;
-		for (int i = 0; i < l; i++) {
-			if (ellipsoids[i].contains(x, y, z))
-				return ellipsoids[i].id;
-		}
-		return -1;
-	}
-
 	/**
 	 * Using skeleton points as seeds, propagate along each vector until a
 	 * boundary is hit. Use the resulting cloud of boundary points as input into
@@ -793,27 +775,89 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * @param imp
 	 * @param skeletonPoints
 	 * @param unitVectors
+	 * @param checkpoint
+	 *            checkpoint to take already optimised seed points from and to
+	 *            record new ones in, or null
 	 * @return
 	 */
 	private Ellipsoid[] findEllipsoids(final ImagePlus imp,
-			final int[][] skeletonPoints, final double[][] unitVectors) {
+			final int[][] skeletonPoints, final double[][] unitVectors,
+			final EllipsoidCheckpoint checkpoint) {
 		final int nPoints = skeletonPoints.length;
 		final Ellipsoid[] ellipsoids = new Ellipsoid[nPoints];
 
 		// make sure array contains null in the non-calculated elements
 		Arrays.fill(ellipsoids, null);
 
+		// cache slices into an array, once for all seeds; the optimisation
+		// only reads from it so it is shared by all threads
+		final ImageStack stack = imp.getImageStack();
+		final int d = stack.getSize();
+		final byte[][] pixels = new byte[d][];
+		for (int i = 0; i < d; i++)
+			pixels[i] = (byte[]) stack.getProcessor(i + 1).getPixels();
+
+		// seed points still to optimise; those in the checkpoint are done
+		int[] todo = new int[(nPoints + skipRatio - 1) / skipRatio];
+		int nTodo = 0;
+		for (int i = 0; i < nPoints; i += skipRatio) {
+			if (checkpoint != null && checkpoint.isDone(i))
+				ellipsoids[i] = checkpoint.get(i);
+			else
+				todo[nTodo++] = i;
+		}
+		final int[] seeds = Arrays.copyOf(todo, nTodo);
+		final int nSeeds = nTodo;
+
+		// estimate the cost of each seed point from the size of the sphere
+		// that fits there, and optimise the most costly ones first so that
+		// no thread is left with a long seed at the end. The number of
+		// steps is passed on so the sphere need not be grown again.
+		final int[] cost = new int[nSeeds];
 		final AtomicInteger ai = new AtomicInteger(0);
-		final AtomicInteger counter = new AtomicInteger(0);
 		Thread[] threads = Multithreader.newThreads();
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(new Runnable() {
 				public void run() {
-					for (int i = ai.getAndAdd(skipRatio); i < nPoints; i = ai
-							.getAndAdd(skipRatio)) {
-						ellipsoids[i] = optimiseEllipsoid(imp,
-								skeletonPoints[i], unitVectors, i);
-						IJ.showProgress(counter.getAndAdd(skipRatio), nPoints);
+					double[][] surface = new double[3][nVectors];
+					for (int j = ai.getAndIncrement(); j < nSeeds; j = ai
+							.getAndIncrement()) {
+						cost[j] = growSphere(
+								sphere(imp, skeletonPoints[seeds[j]]), imp,
+								pixels, surface);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		final Integer[] order = new Integer[nSeeds];
+		for (int j = 0; j < nSeeds; j++)
+			order[j] = j;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer o1, Integer o2) {
+				return cost[o2] - cost[o1];
+			}
+		});
+
+		ai.set(0);
+		final AtomicInteger counter = new AtomicInteger(0);
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					// work space reused by all of this thread's seeds
+					ArrayList<double[]> contactPoints = new ArrayList<double[]>();
+					double[][] surface = new double[3][nVectors];
+					for (int j = ai.getAndIncrement(); j < nSeeds; j = ai
+							.getAndIncrement()) {
+						final int i = seeds[order[j]];
+						ellipsoids[i] = optimiseEllipsoid(imp, pixels,
+								skeletonPoints[i], unitVectors, i,
+								contactPoints, surface, cost[order[j]],
+								random(i));
+						if (checkpoint != null)
+							record(checkpoint, i, ellipsoids[i]);
+						IJ.showProgress(counter.incrementAndGet(), nSeeds);
 						IJ.showStatus("Optimising ellipsoids...");
 					}
 				}
@@ -821,6 +865,15 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		}
 		Multithreader.startAndJoin(threads);
 
+		if (checkpoint != null && nSeeds > 0) {
+			try {
+				checkpoint.save();
+			} catch (IOException e) {
+				IJ.log("Could not save checkpoint to " + checkpointPath + ": "
+						+ e.getMessage());
+			}
+		}
+
 		Ellipsoid[] sortedEllipsoids = ArrayHelper.removeNulls(ellipsoids);
 
 		// Sort using this class' compare method
@@ -834,14 +887,30 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * structure
 	 * 
 	 * @param imp
+	 * @param pixels
+	 *            slices of imp, as returned by getPixels(); read only
 	 * @param is
 	 * @param unitVectors
+	 * @param contactPoints
+	 *            work list for the contact points, which is cleared before
+	 *            use
+	 * @param surface
+	 *            work arrays for the x, y and z coordinates of nVectors
+	 *            surface points
+	 * @param sphereSteps
+	 *            number of steps a sphere at the seed point takes to hit the
+	 *            background, as returned by growSphere
+	 * @param random
+	 *            random number generator of this seed point
 	 * @return ellipsoid fitting the point cloud of boundaries lying at the end
 	 *         of vectors surrounding the seed point. If ellipsoid fitting
 	 *         fails, returns null
 	 */
 	private Ellipsoid optimiseEllipsoid(final ImagePlus imp,
-			int[] skeletonPoint, double[][] unitVectors, final int index) {
+			final byte[][] pixels, int[] skeletonPoint,
+			double[][] unitVectors, final int index,
+			ArrayList<double[]> contactPoints, double[][] surface,
+			int sphereSteps, Random random) {
 
 		long start = System.currentTimeMillis();
 
@@ -850,21 +919,9 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		final double pH = cal.pixelHeight;
 		final double pD = cal.pixelDepth;
 
-		ImageStack stack = imp.getImageStack();
-		// final int stackSize = stack.getSize();
-		final int w = stack.getWidth();
-		final int h = stack.getHeight();
-		final int d = stack.getSize();
-
-		// cache slices into an array
-		// ByteProcessor[] ips = new ByteProcessor[stackSize + 1];
-		byte[][] pixels = new byte[d][w * h];
-		for (int i = 0; i < d; i++) {
-			// ips[i] = (ByteProcessor) stack.getProcessor(i);
-			pixels[i] = (byte[]) stack.getProcessor(i + 1).getPixels();
-		}
-
-		// final int d = ips.length - 1;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = pixels.length;
 
 		// centre point of vector field
 		final double px = skeletonPoint[0] * pW;
@@ -872,28 +929,26 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		final double pz = skeletonPoint[2] * pD;
 
 		// Instantiate a small spherical ellipsoid
-		final double[][] orthogonalVectors = { { 1, 0, 0 }, { 0, 1, 0 },
-				{ 0, 0, 1 } };
-
-		Ellipsoid ellipsoid = new Ellipsoid(vectorIncrement, vectorIncrement,
-				vectorIncrement, px, py, pz, orthogonalVectors);
+		Ellipsoid ellipsoid = sphere(imp, skeletonPoint);
 
 		Vector<Double> volumeHistory = new Vector<Double>();
 		volumeHistory.add(ellipsoid.getVolume());
 
-		// dilate the sphere until it hits the background
-		while (isContained(ellipsoid, pixels, pW, pH, pD, w, h, d)) {
-			ellipsoid.dilate(vectorIncrement, vectorIncrement, vectorIncrement);
+		// dilate the sphere until it hits the background, in the number of
+		// steps growSphere took, which gives exactly the same sphere
+		if (sphereSteps < 0) {
+			IJ.log("Ellipsoid at (" + px + ", " + py + ", " + pz
+					+ ") is invalid, nullifying at initial dilation");
+			return null;
 		}
+		for (int s = 0; s < sphereSteps; s++)
+			ellipsoid.dilate(vectorIncrement, vectorIncrement, vectorIncrement);
 
 		volumeHistory.add(ellipsoid.getVolume());
 
-		// instantiate the ArrayList
-		ArrayList<double[]> contactPoints = new ArrayList<double[]>();
-
 		// get the points of contact
-		contactPoints = findContactPoints(ellipsoid, contactPoints, pixels, pW,
-				pH, pD, w, h, d);
+		contactPoints = findContactPoints(ellipsoid, contactPoints, surface,
+				pixels, pW, pH, pD, w, h, d);
 
 		// find the mean unit vector pointing to the points of contact from the
 		// centre
@@ -922,11 +977,13 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		// by contactSensitivity number of contacts
 
 		// int maxContacts = contactPoints.size() + contactSensitivity;
-		while (contactPoints.size() < contactSensitivity) {
+		int nContacts = contactPoints.size();
+		while (nContacts < contactSensitivity) {
 			ellipsoid.dilate(0, vectorIncrement, vectorIncrement);
-			contactPoints = findContactPoints(ellipsoid, contactPoints, pixels,
-					pW, pH, pD, w, h, d);
-			if (isInvalid(ellipsoid, pW, pH, pD, w, h, d, px, py, pz)) {
+			nContacts = countContacts(ellipsoid, regularVectors, nVectors,
+					contactSensitivity, surface, pixels, pW, pH, pD, w, h, d);
+			if (isInvalid(ellipsoid, surface, pW, pH, pD, w, h, d, px, py,
+					pz)) {
 				IJ.log("Ellipsoid at (" + px + ", " + py + ", " + pz
 						+ ") is invalid, nullifying at initial oblation");
 				return null;
@@ -950,18 +1007,19 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 				&& noImprovementCount < maxIterations) {
 
 			// rotate a little bit
-			ellipsoid = wiggle(ellipsoid);
+			ellipsoid = wiggle(ellipsoid, random);
 
 			// contract until no contact
-			ellipsoid = shrinkToFit(ellipsoid, contactPoints, pixels, pW, pH,
-					pD, w, h, d);
+			ellipsoid = shrinkToFit(ellipsoid, contactPoints, surface,
+					pixels, pW, pH, pD, w, h, d);
 
 			// dilate an axis
-			double[] abc = threeWayShuffle();
-			ellipsoid = inflateToFit(ellipsoid, contactPoints, abc[0], abc[1],
-					abc[2], pixels, pW, pH, pD, w, h, d, px, py, pz);
+			double[] abc = threeWayShuffle(random);
+			ellipsoid = inflateToFit(ellipsoid, abc[0], abc[1], abc[2],
+					surface, pixels, pW, pH, pD, w, h, d, px, py, pz);
 
-			if (isInvalid(ellipsoid, pW, pH, pD, w, h, d, px, py, pz)) {
+			if (isInvalid(ellipsoid, surface, pW, pH, pD, w, h, d, px, py,
+					pz)) {
 				IJ.log("Ellipsoid at (" + px + ", " + py + ", " + pz
 						+ ") is invalid, nullifying after " + totalIterations
 						+ " iterations");
@@ -972,24 +1030,25 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 				maximal = ellipsoid.copy();
 
 			// bump a little away from the sides
-			contactPoints = findContactPoints(ellipsoid, contactPoints, pixels,
-					pW, pH, pD, w, h, d);
+			contactPoints = findContactPoints(ellipsoid, contactPoints,
+					surface, pixels, pW, pH, pD, w, h, d);
 			if (contactPoints.size() > 0)
 				ellipsoid = bump(ellipsoid, contactPoints, px, py, pz);
 			// if can't bump then do a wiggle
 			else
-				ellipsoid = wiggle(ellipsoid);
+				ellipsoid = wiggle(ellipsoid, random);
 
 			// contract
-			ellipsoid = shrinkToFit(ellipsoid, contactPoints, pixels, pW, pH,
-					pD, w, h, d);
+			ellipsoid = shrinkToFit(ellipsoid, contactPoints, surface,
+					pixels, pW, pH, pD, w, h, d);
 
 			// dilate an axis
-			abc = threeWayShuffle();
-			ellipsoid = inflateToFit(ellipsoid, contactPoints, abc[0], abc[1],
-					abc[2], pixels, pW, pH, pD, w, h, d, px, py, pz);
+			abc = threeWayShuffle(random);
+			ellipsoid = inflateToFit(ellipsoid, abc[0], abc[1], abc[2],
+					surface, pixels, pW, pH, pD, w, h, d, px, py, pz);
 
-			if (isInvalid(ellipsoid, pW, pH, pD, w, h, d, px, py, pz)) {
+			if (isInvalid(ellipsoid, surface, pW, pH, pD, w, h, d, px, py,
+					pz)) {
 				IJ.log("Ellipsoid at (" + px + ", " + py + ", " + pz
 						+ ") is invalid, nullifying after " + totalIterations
 						+ " iterations");
@@ -1000,19 +1059,20 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 				maximal = ellipsoid.copy();
 
 			// rotate a little bit
-			ellipsoid = turn(ellipsoid, contactPoints, 0.1, pixels, pW, pH, pD,
-					w, h, d);
+			ellipsoid = turn(ellipsoid, contactPoints, 0.1, surface, pixels,
+					pW, pH, pD, w, h, d);
 
 			// contract until no contact
-			ellipsoid = shrinkToFit(ellipsoid, contactPoints, pixels, pW, pH,
-					pD, w, h, d);
+			ellipsoid = shrinkToFit(ellipsoid, contactPoints, surface,
+					pixels, pW, pH, pD, w, h, d);
 
 			// dilate an axis
-			abc = threeWayShuffle();
-			ellipsoid = inflateToFit(ellipsoid, contactPoints, abc[0], abc[1],
-					abc[2], pixels, pW, pH, pD, w, h, d, px, py, pz);
+			abc = threeWayShuffle(random);
+			ellipsoid = inflateToFit(ellipsoid, abc[0], abc[1], abc[2],
+					surface, pixels, pW, pH, pD, w, h, d, px, py, pz);
 
-			if (isInvalid(ellipsoid, pW, pH, pD, w, h, d, px, py, pz)) {
+			if (isInvalid(ellipsoid, surface, pW, pH, pD, w, h, d, px, py,
+					pz)) {
 				IJ.log("Ellipsoid at (" + px + ", " + py + ", " + pz
 						+ ") is invalid, nullifying after " + totalIterations
 						+ " iterations");
@@ -1052,8 +1112,8 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		// debug output for this ellipsoid
 		if (IJ.debugMode) {
 			// show in the 3D viewer
-			display3D(ellipsoid, contactPoints, pixels, pW, pH, pD, w, h, d,
-					px, py, pz, px + " " + py + " " + pz);
+			display3D(ellipsoid, contactPoints, surface, pixels, pW, pH, pD,
+					w, h, d, px, py, pz, px + " " + py + " " + pz);
 
 			// add history to the ResultsTable
 			// for (int i = 0; i < volumeHistory.size(); i++) {
@@ -1072,9 +1132,15 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		return ellipsoid;
 	}
 
-	private double[] threeWayShuffle() {
+	/**
+	 * Make a random choice of one of the three axes
+	 * 
+	 * @param random
+	 * @return array with 1 for the chosen axis and 0 for the other two
+	 */
+	private double[] threeWayShuffle(Random random) {
 		double[] a = { 0, 0, 0 };
-		double rand = Math.random();
+		double rand = random.nextDouble();
 		if (rand < 1.0 / 3.0)
 			a[0] = 1;
 		else if (rand >= 2.0 / 3.0)
@@ -1102,15 +1168,20 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 *         stack, or if the volume of the ellipsoid exceeds that of the
 	 *         image stack
 	 */
-	private boolean isInvalid(Ellipsoid ellipsoid, double pW, double pH,
-			double pD, int w, int h, int d, double px, double py, double pz) {
-
-		double[][] surfacePoints = ellipsoid.getSurfacePoints(nVectors);
+	private boolean isInvalid(Ellipsoid ellipsoid, double[][] surface,
+			double pW, double pH, double pD, int w, int h, int d, double px,
+			double py, double pz) {
+
+		final double[] x = surface[0];
+		final double[] y = surface[1];
+		final double[] z = surface[2];
+		ellipsoid.getSurfacePoints(regularVectors[0], regularVectors[1],
+				regularVectors[2], nVectors, x, y, z);
 		int outOfBoundsCount = 0;
 		final int half = nVectors / 2;
-		for (double[] p : surfacePoints) {
-			if (isOutOfBounds((int) (p[0] / pW), (int) (p[1] / pD),
-					(int) (p[2] / pH), w, h, d))
+		for (int i = 0; i < nVectors; i++) {
+			if (isOutOfBounds((int) (x[i] / pW), (int) (y[i] / pD),
+					(int) (z[i] / pH), w, h, d))
 				outOfBoundsCount++;
 			if (outOfBoundsCount > half)
 				return true;
@@ -1139,11 +1210,11 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * @param pz
 	 */
 	private void display3D(Ellipsoid ellipsoid,
-			ArrayList<double[]> contactPoints, byte[][] pixels, double pW,
-			double pH, double pD, int w, int h, int d, double px, double py,
-			double pz, String name) {
-		contactPoints = findContactPoints(ellipsoid, contactPoints, pixels, pW,
-				pH, pD, w, h, d);
+			ArrayList<double[]> contactPoints, double[][] surface,
+			byte[][] pixels, double pW, double pH, double pD, int w, int h,
+			int d, double px, double py, double pz, String name) {
+		contactPoints = findContactPoints(ellipsoid, contactPoints, surface,
+				pixels, pW, pH, pD, w, h, d);
 		ArrayList<Point3f> contactPointsf = new ArrayList<Point3f>(
 				contactPoints.size());
 		for (double[] p : contactPoints) {
@@ -1259,11 +1330,12 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * @return
 	 */
 	private Ellipsoid turn(Ellipsoid ellipsoid,
-			ArrayList<double[]> contactPoints, double theta, byte[][] pixels,
-			double pW, double pH, double pD, int w, int h, int d) {
+			ArrayList<double[]> contactPoints, double theta,
+			double[][] surface, byte[][] pixels, double pW, double pH,
+			double pD, int w, int h, int d) {
 
-		contactPoints = findContactPoints(ellipsoid, contactPoints, pixels, pW,
-				pH, pD, w, h, d);
+		contactPoints = findContactPoints(ellipsoid, contactPoints, surface,
+				pixels, pW, pH, pD, w, h, d);
 		if (contactPoints.size() > 0) {
 			double[] torque = calculateTorque(ellipsoid, contactPoints);
 			ellipsoid = rotateAboutAxis(ellipsoid, Vectors.norm(torque), theta);
@@ -1441,23 +1513,26 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * @return
 	 */
 	private Ellipsoid shrinkToFit(Ellipsoid ellipsoid,
-			ArrayList<double[]> contactPoints, byte[][] pixels, double pW,
-			double pH, double pD, int w, int h, int d) {
+			ArrayList<double[]> contactPoints, double[][] surface,
+			byte[][] pixels, double pW, double pH, double pD, int w, int h,
+			int d) {
 
 		// get the contact points
-		contactPoints = findContactPoints(ellipsoid, contactPoints, pixels, pW,
-				pH, pD, w, h, d);
+		contactPoints = findContactPoints(ellipsoid, contactPoints, surface,
+				pixels, pW, pH, pD, w, h, d);
 
 		// get the unit vectors to the contact points
 		double[][] unitVectors = findContactUnitVectors(ellipsoid,
 				contactPoints);
+		final int nUnitVectors = contactPoints.size();
 
 		// contract until no contact
 		int safety = 0;
-		while (contactPoints.size() > 0 && safety < maxIterations) {
+		int nContacts = nUnitVectors;
+		while (nContacts > 0 && safety < maxIterations) {
 			ellipsoid.contract(0.01);
-			contactPoints = findContactPoints(ellipsoid, contactPoints,
-					unitVectors, pixels, pW, pH, pD, w, h, d);
+			nContacts = countContacts(ellipsoid, unitVectors, nUnitVectors, 1,
+					surface, pixels, pW, pH, pD, w, h, d);
 			safety++;
 		}
 
@@ -1466,9 +1541,16 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		return ellipsoid;
 	}
 
+	/**
+	 * Find the unit vectors from the ellipsoid's centre to the contact points
+	 * 
+	 * @param ellipsoid
+	 * @param contactPoints
+	 * @return array of x, y and z components of the unit vectors
+	 */
 	private double[][] findContactUnitVectors(Ellipsoid ellipsoid,
 			ArrayList<double[]> contactPoints) {
-		double[][] unitVectors = new double[contactPoints.size()][3];
+		double[][] unitVectors = new double[3][contactPoints.size()];
 		final double[] c = ellipsoid.getCentre();
 		final double cx = c[0];
 		final double cy = c[1];
@@ -1484,8 +1566,9 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 			final double x = (px - cx) / l;
 			final double y = (py - cy) / l;
 			final double z = (pz - cz) / l;
-			double[] u = { x, y, z };
-			unitVectors[i] = u;
+			unitVectors[0][i] = x;
+			unitVectors[1][i] = y;
+			unitVectors[2][i] = z;
 		}
 		return unitVectors;
 	}
@@ -1508,24 +1591,23 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * @param px
 	 * @return
 	 */
-	private Ellipsoid inflateToFit(Ellipsoid ellipsoid,
-			ArrayList<double[]> contactPoints, double a, double b, double c,
-			byte[][] pixels, double pW, double pH, double pD, int w, int h,
-			int d, double px, double py, double pz) {
+	private Ellipsoid inflateToFit(Ellipsoid ellipsoid, double a, double b,
+			double c, double[][] surface, byte[][] pixels, double pW,
+			double pH, double pD, int w, int h, int d, double px, double py,
+			double pz) {
 
-		contactPoints = findContactPoints(ellipsoid, contactPoints, pixels, pW,
-				pH, pD, w, h, d);
+		int nContacts = countContacts(ellipsoid, regularVectors, nVectors,
+				contactSensitivity, surface, pixels, pW, pH, pD, w, h, d);
 
 		final double av = a * vectorIncrement;
 		final double bv = b * vectorIncrement;
 		final double cv = c * vectorIncrement;
 
 		int safety = 0;
-		while (contactPoints.size() < contactSensitivity
-				&& safety < maxIterations) {
+		while (nContacts < contactSensitivity && safety < maxIterations) {
 			ellipsoid.dilate(av, bv, cv);
-			contactPoints = findContactPoints(ellipsoid, contactPoints, pixels,
-					pW, pH, pD, w, h, d);
+			nContacts = countContacts(ellipsoid, regularVectors, nVectors,
+					contactSensitivity, surface, pixels, pW, pH, pD, w, h, d);
 			safety++;
 		}
 
@@ -1562,18 +1644,19 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * Rotate the ellipsoid by a small random amount
 	 * 
 	 * @param ellipsoid
+	 * @param random
 	 */
-	private Ellipsoid wiggle(Ellipsoid ellipsoid) {
+	private Ellipsoid wiggle(Ellipsoid ellipsoid, Random random) {
 
-		double b = nudge(0.1);
-		double c = nudge(0.1);
+		double b = nudge(0.1, random);
+		double c = nudge(0.1, random);
 		double a = Math.sqrt(1 - b * b - c * c);
 
 		// zeroth column, should be very close to [1, 0, 0]^T (mostly x)
 		double[] zerothColumn = { a, b, c };
 
 		// form triangle in random plane
-		double[] vector = Vectors.randomVector();
+		double[] vector = Vectors.randomVector(random);
 
 		// first column, should be very close to [0, 1, 0]^T
 		double[] firstColumn = Vectors.norm(Vectors.crossProduct(zerothColumn,
@@ -1597,56 +1680,250 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 	 * generate a random number between -a and +a
 	 * 
 	 * @param a
+	 * @param random
 	 * @return
 	 */
-	private double nudge(double a) {
-		return Math.random() * (a + a) - a;
+	private double nudge(double a, Random random) {
+		return random.nextDouble() * (a + a) - a;
 	}
 
-	private ArrayList<double[]> findContactPoints(Ellipsoid ellipsoid,
-			ArrayList<double[]> contactPoints, byte[][] pixels,
-			final double pW, final double pH, final double pD, final int w,
-			final int h, final int d) {
-		// final double[][] unitVectors = Vectors.regularVectors(nVectors);
-		// final double[][] unitVectors = regularVectors;
-		return findContactPoints(ellipsoid, contactPoints,
-				regularVectors.clone(), pixels, pW, pH, pD, w, h, d);
+	/**
+	 * Create the random number generator of a skeleton point. It depends only
+	 * on randomSeed and the point's index, so an ellipsoid comes out the same
+	 * whichever thread optimises it and in whatever order.
+	 * 
+	 * @param index
+	 *            index of the skeleton point
+	 * @return random number generator
+	 */
+	private Random random(int index) {
+		// mix the bits (SplitMix64 finaliser) so that neighbouring indices
+		// do not give correlated sequences
+		long z = randomSeed + (index + 1) * 0x9E3779B97F4A7C15L;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return new Random(z ^ (z >>> 31));
+	}
+
+	/**
+	 * Record the result of a seed point in a checkpoint. A failure to save is
+	 * logged rather than stopping the run.
+	 * 
+	 * @param checkpoint
+	 * @param index
+	 *            index of the seed point
+	 * @param ellipsoid
+	 *            optimised ellipsoid, or null
+	 */
+	private void record(EllipsoidCheckpoint checkpoint, int index,
+			Ellipsoid ellipsoid) {
+		try {
+			checkpoint.add(index, ellipsoid);
+		} catch (IOException e) {
+			IJ.log("Could not save checkpoint to " + checkpointPath + ": "
+					+ e.getMessage());
+		}
 	}
 
+	/**
+	 * Calculate a key identifying the image, skeleton and settings of a run,
+	 * so that a checkpoint can only be resumed by the run that saved it
+	 * 
+	 * @param imp
+	 * @param skeletonPoints
+	 * @return key
+	 */
+	private long runKey(ImagePlus imp, int[][] skeletonPoints) {
+		Calibration cal = imp.getCalibration();
+		final double[] settings = { imp.getWidth(), imp.getHeight(),
+				imp.getStackSize(), cal.pixelWidth, cal.pixelHeight,
+				cal.pixelDepth, nVectors, vectorIncrement, skipRatio,
+				contactSensitivity, maxIterations, maxDrift };
+		long key = randomSeed;
+		for (double v : settings)
+			key = 31 * key + Double.doubleToLongBits(v);
+		for (int[] p : skeletonPoints)
+			key = 31 * key + Arrays.hashCode(p);
+		return key;
+	}
+
+	/**
+	 * Create a small sphere centred on a skeleton point
+	 * 
+	 * @param imp
+	 * @param skeletonPoint
+	 *            pixel coordinates of the point
+	 * @return sphere of radius vectorIncrement
+	 */
+	private Ellipsoid sphere(ImagePlus imp, int[] skeletonPoint) {
+		Calibration cal = imp.getCalibration();
+		final double[][] orthogonalVectors = { { 1, 0, 0 }, { 0, 1, 0 },
+				{ 0, 0, 1 } };
+		return new Ellipsoid(vectorIncrement, vectorIncrement,
+				vectorIncrement, skeletonPoint[0] * cal.pixelWidth,
+				skeletonPoint[1] * cal.pixelHeight, skeletonPoint[2]
+						* cal.pixelDepth, orthogonalVectors);
+	}
+
+	/**
+	 * Dilate a sphere until it hits the background
+	 * 
+	 * @param ellipsoid
+	 *            sphere to dilate
+	 * @param imp
+	 * @param pixels
+	 * @param surface
+	 *            work arrays for the x, y and z coordinates of nVectors
+	 *            surface points
+	 * @return number of dilation steps, or -1 if the sphere became invalid
+	 *         (more than half of its surface points outside the image, or
+	 *         bigger than the image) before hitting the background
+	 */
+	private int growSphere(Ellipsoid ellipsoid, ImagePlus imp,
+			byte[][] pixels, double[][] surface) {
+		Calibration cal = imp.getCalibration();
+		final double pW = cal.pixelWidth;
+		final double pH = cal.pixelHeight;
+		final double pD = cal.pixelDepth;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = pixels.length;
+		final double[] x = surface[0];
+		final double[] y = surface[1];
+		final double[] z = surface[2];
+		final int half = nVectors / 2;
+		int steps = 0;
+		while (true) {
+			// sample the surface once per step, for both contact and validity
+			ellipsoid.getSurfacePoints(regularVectors[0], regularVectors[1],
+					regularVectors[2], nVectors, x, y, z);
+			int outOfBounds = 0;
+			for (int i = 0; i < nVectors; i++) {
+				final int xi = (int) Math.floor(x[i] / pW);
+				final int yi = (int) Math.floor(y[i] / pH);
+				final int zi = (int) Math.floor(z[i] / pD);
+				if (isOutOfBounds(xi, yi, zi, w, h, d))
+					outOfBounds++;
+				else if (pixels[zi][yi * w + xi] != -1)
+					return steps;
+			}
+			if (outOfBounds > 0 && (outOfBounds > half
+					|| ellipsoid.getVolume() > stackVolume))
+				return -1;
+			ellipsoid.dilate(vectorIncrement, vectorIncrement, vectorIncrement);
+			steps++;
+		}
+	}
+
+	/**
+	 * Find the points on the ellipsoid's surface, in the directions of the
+	 * regular vectors, that lie on background
+	 * 
+	 * @param ellipsoid
+	 * @param contactPoints
+	 *            list to fill with the contact points, which is cleared first
+	 * @param surface
+	 *            work arrays for the x, y and z coordinates of the surface
+	 *            points
+	 * @param pixels
+	 * @param pW
+	 * @param pH
+	 * @param pD
+	 * @param w
+	 * @param h
+	 * @param d
+	 * @return contactPoints
+	 */
 	private ArrayList<double[]> findContactPoints(Ellipsoid ellipsoid,
-			ArrayList<double[]> contactPoints, double[][] unitVectors,
-			byte[][] pixels, double pW, double pH, double pD, int w, int h,
-			int d) {
+			ArrayList<double[]> contactPoints, double[][] surface,
+			byte[][] pixels, final double pW, final double pH,
+			final double pD, final int w, final int h, final int d) {
 		contactPoints.clear();
-		double[][] points = ellipsoid.getSurfacePoints(unitVectors);
-		final int nPoints = points.length;
-		for (int i = 0; i < nPoints; i++) {
-			final double[] p = points[i];
-			final int x = (int) Math.floor(p[0] / pW);
-			final int y = (int) Math.floor(p[1] / pH);
-			final int z = (int) Math.floor(p[2] / pD);
-			if (isOutOfBounds(x, y, z, w, h, d))
-				continue;
-			if (pixels[z][y * w + x] != -1)
-				contactPoints.add(p);
+		final double[] x = surface[0];
+		final double[] y = surface[1];
+		final double[] z = surface[2];
+		ellipsoid.getSurfacePoints(regularVectors[0], regularVectors[1],
+				regularVectors[2], nVectors, x, y, z);
+		for (int i = 0; i < nVectors; i++) {
+			if (isContact(x[i], y[i], z[i], pixels, pW, pH, pD, w, h, d))
+				contactPoints.add(new double[] { x[i], y[i], z[i] });
 		}
 		return contactPoints;
 	}
 
-	private boolean isContained(Ellipsoid ellipsoid, byte[][] pixels,
+	/**
+	 * Count the points on the ellipsoid's surface that lie on background,
+	 * without storing them, and stop counting once limit is reached
+	 * 
+	 * @param ellipsoid
+	 * @param unitVectors
+	 *            x, y and z components of the unit vectors to sample the
+	 *            surface at
+	 * @param n
+	 *            number of unit vectors
+	 * @param limit
+	 *            number of contacts at which to stop counting
+	 * @param surface
+	 *            work arrays for the x, y and z coordinates of n surface
+	 *            points
+	 * @param pixels
+	 * @param pW
+	 * @param pH
+	 * @param pD
+	 * @param w
+	 * @param h
+	 * @param d
+	 * @return number of contact points, up to limit
+	 */
+	private int countContacts(Ellipsoid ellipsoid, double[][] unitVectors,
+			final int n, final int limit, double[][] surface,
+			byte[][] pixels, final double pW, final double pH,
+			final double pD, final int w, final int h, final int d) {
+		final double[] x = surface[0];
+		final double[] y = surface[1];
+		final double[] z = surface[2];
+		ellipsoid.getSurfacePoints(unitVectors[0], unitVectors[1],
+				unitVectors[2], n, x, y, z);
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (isContact(x[i], y[i], z[i], pixels, pW, pH, pD, w, h, d)
+					&& ++count == limit)
+				break;
+		}
+		return count;
+	}
+
+	private boolean isContained(Ellipsoid ellipsoid, double[][] surface,
+			byte[][] pixels, final double pW, final double pH,
+			final double pD, final int w, final int h, final int d) {
+		return countContacts(ellipsoid, regularVectors, nVectors, 1, surface,
+				pixels, pW, pH, pD, w, h, d) == 0;
+	}
+
+	/**
+	 * return true if the point lies on background within the image bounds
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param pixels
+	 * @param pW
+	 * @param pH
+	 * @param pD
+	 * @param w
+	 * @param h
+	 * @param d
+	 * @return
+	 */
+	private boolean isContact(double x, double y, double z, byte[][] pixels,
 			final double pW, final double pH, final double pD, final int w,
 			final int h, final int d) {
-		double[][] points = ellipsoid.getSurfacePoints(nVectors);
-		for (double[] p : points) {
-			final int x = (int) Math.floor(p[0] / pW);
-			final int y = (int) Math.floor(p[1] / pH);
-			final int z = (int) Math.floor(p[2] / pD);
-			if (isOutOfBounds(x, y, z, w, h, d))
-				continue;
-			if (pixels[z][y * w + x] != -1)
-				return false;
-		}
-		return true;
+		final int xi = (int) Math.floor(x / pW);
+		final int yi = (int) Math.floor(y / pH);
+		final int zi = (int) Math.floor(z / pD);
+		if (isOutOfBounds(xi, yi, zi, w, h, d))
+			return false;
+		return pixels[zi][yi * w + xi] != -1;
 	}
 
 	/**
@@ -1676,9 +1953,10 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 		final int h = imp.getHeight();
 		final int w = imp.getWidth();
 
-		// Bare ArrayList is not thread safe for concurrent add() operations.
-		final List<int[]> list = Collections
-				.synchronizedList(new ArrayList<int[]>());
+		// one list per slice, so that the points come out in the same order
+		// whichever threads find them
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final ArrayList<int[]>[] lists = new ArrayList[d + 1];
 
 		final AtomicInteger ai = new AtomicInteger(1);
 		Thread[] threads = Multithreader.newThreads();
@@ -1689,6 +1967,7 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 							.getAndIncrement()) {
 						byte[] slicePixels = (byte[]) skeletonStack
 								.getPixels(z);
+						ArrayList<int[]> list = new ArrayList<int[]>();
 						for (int y = 0; y < h; y++) {
 							final int offset = y * w;
 							for (int x = 0; x < w; x++) {
@@ -1698,12 +1977,17 @@ public class EllipsoidFactor implements PlugIn, Comparator<Ellipsoid> {
 								}
 							}
 						}
+						lists[z] = list;
 					}
 				}
 			});
 		}
 		Multithreader.startAndJoin(threads);
 
+		ArrayList<int[]> list = new ArrayList<int[]>();
+		for (int z = 1; z <= d; z++)
+			list.addAll(lists[z]);
+
 		if (IJ.debugMode)
 			IJ.log("Skeleton point ArrayList contains " + list.size()
 					+ " points");
@@ -0,0 +1,249 @@
+package org.bonej.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.doube.geometry.Ellipsoid;
+
+/**
+ * <p>
+ * Checkpoint file of the ellipsoids optimised so far in an Ellipsoid Factor
+ * run, so that an interrupted run can be resumed without optimising the same
+ * seed points again.
+ * </p>
+ * <p>
+ * The file is a big-endian binary file containing a header (magic number,
+ * version, a key identifying the image and settings of the run, number of
+ * seed points and number of records) followed by one record per finished seed
+ * point: its index, a flag byte which is 0 if no valid ellipsoid was found,
+ * and otherwise the ellipsoid's centre, radii and rotation matrix as 15
+ * doubles. Each save writes a complete new file next to the old one and then
+ * renames it over the old one. If a save is interrupted after the old file has
+ * been removed, the new file is picked up on resume, so a whole checkpoint is
+ * never lost.
+ * </p>
+ * <p>
+ * Methods are synchronized, so a checkpoint may be shared by several
+ * threads.
+ * </p>
+ */
+public class EllipsoidCheckpoint {
+
+	/** "EFCP" */
+	private static final int MAGIC = 0x45464350;
+
+	private static final int VERSION = 1;
+
+	private final File file;
+
+	/** identifies the image and settings of the run */
+	private final long key;
+
+	/** minimum time between saves, in ms */
+	private final long interval;
+
+	/** ellipsoids of the finished seed points */
+	private final Ellipsoid[] ellipsoids;
+
+	/** true for seed points which have been optimised */
+	private final boolean[] done;
+
+	/** number of finished seed points */
+	private int nDone = 0;
+
+	/** time of the last save */
+	private long lastSave;
+
+	/**
+	 * Create a checkpoint, resuming from the file if it exists
+	 *
+	 * @param file
+	 *            checkpoint file
+	 * @param nPoints
+	 *            number of seed points in the run
+	 * @param key
+	 *            value identifying the image and settings of the run, which
+	 *            must match the key of an existing file
+	 * @param interval
+	 *            minimum time between saves, in seconds
+	 * @throws IOException
+	 *             if the file exists but cannot be read or belongs to a
+	 *             different run
+	 */
+	public EllipsoidCheckpoint(File file, int nPoints, long key,
+			double interval) throws IOException {
+		this.file = file;
+		this.key = key;
+		this.interval = Math.round(interval * 1000);
+		this.ellipsoids = new Ellipsoid[nPoints];
+		this.done = new boolean[nPoints];
+		File temp = tempFile();
+		if (file.exists()) {
+			read(file);
+		} else if (temp.exists()) {
+			// a save was interrupted after the old checkpoint was removed
+			// and before the new one was renamed into place
+			try {
+				read(temp);
+			} catch (EOFException e) {
+				// only the first save can leave an incomplete file without a
+				// checkpoint beside it, so there is nothing to resume
+				Arrays.fill(done, false);
+				Arrays.fill(ellipsoids, null);
+				nDone = 0;
+			}
+			if (nDone > 0 && !temp.renameTo(file))
+				throw new IOException("Could not rename " + temp.getPath()
+						+ " to " + file.getName());
+		}
+		this.lastSave = System.currentTimeMillis();
+	}
+
+	private File tempFile() {
+		return new File(file.getPath() + ".tmp");
+	}
+
+	private void read(File source) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(source)));
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException(source.getName()
+						+ " is not an Ellipsoid Factor checkpoint file");
+			if (in.readLong() != key || in.readInt() != done.length)
+				throw new IOException(source.getName()
+						+ " was saved from a different image or settings");
+			final int n = in.readInt();
+			for (int r = 0; r < n; r++) {
+				final int index = in.readInt();
+				if (index < 0 || index >= done.length)
+					throw new IOException(source.getName()
+							+ " contains an invalid seed point index");
+				Ellipsoid ellipsoid = null;
+				if (in.readByte() != 0) {
+					double[] c = readDoubles(in, 3);
+					double[] radii = readDoubles(in, 3);
+					double[][] rotation = { readDoubles(in, 3),
+							readDoubles(in, 3), readDoubles(in, 3) };
+					ellipsoid = new Ellipsoid(radii[0], radii[1], radii[2],
+							c[0], c[1], c[2], rotation);
+				}
+				if (!done[index])
+					nDone++;
+				done[index] = true;
+				ellipsoids[index] = ellipsoid;
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	private static double[] readDoubles(DataInputStream in, int n)
+			throws IOException {
+		double[] values = new double[n];
+		for (int i = 0; i < n; i++)
+			values[i] = in.readDouble();
+		return values;
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values)
+			throws IOException {
+		for (double v : values)
+			out.writeDouble(v);
+	}
+
+	/**
+	 * Record the result of a seed point, and save the checkpoint if the save
+	 * interval has passed
+	 *
+	 * @param index
+	 *            index of the seed point
+	 * @param ellipsoid
+	 *            optimised ellipsoid, or null if none was found
+	 * @throws IOException
+	 *             if the checkpoint could not be saved
+	 */
+	public synchronized void add(int index, Ellipsoid ellipsoid)
+			throws IOException {
+		if (!done[index])
+			nDone++;
+		done[index] = true;
+		ellipsoids[index] = ellipsoid;
+		if (System.currentTimeMillis() - lastSave >= interval)
+			save();
+	}
+
+	/**
+	 * Write all finished seed points to the checkpoint file
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		File temp = tempFile();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(key);
+			out.writeInt(done.length);
+			out.writeInt(nDone);
+			for (int i = 0; i < done.length; i++) {
+				if (!done[i])
+					continue;
+				out.writeInt(i);
+				Ellipsoid ellipsoid = ellipsoids[i];
+				if (ellipsoid == null) {
+					out.writeByte(0);
+					continue;
+				}
+				out.writeByte(1);
+				writeDoubles(out, ellipsoid.getCentre());
+				writeDoubles(out, ellipsoid.getRadii());
+				for (double[] row : ellipsoid.getRotation())
+					writeDoubles(out, row);
+			}
+		} finally {
+			out.close();
+		}
+		// File.renameTo does not replace an existing file on all platforms;
+		// if the old file is deleted first, the constructor resumes from temp
+		if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file)))
+			throw new IOException("Could not replace " + file.getPath());
+		lastSave = System.currentTimeMillis();
+	}
+
+	/**
+	 * @param index
+	 *            index of a seed point
+	 * @return true if the seed point has been optimised
+	 */
+	public synchronized boolean isDone(int index) {
+		return done[index];
+	}
+
+	/**
+	 * @param index
+	 *            index of a seed point
+	 * @return the seed point's ellipsoid, or null if it has not been optimised
+	 *         or no valid ellipsoid was found
+	 */
+	public synchronized Ellipsoid get(int index) {
+		return ellipsoids[index];
+	}
+
+	/**
+	 * @return number of seed points which have been optimised
+	 */
+	public synchronized int getNumberDone() {
+		return nDone;
+	}
+}
@@ -122,6 +122,7 @@ import ij.process.ShortProcessor;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.math.BigInteger;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
@@ -397,6 +398,60 @@ public class ISQReader implements PlugIn {
 		return imp;
 	}
 
+	/**
+	 * Read a single slice of an ISQ file without reading the rest of the
+	 * stack, for slice-by-slice processing of files too large to open. Pixel
+	 * values match those of openScancoISQ() without downsampling.
+	 * 
+	 * @param path
+	 * @param z
+	 *            0-based slice number
+	 * @return pixel array of the whole slice
+	 * @throws IOException
+	 *             if the slice could not be read, e.g. from a truncated file
+	 */
+	public short[] getPixels(String path, int z) throws IOException {
+		return getPixels(path, z, getImageSize(path), getOffset(path));
+	}
+
+	/**
+	 * Read a single slice of an ISQ file, using image size and data offset
+	 * already read from its header, so that reading a whole stack slice by
+	 * slice does not parse the header again for each slice.
+	 * 
+	 * @param path
+	 * @param z
+	 *            0-based slice number
+	 * @param imageSize
+	 *            result of getImageSize(path)
+	 * @param offset
+	 *            result of getOffset(path)
+	 * @return pixel array of the whole slice
+	 * @throws IOException
+	 *             if the slice could not be read, e.g. from a truncated file
+	 */
+	public short[] getPixels(String path, int z, int[] imageSize, long offset)
+			throws IOException {
+		final int nPixels = imageSize[0] * imageSize[1];
+		if (z < 0 || z >= imageSize[2])
+			throw new IllegalArgumentException("Slice " + z
+					+ " is outside the image");
+		byte[] buffer = new byte[nPixels * 2];
+		RandomAccessFile in = new RandomAccessFile(path, "r");
+		try {
+			in.seek(offset + (long) z * nPixels * 2);
+			in.readFully(buffer);
+		} finally {
+			in.close();
+		}
+		short[] pixels = new short[nPixels];
+		for (int i = 0, j = 0; i < nPixels; i++, j += 2) {
+			final short value = (short) (((buffer[j + 1] & 0xff) << 8) | (buffer[j] & 0xff));
+			pixels[i] = value < 0 ? 0 : value;
+		}
+		return pixels;
+	}
+
 	/** *********************************************************************** **/
 	/**
 	 * from ImageReader.java: Skips the specified number of bytes, then reads an
@@ -18,8 +18,12 @@ package org.doube.bonej;
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.bonej.io.ISQReader;
 import org.doube.util.ImageCheck;
 import org.doube.util.Multithreader;
 import org.doube.util.ResultInserter;
@@ -28,9 +32,12 @@ import org.doube.util.UsageReporter;
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.GenericDialog;
+import ij.io.OpenDialog;
 import ij.plugin.PlugIn;
 import ij.macro.Interpreter;
 import ij.measure.Calibration;
+import ij.process.ImageProcessor;
 
 /**
  * <p>
@@ -98,9 +105,37 @@ public class Connectivity implements PlugIn {
 	/** working image depth */
 	private int depth = 0;
 
+	/** first and last slices of the working image */
+	private byte[] shellFirst, shellLast;
+
+	/**
+	 * voxels on the x = 0, x = width - 1, y = 0 and y = height - 1 faces of
+	 * the working image, indexed [z][y] or [z][x]
+	 */
+	private byte[][] shellLeft, shellRight, shellTop, shellBottom;
+
+	/** previous slice added to the stream */
+	private byte[] streamSlice;
+
+	/** number of slices added to the stream */
+	private int streamZ;
+
+	/** 8 times the Euler characteristic of the stream so far */
+	private long streamEuler;
+
+	/** stream row buffers */
+	private byte[] streamPrevRow, streamRow;
+
+	/** stream octant table */
+	private int[] streamLUT;
+
 	public void run(String arg) {
 		if (!ImageCheck.checkEnvironment())
 			return;
+		if (arg.equals("isq")) {
+			runISQ();
+			return;
+		}
 		ImagePlus imp = IJ.getImage();
 		ImageCheck ic = new ImageCheck();
 		if (!ic.isBinary(imp)) {
@@ -193,27 +228,25 @@ public class Connectivity implements PlugIn {
 		setDimensions(imp);
 		final ImageStack stack = imp.getImageStack();
 
-		final int eulerLUT[] = new int[256];
-		fillEulerLUT(eulerLUT);
+		final int[] octantLUT = getOctantLUT();
 
-		final int[] sumEulerInt = new int[depth+1];
+		final long[] sumEulerInt = new long[depth + 1];
 
 		final AtomicInteger ai = new AtomicInteger(0);
 		Thread[] threads = Multithreader.newThreads();
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(new Runnable() {
 				public void run() {
-					long deltaEuler = 0;
-					for (int z = ai.getAndIncrement(); z <= depth; z = ai.getAndIncrement()) {
-						for (int y = 0; y <= height; y++) {
-							for (int x = 0; x <= width; x++) {
-								final byte[] octant = getOctant(stack, x, y, z);
-								if (octant[0] > 0) { // this octant is not empty
-									deltaEuler = getDeltaEuler(octant, eulerLUT);
-									sumEulerInt[z] += deltaEuler;
-								}
-							}
-						}
+					final byte[] prevRow = new byte[width + 1];
+					final byte[] row = new byte[width + 1];
+					for (int z = ai.getAndIncrement(); z <= depth; z = ai
+							.getAndIncrement()) {
+						final byte[] below = z > 0 ? (byte[]) stack
+								.getPixels(z) : null;
+						final byte[] above = z < depth ? (byte[]) stack
+								.getPixels(z + 1) : null;
+						sumEulerInt[z] = getSliceEuler(below, above, prevRow,
+								row, octantLUT);
 					}
 				}
 			});
@@ -228,6 +261,399 @@ public class Connectivity implements PlugIn {
 		return sumEuler;
 	}
 
+	/**
+	 * Calculate the Euler characteristic and delta Chi of the foreground at a
+	 * series of thresholds, updating the Euler sum incrementally instead of
+	 * rethresholding and rescanning the whole stack for each threshold.
+	 * 
+	 * Voxels are sorted by grey value once, then added to the foreground from
+	 * the highest value down. Each added voxel changes only the octants of its
+	 * 8 vertices, so the Euler sum is corrected from its 3 &times; 3 &times; 3
+	 * neighbourhood alone. Foreground is pixel value &gt; threshold, as in
+	 * ThresholdMinConn.
+	 * 
+	 * @param imp
+	 *            8- or 16-bit greyscale ImagePlus
+	 * @param thresholds
+	 *            threshold values to test, in any order
+	 * @return sumEuler in [0][i] and deltaChi in [1][i] for thresholds[i]
+	 */
+	public double[][] getSumEulerSweep(ImagePlus imp, double[] thresholds) {
+		setDimensions(imp);
+		final ImageStack stack = imp.getImageStack();
+		final int nTests = thresholds.length;
+		final int wh = width * height;
+
+		// test thresholds from highest to lowest so the foreground only grows
+		Integer[] testOrder = new Integer[nTests];
+		for (int i = 0; i < nTests; i++)
+			testOrder[i] = i;
+		final double[] t = thresholds;
+		Arrays.sort(testOrder, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(t[b], t[a]);
+			}
+		});
+		final double lowest = t[testOrder[nTests - 1]];
+
+		// counting sort of candidate voxels into descending grey value order
+		int maxValue = 0;
+		for (int z = 1; z <= depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i = 0; i < wh; i++)
+				maxValue = Math.max(maxValue, ip.get(i));
+		}
+		final int[] counts = new int[maxValue + 2];
+		for (int z = 1; z <= depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			for (int i = 0; i < wh; i++) {
+				final int value = ip.get(i);
+				if (value > lowest)
+					counts[maxValue - value + 1]++;
+			}
+		}
+		for (int v = 1; v < counts.length; v++)
+			counts[v] += counts[v - 1];
+		final int nCandidates = counts[counts.length - 1];
+		final int[] order = new int[nCandidates];
+		final int[] orderValues = new int[nCandidates];
+		for (int z = 1; z <= depth; z++) {
+			ImageProcessor ip = stack.getProcessor(z);
+			final int sliceOffset = (z - 1) * wh;
+			for (int i = 0; i < wh; i++) {
+				final int value = ip.get(i);
+				if (value > lowest) {
+					final int position = counts[maxValue - value]++;
+					order[position] = sliceOffset + i;
+					orderValues[position] = value;
+				}
+			}
+		}
+
+		// working binary image, grown as the threshold is lowered
+		ImageStack binaryStack = new ImageStack(width, height);
+		final byte[][] binary = new byte[depth][];
+		for (int z = 0; z < depth; z++) {
+			binary[z] = new byte[wh];
+			binaryStack.addSlice(stack.getSliceLabel(z + 1), binary[z]);
+		}
+
+		final int[] octantLUT = getOctantLUT();
+		final int[][] vertexBits = getVertexBits();
+		double[][] result = new double[2][nTests];
+		long sumEuler = 0;
+		int next = 0;
+		for (int test = 0; test < nTests; test++) {
+			final int i = testOrder[test];
+			IJ.showStatus("Connectivity sweep " + (test + 1) + "/" + nTests);
+			while (next < nCandidates && orderValues[next] > thresholds[i]) {
+				final int index = order[next];
+				final int z = index / wh;
+				final int y = (index % wh) / width;
+				final int x = index % width;
+				final int neighbours = getNeighbourBits(binary, x, y, z);
+				final int added = neighbours | (1 << 13);
+				for (int v = 0; v < 8; v++) {
+					final int[] bits = vertexBits[v];
+					int before = 0;
+					int after = 0;
+					for (int b = 0; b < 8; b++) {
+						before |= ((neighbours >> bits[b]) & 1) << b;
+						after |= ((added >> bits[b]) & 1) << b;
+					}
+					sumEuler += octantLUT[after] - octantLUT[before];
+				}
+				binary[z][y * width + x] = (byte) 255;
+				next++;
+			}
+			result[0][i] = sumEuler / 8.0;
+			result[1][i] = result[0][i] - correctForEdges(binaryStack);
+		}
+		IJ.showStatus("");
+		return result;
+	}
+
+	/**
+	 * Pack a voxel's 3 &times; 3 &times; 3 neighbourhood into an int. The
+	 * neighbour at (x + dx, y + dy, z + dz) is bit (dz + 1) * 9 + (dy + 1) * 3
+	 * + dx + 1, so the voxel itself is bit 13.
+	 * 
+	 * @param binary
+	 *            slice arrays, foreground is -1
+	 * @param x
+	 * @param y
+	 * @param z
+	 *            0-based slice index
+	 * @return 27-bit neighbourhood
+	 */
+	private int getNeighbourBits(final byte[][] binary, final int x,
+			final int y, final int z) {
+		int bits = 0;
+		int bit = 0;
+		for (int dz = -1; dz <= 1; dz++) {
+			final int zdz = z + dz;
+			final boolean zIn = zdz >= 0 && zdz < depth;
+			for (int dy = -1; dy <= 1; dy++) {
+				final int ydy = y + dy;
+				final boolean yIn = zIn && ydy >= 0 && ydy < height;
+				for (int dx = -1; dx <= 1; dx++) {
+					final int xdx = x + dx;
+					if (yIn && xdx >= 0 && xdx < width
+							&& binary[zdz][ydy * width + xdx] == -1)
+						bits |= 1 << bit;
+					bit++;
+				}
+			}
+		}
+		return bits;
+	}
+
+	/**
+	 * For each of a voxel's 8 vertices, list the neighbourhood bits (see
+	 * getNeighbourBits()) that make up the vertex's octant, in the key order
+	 * used by getOctantLUT().
+	 * 
+	 * @return [vertex][key bit] neighbourhood bit positions
+	 */
+	private int[][] getVertexBits() {
+		int[][] vertexBits = new int[8][8];
+		for (int v = 0; v < 8; v++) {
+			// vertex at (x + i, y + j, z + k)
+			final int i = v & 1;
+			final int j = (v >> 1) & 1;
+			final int k = (v >> 2) & 1;
+			for (int b = 0; b < 8; b++) {
+				final int dx = (b < 4) ? i - 1 : i;
+				final int dy = ((b & 2) == 0) ? j - 1 : j;
+				final int dz = ((b & 1) == 0) ? k - 1 : k;
+				vertexBits[v][b] = (dz + 1) * 9 + (dy + 1) * 3 + dx + 1;
+			}
+		}
+		return vertexBits;
+	}
+
+	/**
+	 * Start a streaming Euler characteristic calculation, for stacks that are
+	 * too large to hold in memory. Add every slice in order with
+	 * addStreamSlice(), then call endStream() for the results. Only the
+	 * previous slice, the first and last slices and the stack's edge voxels
+	 * are retained.
+	 * 
+	 * @param width
+	 *            slice width
+	 * @param height
+	 *            slice height
+	 * @param depth
+	 *            number of slices that will be added
+	 */
+	public void startStream(int width, int height, int depth) {
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		shellLeft = new byte[depth][height];
+		shellRight = new byte[depth][height];
+		shellTop = new byte[depth][width];
+		shellBottom = new byte[depth][width];
+		streamSlice = null;
+		streamZ = 0;
+		streamEuler = 0;
+		streamPrevRow = new byte[width + 1];
+		streamRow = new byte[width + 1];
+		streamLUT = getOctantLUT();
+	}
+
+	/**
+	 * Add the next slice to the stream
+	 * 
+	 * @param pixels
+	 *            binary slice pixels, foreground is 255. The array is kept
+	 *            until the next slice is added, and the first and last slices
+	 *            are kept until endStream(), so it must not be reused.
+	 */
+	public void addStreamSlice(byte[] pixels) {
+		if (streamZ >= depth)
+			throw new IllegalStateException("Stream already has " + depth
+					+ " slices");
+		streamEuler += getSliceEuler(streamSlice, pixels, streamPrevRow,
+				streamRow, streamLUT);
+		addToShell(pixels, streamZ);
+		streamSlice = pixels;
+		streamZ++;
+	}
+
+	/**
+	 * Finish the streaming calculation
+	 * 
+	 * @return Euler characteristic in [0] and delta Chi in [1], equal to the
+	 *         results of getSumEuler() and getDeltaChi() on the whole stack
+	 */
+	public double[] endStream() {
+		if (streamZ != depth)
+			throw new IllegalStateException("Stream has " + streamZ + " of "
+					+ depth + " slices");
+		streamEuler += getSliceEuler(streamSlice, null, streamPrevRow,
+				streamRow, streamLUT);
+		final double sumEuler = streamEuler / 8.0;
+		final double deltaChi = sumEuler - correctForEdges();
+		streamSlice = null;
+		streamPrevRow = null;
+		streamRow = null;
+		return new double[] { sumEuler, deltaChi };
+	}
+
+	/**
+	 * Calculate connectivity of a Scanco ISQ file by thresholding and
+	 * streaming it slice by slice, without opening the whole stack
+	 */
+	private void runISQ() {
+		OpenDialog od = new OpenDialog("Open ISQ...", "");
+		if (od.getFileName() == null)
+			return;
+		final String path = od.getDirectory() + od.getFileName();
+		ISQReader reader = new ISQReader();
+		if (!reader.isScancoISQ(path)) {
+			IJ.error("Connectivity", "Not an ISQ file.");
+			return;
+		}
+		GenericDialog gd = new GenericDialog("Connectivity (ISQ)");
+		gd.addNumericField("Threshold (raw pixel value)", 0, 0);
+		gd.addHelp("http://bonej.org/connectivity");
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		final double threshold = gd.getNextNumber();
+
+		// read the header once, not for every slice
+		final int[] size = reader.getImageSize(path);
+		final long offset = reader.getOffset(path);
+		final int w = size[0];
+		final int h = size[1];
+		final int d = size[2];
+		final int wh = w * h;
+		startStream(w, h, d);
+		for (int z = 0; z < d; z++) {
+			IJ.showStatus("Streaming connectivity: " + (z + 1) + "/" + d);
+			IJ.showProgress(z, d);
+			short[] pixels;
+			try {
+				pixels = reader.getPixels(path, z, size, offset);
+			} catch (IOException e) {
+				IJ.showProgress(1.0);
+				IJ.error("Connectivity", "Could not read slice " + (z + 1)
+						+ " of " + od.getFileName() + ":\n" + e.getMessage());
+				return;
+			}
+			final byte[] binary = new byte[wh];
+			for (int i = 0; i < wh; i++)
+				if (pixels[i] > threshold)
+					binary[i] = (byte) 255;
+			addStreamSlice(binary);
+		}
+		final double[] euler = endStream();
+		final double connectivity = getConnectivity(euler[1]);
+		final double[] voxelSize = reader.getPixelSize(path);
+		final double stackVolume = (double) w * h * d * voxelSize[0]
+				* voxelSize[1] * voxelSize[2];
+
+		ImagePlus imp = new ImagePlus();
+		imp.setTitle(od.getFileName());
+		ResultInserter ri = ResultInserter.getInstance();
+		ri.setResultInRow(imp, "Euler ch.", euler[0]);
+		ri.setResultInRow(imp, "Δ(χ)", euler[1]);
+		ri.setResultInRow(imp, "Connectivity", connectivity);
+		ri.setResultInRow(imp, "Conn.D (mm^-3)", connectivity / stackVolume);
+		ri.updateTable();
+		IJ.showProgress(1.0);
+		UsageReporter.reportEvent(this).send();
+	}
+
+	/**
+	 * Sum the delta Euler values of the vertex plane lying between two
+	 * adjacent slices, i.e. of all (width + 1) * (height + 1) vertices at one z.
+	 * 
+	 * Each voxel column is encoded as the state of its two voxels (slice below
+	 * and slice above) in two rows (y - 1 and y), so a vertex's octant is the
+	 * columns either side of it. Rows are kept in two reusable buffers that
+	 * swap roles as y increases, so no memory is allocated per vertex.
+	 * 
+	 * @param below
+	 *            pixels of slice z - 1, or null if z is the top of the stack
+	 * @param above
+	 *            pixels of slice z, or null if z is past the bottom of the
+	 *            stack
+	 * @param prevRow
+	 *            work array of length width + 1
+	 * @param row
+	 *            work array of length width + 1
+	 * @param octantLUT
+	 *            result of getOctantLUT()
+	 * @return sum of delta Euler values in the plane (8 times the plane's
+	 *         contribution to the Euler characteristic)
+	 */
+	private long getSliceEuler(final byte[] below, final byte[] above,
+			byte[] prevRow, byte[] row, final int[] octantLUT) {
+		long sum = 0;
+		Arrays.fill(prevRow, (byte) 0);
+		for (int y = 0; y <= height; y++) {
+			if (y < height) {
+				final int offset = y * width;
+				for (int x = 0; x < width; x++) {
+					int pair = 0;
+					if (below != null && below[offset + x] == -1)
+						pair = 1;
+					if (above != null && above[offset + x] == -1)
+						pair |= 2;
+					row[x] = (byte) pair;
+				}
+			} else {
+				Arrays.fill(row, (byte) 0);
+			}
+			// columns: bits 0, 1 are row y - 1; bits 2, 3 are row y
+			int key = 0;
+			for (int x = 0; x <= width; x++) {
+				final int column = prevRow[x] | (row[x] << 2);
+				key = (key >> 4) | (column << 4);
+				if (key != 0)
+					sum += octantLUT[key];
+			}
+			final byte[] swap = prevRow;
+			prevRow = row;
+			row = swap;
+		}
+		return sum;
+	}
+
+	/**
+	 * Build a table of delta Euler values for every possible octant.
+	 * 
+	 * The index's low 4 bits describe the voxel column at x - 1 and the high 4
+	 * bits the column at x. Within a column, bit 0 is (y - 1, z - 1), bit 1 is
+	 * (y - 1, z), bit 2 is (y, z - 1) and bit 3 is (y, z).
+	 * 
+	 * @return delta Euler for each of the 256 octant configurations
+	 */
+	private int[] getOctantLUT() {
+		final int eulerLUT[] = new int[256];
+		fillEulerLUT(eulerLUT);
+
+		// octant position that each key bit maps to
+		final int[] octantIndex = { 1, 5, 2, 6, 3, 7, 4, 8 };
+		final int[] octantLUT = new int[256];
+		final byte[] octant = new byte[9];
+		for (int key = 1; key < 256; key++) {
+			octant[0] = 0;
+			for (int bit = 0; bit < 8; bit++) {
+				if ((key & (1 << bit)) != 0) {
+					octant[octantIndex[bit]] = -1;
+					octant[0]++;
+				} else
+					octant[octantIndex[bit]] = 0;
+			}
+			octantLUT[key] = getDeltaEuler(octant, eulerLUT);
+		}
+		return octantLUT;
+	}
+
 	private void setDimensions(ImagePlus imp) {
 		this.width = imp.getWidth();
 		this.height = imp.getHeight();
@@ -237,60 +663,75 @@ public class Connectivity implements PlugIn {
 
 	/* ----------------------------------------------------------------------- */
 	/**
-	 * Get octant of a vertex at (0,0,0) of a voxel (upper top left) in a 3D
-	 * image (0 border conditions)
+	 * Get pixel on the surface of the working image (0 border conditions).
+	 * Only voxels in the shell, i.e. on the first or last slice or on the x
+	 * and y edges of a slice, can be read.
 	 * 
-	 * @param stack
-	 *            3D image (ImageStack)
 	 * @param x
 	 *            x- coordinate
 	 * @param y
 	 *            y- coordinate
 	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 8-pixel octant (0 if out of image)
+	 *            z- coordinate (0-based)
+	 * @return corresponding pixel (0 if out of image)
 	 */
-	private byte[] getOctant(final ImageStack stack, final int x, final int y,
-			final int z) {
-		byte[] octant = new byte[9]; // index 0 is counter to determine octant
-		// emptiness, index 8 is at (x,y,z)
-
-		octant[1] = getPixel(stack, x - 1, y - 1, z - 1);
-		octant[2] = getPixel(stack, x - 1, y, z - 1);
-		octant[3] = getPixel(stack, x, y - 1, z - 1);
-		octant[4] = getPixel(stack, x, y, z - 1);
-		octant[5] = getPixel(stack, x - 1, y - 1, z);
-		octant[6] = getPixel(stack, x - 1, y, z);
-		octant[7] = getPixel(stack, x, y - 1, z);
-		octant[8] = getPixel(stack, x, y, z);
-
-		for (int n = 1; n < 9; n++)
-			octant[0] -= octant[n]; // foreground is -1, so octant[0] contains
-		// nVoxels in octant
-		return octant;
-	} /* end getNeighborhood */
+	private byte getPixel(int x, int y, int z) {
+		if (x < 0 || x >= this.width || y < 0 || y >= this.height || z < 0
+				|| z >= this.depth)
+			return 0;
+		if (z == 0)
+			return shellFirst[y * this.width + x];
+		if (z == this.depth - 1)
+			return shellLast[y * this.width + x];
+		if (x == 0)
+			return shellLeft[z][y];
+		if (x == this.width - 1)
+			return shellRight[z][y];
+		if (y == 0)
+			return shellTop[z][x];
+		if (y == this.height - 1)
+			return shellBottom[z][x];
+		throw new IllegalArgumentException("(" + x + ", " + y + ", " + z
+				+ ") is not on the stack surface");
+	} /* end getPixel */
 
-	/* ----------------------------------------------------------------------- */
 	/**
-	 * Get pixel in 3D image stack (0 border conditions)
+	 * Copy the surface voxels of a stack into the shell fields
 	 * 
 	 * @param stack
-	 *            3D image
-	 * @param x
-	 *            x- coordinate
-	 * @param y
-	 *            y- coordinate
+	 *            binary stack with the working dimensions
+	 */
+	private void setShell(final ImageStack stack) {
+		shellLeft = new byte[depth][height];
+		shellRight = new byte[depth][height];
+		shellTop = new byte[depth][width];
+		shellBottom = new byte[depth][width];
+		for (int z = 0; z < depth; z++)
+			addToShell((byte[]) stack.getPixels(z + 1), z);
+	}
+
+	/**
+	 * Copy a slice's surface voxels into the shell
+	 * 
+	 * @param pixels
+	 *            slice pixels
 	 * @param z
-	 *            z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
+	 *            0-based slice number
 	 */
-	private byte getPixel(final ImageStack stack, int x, int y, int z) {
-		if (x >= 0 && x < this.width && y >= 0 && y < this.height && z >= 0
-				&& z < this.depth)
-			return ((byte[]) stack.getPixels(z + 1))[y * this.width + x];
-		else
-			return 0;
-	} /* end getPixel */
+	private void addToShell(final byte[] pixels, final int z) {
+		if (z == 0)
+			shellFirst = pixels;
+		if (z == depth - 1)
+			shellLast = pixels;
+		final int lastColumn = width - 1;
+		for (int y = 0; y < height; y++) {
+			shellLeft[z][y] = pixels[y * width];
+			shellRight[z][y] = pixels[y * width + lastColumn];
+		}
+		final int lastRow = (height - 1) * width;
+		System.arraycopy(pixels, 0, shellTop[z], 0, width);
+		System.arraycopy(pixels, lastRow, shellBottom[z], 0, width);
+	}
 
 	/**
 	 * Get delta euler value for an octant (~= vertex) from look up table
@@ -401,19 +842,18 @@ public class Connectivity implements PlugIn {
 	 * &#967;<sub>0</sub> from Odgaard and Gundersen (1993) and <i>f</i> in my
 	 * working
 	 * 
-	 * @param stack
 	 * @return number of voxel vertices intersecting with stack vertices
 	 */
-	private long getStackVertices(final ImageStack stack) {
+	private long getStackVertices() {
 		long nStackVertices = 0;
-		for (int z = 0; z < stack.getSize(); z += stack.getSize() - 1) {
-			for (int y = 0; y < stack.getHeight(); y += stack.getHeight() - 1) {
-				for (int x = 0; x < stack.getWidth(); x += stack.getWidth() - 1) {
-					if (getPixel(stack, x, y, z) == -1)
+		for (int z = 0; z < depth; z += depth - 1) {
+			for (int y = 0; y < height; y += height - 1) {
+				for (int x = 0; x < width; x += width - 1) {
+					if (getPixel(x, y, z) == -1)
 						nStackVertices++;
 				}
 			}
-			if (stack.getSize() == 1)
+			if (depth == 1)
 				break;
 		}
 		return nStackVertices;
@@ -423,10 +863,9 @@ public class Connectivity implements PlugIn {
 	 * Count the number of foreground voxels on edges of stack, this is part of
 	 * &#967;<sub>1</sub> (<i>e</i> in my working)
 	 * 
-	 * @param stack
 	 * @return number of voxel edges intersecting with stack edges
 	 */
-	private long getStackEdges(final ImageStack stack) {
+	private long getStackEdges() {
 		long nStackEdges = 0;
 
 		// vertex voxels contribute 3 edges
@@ -437,7 +876,7 @@ public class Connectivity implements PlugIn {
 		for (int z = 0; z < depth; z += depth - 1) {
 			for (int y = 0; y < height; y += height - 1) {
 				for (int x = 1; x < width - 1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nStackEdges++;
 				}
 			}
@@ -449,7 +888,7 @@ public class Connectivity implements PlugIn {
 		for (int z = 0; z < depth; z += depth - 1) {
 			for (int x = 0; x < width; x += width - 1) {
 				for (int y = 1; y < height - 1; y++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nStackEdges++;
 				}
 			}
@@ -461,7 +900,7 @@ public class Connectivity implements PlugIn {
 		for (int y = 0; y < height; y += height - 1) {
 			for (int x = 0; x < width; x += width - 1) {
 				for (int z = 1; z < depth - 1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nStackEdges++;
 					if (depth == 1)
 						break;
@@ -476,10 +915,9 @@ public class Connectivity implements PlugIn {
 	 * Count the number of foreground voxel faces intersecting with stack faces
 	 * This is part of &#967;<sub>2</sub> and is <i>c</i> in my working
 	 * 
-	 * @param stack
 	 * @return number of voxel faces intersecting with stack faces
 	 */
-	private long getStackFaces(final ImageStack stack) {
+	private long getStackFaces() {
 		long nStackFaces = 0;
 
 		// vertex voxels contribute 3 faces
@@ -494,7 +932,7 @@ public class Connectivity implements PlugIn {
 		for (int z = 0; z < depth; z += depth - 1) {
 			for (int y = 1; y < height - 1; y++) {
 				for (int x = 1; x < width - 1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nStackFaces++;
 				}
 			}
@@ -506,7 +944,7 @@ public class Connectivity implements PlugIn {
 		for (int y = 0; y < height; y += height - 1) {
 			for (int z = 1; z < depth - 1; z++) {
 				for (int x = 1; x < width - 1; x++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nStackFaces++;
 				}
 				if (depth == 1)
@@ -518,7 +956,7 @@ public class Connectivity implements PlugIn {
 		for (int x = 0; x < width; x += width - 1) {
 			for (int y = 1; y < height - 1; y++) {
 				for (int z = 1; z < depth - 1; z++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nStackFaces++;
 					if (depth == 1)
 						break;
@@ -532,10 +970,9 @@ public class Connectivity implements PlugIn {
 	 * Count the number of voxel vertices intersecting stack faces. This
 	 * contributes to &#967;<sub>2</sub> (<i>a</i> in my working)
 	 * 
-	 * @param stack
 	 * @return Number of voxel vertices intersecting stack faces
 	 */
-	private long getFaceVertices(final ImageStack stack) {
+	private long getFaceVertices() {
 		long nFaceVertices = 0;
 
 		// top and bottom faces (all 4 edges)
@@ -544,13 +981,13 @@ public class Connectivity implements PlugIn {
 				for (int x = 0; x <= width; x++) {
 					// if the voxel or any of its neighbours are foreground, the
 					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
+					else if (getPixel(x, y - 1, z) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y - 1, z) == -1)
+					else if (getPixel(x - 1, y - 1, z) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
+					else if (getPixel(x - 1, y, z) == -1)
 						nFaceVertices++;
 				}
 			}
@@ -564,13 +1001,13 @@ public class Connectivity implements PlugIn {
 				for (int z = 1; z < depth; z++) {
 					// if the voxel or any of its neighbours are foreground, the
 					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
+					else if (getPixel(x, y - 1, z) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x, y - 1, z - 1) == -1)
+					else if (getPixel(x, y - 1, z - 1) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
+					else if (getPixel(x, y, z - 1) == -1)
 						nFaceVertices++;
 					if (depth == 1)
 						break;
@@ -584,13 +1021,13 @@ public class Connectivity implements PlugIn {
 				for (int z = 1; z < depth; z++) {
 					// if the voxel or any of its neighbours are foreground, the
 					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
+					else if (getPixel(x, y, z - 1) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z - 1) == -1)
+					else if (getPixel(x - 1, y, z - 1) == -1)
 						nFaceVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
+					else if (getPixel(x - 1, y, z) == -1)
 						nFaceVertices++;
 					if (depth == 1)
 						break;
@@ -604,10 +1041,9 @@ public class Connectivity implements PlugIn {
 	 * Count the number of intersections between voxel edges and stack faces.
 	 * This is part of &#967;<sub>2</sub>, in my working it's called <i>b</i>
 	 * 
-	 * @param stack
 	 * @return number of intersections between voxel edges and stack faces
 	 */
-	private long getFaceEdges(final ImageStack stack) {
+	private long getFaceEdges() {
 		long nFaceEdges = 0;
 
 		// top and bottom faces (all 4 edges)
@@ -617,13 +1053,13 @@ public class Connectivity implements PlugIn {
 				for (int x = 0; x <= width; x++) {
 					// if the voxel or any of its neighbours are foreground, the
 					// vertex is counted
-					if (getPixel(stack, x, y, z) == -1) {
+					if (getPixel(x, y, z) == -1) {
 						nFaceEdges += 2;
 					} else {
-						if (getPixel(stack, x, y - 1, z) == -1) {
+						if (getPixel(x, y - 1, z) == -1) {
 							nFaceEdges++;
 						}
-						if (getPixel(stack, x - 1, y, z) == -1) {
+						if (getPixel(x - 1, y, z) == -1) {
 							nFaceEdges++;
 						}
 					}
@@ -637,9 +1073,9 @@ public class Connectivity implements PlugIn {
 		for (int y = 0; y < height; y += height - 1) {
 			for (int z = 1; z < depth; z++) {
 				for (int x = 0; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
+					else if (getPixel(x, y, z - 1) == -1)
 						nFaceEdges++;
 				}
 				if (depth == 1)
@@ -651,9 +1087,9 @@ public class Connectivity implements PlugIn {
 		for (int y = 0; y < height; y += height - 1) {
 			for (int z = 0; z < depth; z++) {
 				for (int x = 0; x <= width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nFaceEdges++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
+					else if (getPixel(x - 1, y, z) == -1)
 						nFaceEdges++;
 				}
 				if (depth == 1)
@@ -665,9 +1101,9 @@ public class Connectivity implements PlugIn {
 		for (int x = 0; x < width; x += width - 1) {
 			for (int z = 1; z < depth; z++) {
 				for (int y = 0; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nFaceEdges++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
+					else if (getPixel(x, y, z - 1) == -1)
 						nFaceEdges++;
 				}
 				if (depth == 1)
@@ -679,9 +1115,9 @@ public class Connectivity implements PlugIn {
 		for (int x = 0; x < width; x += width - 1) {
 			for (int z = 0; z < depth; z++) {
 				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nFaceEdges++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
+					else if (getPixel(x, y - 1, z) == -1)
 						nFaceEdges++;
 				}
 				if (depth == 1)
@@ -696,10 +1132,9 @@ public class Connectivity implements PlugIn {
 	 * Count number of voxel vertices intersecting stack edges. It contributes
 	 * to &#967;<sub>1</sub>, and I call it <i>d</i> in my working
 	 * 
-	 * @param stack
 	 * @return number of voxel vertices intersecting stack edges
 	 */
-	private long getEdgeVertices(final ImageStack stack) {
+	private long getEdgeVertices() {
 		long nEdgeVertices = 0;
 
 		// vertex voxels contribute 1 edge vertex each
@@ -710,9 +1145,9 @@ public class Connectivity implements PlugIn {
 		for (int z = 0; z < depth; z += depth - 1) {
 			for (int y = 0; y < height; y += height - 1) {
 				for (int x = 1; x < width; x++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nEdgeVertices++;
-					else if (getPixel(stack, x - 1, y, z) == -1)
+					else if (getPixel(x - 1, y, z) == -1)
 						nEdgeVertices++;
 				}
 			}
@@ -724,9 +1159,9 @@ public class Connectivity implements PlugIn {
 		for (int z = 0; z < depth; z += depth - 1) {
 			for (int x = 0; x < width; x += width - 1) {
 				for (int y = 1; y < height; y++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nEdgeVertices++;
-					else if (getPixel(stack, x, y - 1, z) == -1)
+					else if (getPixel(x, y - 1, z) == -1)
 						nEdgeVertices++;
 				}
 			}
@@ -738,9 +1173,9 @@ public class Connectivity implements PlugIn {
 		for (int x = 0; x < width; x += width - 1) {
 			for (int y = 0; y < height; y += height - 1) {
 				for (int z = 1; z < depth; z++) {
-					if (getPixel(stack, x, y, z) == -1)
+					if (getPixel(x, y, z) == -1)
 						nEdgeVertices++;
-					else if (getPixel(stack, x, y, z - 1) == -1)
+					else if (getPixel(x, y, z - 1) == -1)
 						nEdgeVertices++;
 					if (depth == 1)
 						break;
@@ -773,15 +1208,27 @@ public class Connectivity implements PlugIn {
 	 * @return edgeCorrection for subtraction from the stack's Euler number
 	 */
 	private double correctForEdges(final ImageStack stack) {
+		setShell(stack);
+		return correctForEdges();
+	}
+
+	/**
+	 * Calculate the edge correction from the surface voxels held in the shell
+	 * fields, which must already be filled by setShell() or the stream
+	 * methods.
+	 * 
+	 * @return edgeCorrection for subtraction from the stack's Euler number
+	 */
+	private double correctForEdges() {
 
-		long f = getStackVertices(stack);
-		long e = getStackEdges(stack) + 3 * f;
-		long c = getStackFaces(stack) + 2 * e - 3 * f; // there are already 6 *
+		long f = getStackVertices();
+		long e = getStackEdges() + 3 * f;
+		long c = getStackFaces() + 2 * e - 3 * f; // there are already 6 *
 		// f in 2 * e, so remove
 		// 3 * f
-		long d = getEdgeVertices(stack) + f;
-		long a = getFaceVertices(stack);
-		long b = getFaceEdges(stack);
+		long d = getEdgeVertices() + f;
+		long a = getFaceVertices();
+		long b = getFaceEdges();
 
 		double chiZero = (double) f;
 		double chiOne = (double) d - (double) e;
@@ -61,6 +61,7 @@ public class Dilate implements PlugIn {
 		h = image.getHeight();
 		d = image.getStackSize();
 
+		// read the input slices in place rather than copying them
 		this.pixels_in = new byte[d][];
 		this.pixels_out = new byte[d][];
 		for (int z = 0; z < d; z++) {
@@ -68,22 +69,30 @@ public class Dilate implements PlugIn {
 			this.pixels_out[z] = new byte[w * h];
 		}
 
-		// iterate
+		// iterate; neighbours outside the stack take the value of the nearest
+		// edge voxel, as in get()
 		for (int z = 0; z < d; z++) {
 			IJ.showProgress(z, d - 1);
+			final byte[] in = this.pixels_in[z];
+			final byte[] above = this.pixels_in[z > 0 ? z - 1 : z];
+			final byte[] below = this.pixels_in[z < d - 1 ? z + 1 : z];
+			final byte[] out = this.pixels_out[z];
 			for (int y = 0; y < h; y++) {
+				final int offset = y * w;
+				final int up = y > 0 ? offset - w : offset;
+				final int down = y < h - 1 ? offset + w : offset;
 				for (int x = 0; x < w; x++) {
-					if (get(x, y, z) == threshold
-							|| get(x - 1, y, z) == threshold
-							|| get(x + 1, y, z) == threshold
-							|| get(x, y - 1, z) == threshold
-							|| get(x, y + 1, z) == threshold
-							|| get(x, y, z - 1) == threshold
-							|| get(x, y, z + 1) == threshold)
-
-						set(x, y, z, threshold);
+					final int i = offset + x;
+					if ((in[i] & 0xff) == threshold
+							|| (in[x > 0 ? i - 1 : i] & 0xff) == threshold
+							|| (in[x < w - 1 ? i + 1 : i] & 0xff) == threshold
+							|| (in[up + x] & 0xff) == threshold
+							|| (in[down + x] & 0xff) == threshold
+							|| (above[i] & 0xff) == threshold
+							|| (below[i] & 0xff) == threshold)
+						out[i] = (byte) threshold;
 					else
-						set(x, y, z, get(x, y, z));
+						out[i] = in[i];
 				}
 			}
 		}
@@ -96,6 +105,7 @@ public class Dilate implements PlugIn {
 			stack.addSlice(image.getImageStack().getSliceLabel(z + 1),
 					new ByteProcessor(w, h, this.pixels_out[z], cm));
 		}
+		this.pixels_in = null;
 		ImagePlus imp = new ImagePlus();
 		imp.setCalibration(image.getCalibration());
 		imp.setStack(null, stack);
@@ -257,25 +257,33 @@ public class FractalBoxCounter implements PlugIn {
 		final int d = imp.getImageStackSize();
 		ImageStack stack = imp.getImageStack();
 		ImageStack surfaceStack = new ImageStack(w, h, d);
+		final byte[][] slices = new byte[d][];
+		for (int z = 0; z < d; z++)
+			slices[z] = (byte[]) stack.getPixels(z + 1);
 
+		// neighbourhoods are clamped to the stack: voxels outside it count
+		// as foreground, so edges are not surface
 		for (int z = 0; z < d; z++) {
 			IJ.showStatus("Finding surface voxels");
-			byte[] pixels = (byte[]) stack.getPixels(z + 1);
+			byte[] pixels = slices[z];
 			surfaceStack.setPixels(pixels.clone(), z + 1);
 			ImageProcessor surfaceIP = surfaceStack.getProcessor(z + 1);
+			final int za = z > 0 ? z - 1 : z;
+			final int zb = z < d - 1 ? z + 1 : z;
 			for (int y = 0; y < h; y++) {
+				final int ya = y > 0 ? y - 1 : y;
+				final int yb = y < h - 1 ? y + 1 : y;
 				checkNeighbours: for (int x = 0; x < w; x++) {
-					if (getPixel(stack, x, y, z, w, h, d) == (byte) 0)
+					if (pixels[y * w + x] == (byte) 0)
 						continue;
-					for (int nz = -1; nz < 2; nz++) {
-						final int znz = z + nz;
-						for (int ny = -1; ny < 2; ny++) {
-							final int yny = y + ny;
-							for (int nx = -1; nx < 2; nx++) {
-								final int xnx = x + nx;
-								final byte pixel = getPixel(stack, xnx, yny,
-										znz, w, h, d);
-								if (pixel == (byte) 0)
+					final int xa = x > 0 ? x - 1 : x;
+					final int xb = x < w - 1 ? x + 1 : x;
+					for (int znz = za; znz <= zb; znz++) {
+						final byte[] slice = slices[znz];
+						for (int yny = ya; yny <= yb; yny++) {
+							final int offset = yny * w;
+							for (int xnx = xa; xnx <= xb; xnx++) {
+								if (slice[offset + xnx] == (byte) 0)
 									continue checkNeighbours;
 							}
 						}
@@ -303,14 +311,6 @@ public class FractalBoxCounter implements PlugIn {
 		return surfaceImp;
 	}
 
-	private byte getPixel(ImageStack image, int x, int y, int z, int w, int h,
-			int d) {
-		if (x >= 0 && x < w && y >= 0 && y < h && z >= 0 && z < d)
-			return ((byte[]) image.getPixels(z + 1))[x + y * w];
-		else
-			return (byte) 255;
-	} /* end getPixel */
-
 	private void drawGraph(double[] params, double[] boxSizes,
 			double[] boxCountSums) {
 
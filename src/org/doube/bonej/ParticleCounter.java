@@ -23,21 +23,25 @@ import java.awt.Choice;
 import java.awt.TextField;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 
+import org.doube.geometry.Feret;
 import org.doube.geometry.FitEllipsoid;
 import org.doube.jama.EigenvalueDecomposition;
 import org.doube.jama.Matrix;
 import org.doube.util.DialogModifier;
 import org.doube.util.ImageCheck;
+import org.doube.util.LabelVolume;
 import org.doube.util.Multithreader;
 import org.doube.util.UsageReporter;
 
@@ -112,7 +116,13 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	public final static int BACK = 0;
 
 	/** Particle joining method */
-	public final static int MULTI = 0, LINEAR = 1, MAPPED = 2;
+	public final static int MULTI = 0, LINEAR = 1, MAPPED = 2, UNION_FIND = 3;
+
+	/**
+	 * Most memory, in bytes, for the per-thread partial results of
+	 * getParticleStatistics before labels are striped across threads
+	 */
+	private static final long MAX_STATISTICS_BYTES = 256L << 20;
 
 	/** Surface colour style */
 	private final static int GRADIENT = 0, SPLIT = 1;
@@ -167,6 +177,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		gd.addNumericField("Max Volume", Double.POSITIVE_INFINITY, 3, 7, units
 				+ "³");
 		gd.addNumericField("Surface_resampling", 2, 0);
+		gd.addNumericField("Feret_tolerance", 0, 3, 7, "(0 = exact)");
 		String[] headers2 = { "Graphical Results", " " };
 		String[] labels2 = new String[8];
 		boolean[] defaultValues2 = new boolean[8];
@@ -191,7 +202,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		gd.addChoice("Surface colours", items, items[0]);
 		gd.addNumericField("Split value", 0, 3, 7, units + "³");
 		gd.addNumericField("Volume_resampling", 2, 0);
-		String[] items2 = { "Multithreaded", "Linear", "Mapped" };
+		String[] items2 = { "Multithreaded", "Linear", "Mapped", "Union find" };
 		gd.addChoice("Labelling algorithm", items2, items2[2]);
 		gd.addNumericField("Slices per chunk", 2, 0);
 		gd.addHelp("http://bonej.org/particles");
@@ -207,6 +218,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final boolean doFeret = gd.getNextBoolean();
 		final boolean doSurfaceVolume = gd.getNextBoolean();
 		final int resampling = (int) Math.floor(gd.getNextNumber());
+		final double feretTolerance = gd.getNextNumber();
 		final boolean doMoments = gd.getNextBoolean();
 		final boolean doEulerCharacters = gd.getNextBoolean();
 		final boolean doThickness = gd.getNextBoolean();
@@ -232,6 +244,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 			labelMethod = MULTI;
 		else if (choice.equals(items2[1]))
 			labelMethod = LINEAR;
+		else if (choice.equals(items2[3]))
+			labelMethod = UNION_FIND;
 		else
 			labelMethod = MAPPED;
 		final int slicesPerChunk = (int) Math.floor(gd.getNextNumber());
@@ -243,36 +257,40 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		// calculate particle labelling time in ms
 		final long time = (System.nanoTime() - start) / 1000000;
 		IJ.log("Particle labelling finished in " + time + " ms");
-		int[][] particleLabels = (int[][]) result[1];
-		long[] particleSizes = getParticleSizes(particleLabels);
-		final int nParticles = particleSizes.length;
+		final int nParticles = ((long[]) result[2]).length;
+		// labels are final now, so keep them in the narrowest storage
+		final LabelVolume particleLabels = LabelVolume.pack(
+				(int[][]) result[1], imp.getWidth());
+		result[1] = null;
+
+		// thickness is measured in the same pass as the other statistics
+		ImagePlus thickImp = null;
+		if (doThickness) {
+			Thickness th = new Thickness();
+			thickImp = th.getLocalThickness(imp, false, doMask);
+		}
+		Object[] stats = getParticleStatistics(imp, particleLabels,
+				nParticles, doMoments || doAxesImage, thickImp, 0);
+		long[] particleSizes = (long[]) stats[0];
 		double[] volumes = getVolumes(imp, particleSizes);
-		double[][] centroids = getCentroids(imp, particleLabels, particleSizes);
-		int[][] limits = getParticleLimits(imp, particleLabels, nParticles);
+		double[][] centroids = (double[][]) stats[1];
+		int[][] limits = (int[][]) stats[2];
+		EigenvalueDecomposition[] eigens = (EigenvalueDecomposition[]) stats[3];
 
-		// set up resources for analysis
-		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
-		if (doSurfaceArea || doSurfaceVolume || doSurfaceImage || doEllipsoids
-				|| doFeret) {
-			surfacePoints = getSurfacePoints(imp, particleLabels, limits,
-					resampling, nParticles);
-		}
-		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
-		if (doMoments || doAxesImage) {
-			eigens = getEigens(imp, particleLabels, centroids);
-		}
 		// calculate dimensions
 		double[] surfaceAreas = new double[nParticles];
-		if (doSurfaceArea) {
-			surfaceAreas = getSurfaceArea(surfacePoints);
-		}
 		double[] ferets = new double[nParticles];
-		if (doFeret) {
-			ferets = getFerets(surfacePoints);
-		}
 		double[] surfaceVolumes = new double[nParticles];
-		if (doSurfaceVolume) {
-			surfaceVolumes = getSurfaceVolume(surfacePoints);
+		Object[][] ellipsoids = new Object[nParticles][10];
+		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
+		if (doSurfaceArea || doSurfaceVolume || doSurfaceImage || doEllipsoids
+				|| doFeret || doEllipsoidImage) {
+			surfacePoints = measureSurfaces(imp, particleLabels, limits,
+					resampling, particleSizes, doSurfaceArea ? surfaceAreas
+							: null, doFeret ? ferets : null, feretTolerance,
+					doSurfaceVolume ? surfaceVolumes : null, doEllipsoids
+							|| doEllipsoidImage ? ellipsoids : null,
+					doSurfaceImage);
 		}
 		double[][] eulerCharacters = new double[nParticles][3];
 		if (doEulerCharacters) {
@@ -281,9 +299,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 		double[][] thick = new double[nParticles][2];
 		if (doThickness) {
-			Thickness th = new Thickness();
-			ImagePlus thickImp = th.getLocalThickness(imp, false, doMask);
-			thick = getMeanStdDev(thickImp, particleLabels, particleSizes, 0);
+			thick = (double[][]) stats[4];
 			if (doThickImage) {
 				double max = 0;
 				for (int i = 1; i < nParticles; i++) {
@@ -296,11 +312,6 @@ public class ParticleCounter implements PlugIn, DialogListener {
 				IJ.run("Fire");
 			}
 		}
-		Object[][] ellipsoids = new Object[nParticles][10];
-		if (doEllipsoids || doEllipsoidImage) {
-			ellipsoids = getEllipsoids(surfacePoints);
-		}
-
 		// Show numerical results
 		ResultsTable rt = new ResultsTable();
 		for (int i = 1; i < volumes.length; i++) {
@@ -490,92 +501,310 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 	}
 
-	private Object[][] getEllipsoids(ArrayList<List<Point3f>> surfacePoints) {
-		Object[][] ellipsoids = new Object[surfacePoints.size()][];
-		int p = 0;
-		Iterator<List<Point3f>> partIter = surfacePoints.iterator();
-		while (partIter.hasNext()) {
-			List<Point3f> points = partIter.next();
-			if (points == null) {
-				p++;
-				continue;
-			}
-			Iterator<Point3f> pointIter = points.iterator();
-			double[][] coOrdinates = new double[points.size()][3];
-			int i = 0;
-			while (pointIter.hasNext()) {
-				Point3f point = pointIter.next();
-				coOrdinates[i][0] = point.x;
-				coOrdinates[i][1] = point.y;
-				coOrdinates[i][2] = point.z;
-				i++;
-			}
-			try {
-				ellipsoids[p] = FitEllipsoid.yuryPetrov(coOrdinates);
-			} catch (RuntimeException re) {
-				IJ.log("Could not fit ellipsoid to surface " + p);
-				ellipsoids[p] = null;
-			}
-			p++;
+	private Object[] getEllipsoid(List<Point3f> points, int p) {
+		double[][] coOrdinates = toArray(points);
+		try {
+			return FitEllipsoid.yuryPetrov(coOrdinates);
+		} catch (RuntimeException re) {
+			IJ.log("Could not fit ellipsoid to surface " + p);
+			return null;
 		}
-		return ellipsoids;
 	}
 
 	/**
-	 * Get the mean and standard deviation of pixel values above a minimum value
-	 * for each particle in a particle label work array
+	 * Measure every particle in a single slice-parallel pass through the
+	 * label array. Each thread accumulates voxel counts, bounding boxes,
+	 * first and second moments and value sums for the slices it takes into
+	 * its own primitive arrays, and the partial results are summed at the
+	 * end. If a full set of partial results per thread would take more than
+	 * MAX_STATISTICS_BYTES, the labels are striped across groups of threads
+	 * so that each thread holds partial results only for its group's labels.
 	 * 
 	 * @param imp
-	 *            Input image containing pixel values
+	 *            input image, used for calibration
 	 * @param particleLabels
 	 *            workArray containing particle labels
-	 * @param particleSizes
-	 *            array of particle sizes as pixel counts
+	 * @param nParticles
+	 *            greatest particle label + 1
+	 * @param doEigens
+	 *            true to calculate moments of inertia
+	 * @param valueImp
+	 *            32-bit image of values to summarise per particle, or null
 	 * @param threshold
-	 *            restrict calculation to values > i
-	 * @return array containing mean, std dev and max pixel values for each
-	 *         particle
+	 *            only values greater than threshold are summarised
+	 * @return Object[] containing long[] particle sizes as voxel counts;
+	 *         double[][] centroids in real units; int[][] x, y and z minima
+	 *         and maxima; EigenvalueDecomposition[] of each particle's inertia
+	 *         tensor, or null; double[][] mean, standard deviation and
+	 *         maximum of values, or null. The mean and standard deviation
+	 *         are normalised by particle size.
 	 */
-	private double[][] getMeanStdDev(ImagePlus imp, int[][] particleLabels,
-			long[] particleSizes, final int threshold) {
-		final int nParticles = particleSizes.length;
+	private Object[] getParticleStatistics(ImagePlus imp,
+			final LabelVolume particleLabels, final int nParticles,
+			boolean doEigens, ImagePlus valueImp, final double threshold) {
+		final int nThreads = Multithreader.newThreads().length;
+		// count, bounds, moments and values of every particle
+		final long setBytes = (long) nParticles
+				* (8 + 6 * 4 + 9 * 8 + (valueImp == null ? 0 : 4 * 8));
+		final long stripes = (nThreads * setBytes + MAX_STATISTICS_BYTES - 1)
+				/ MAX_STATISTICS_BYTES;
+		final int nStripes = (int) Math.max(1, Math.min(nThreads, stripes));
+		return getParticleStatistics(imp, particleLabels, nParticles,
+				doEigens, valueImp, threshold, nThreads, nStripes);
+	}
+
+	/**
+	 * Measure every particle with a given number of threads and label
+	 * stripes. Thread t accumulates only labels p with p % nStripes == t %
+	 * nStripes, and shares the slices of the stack with the other threads of
+	 * its stripe, so each stripe reads the whole label array once.
+	 * 
+	 * @param nThreads
+	 *            number of threads
+	 * @param nStripes
+	 *            number of label stripes, from 1 to nThreads
+	 * @see #getParticleStatistics(ImagePlus, LabelVolume, int, boolean,
+	 *      ImagePlus, double)
+	 */
+	Object[] getParticleStatistics(ImagePlus imp,
+			final LabelVolume particleLabels, final int nParticles,
+			boolean doEigens, ImagePlus valueImp, final double threshold,
+			final int nThreads, final int nStripes) {
+		if (nStripes < 1 || nStripes > nThreads)
+			throw new IllegalArgumentException("Number of stripes must be "
+					+ "from 1 to the number of threads");
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
-		final int wh = imp.getWidth() * imp.getHeight();
-		ImageStack stack = imp.getImageStack();
-		double[] sums = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			float[] pixels = (float[]) stack.getPixels(z + 1);
-			int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > threshold) {
-					sums[labelPixels[i]] += value;
+		final ImageStack valueStack = valueImp == null ? null : valueImp
+				.getImageStack();
+		// label p is entry p / nStripes of its stripe's arrays
+		final int nLocal = (nParticles + nStripes - 1) / nStripes;
+
+		Thread[] threads = Multithreader.newThreads(nThreads);
+		final long[][] counts = new long[nThreads][];
+		final int[][] bounds = new int[nThreads][];
+		// sum x, y, z, xx, yy, zz, xy, xz, yz in voxel units
+		final double[][] moments = new double[nThreads][];
+		// number, sum, sum of squares and maximum of values > threshold
+		final double[][] values = new double[nThreads][];
+		final AtomicInteger[] nextSlice = new AtomicInteger[nStripes];
+		for (int s = 0; s < nStripes; s++)
+			nextSlice[s] = new AtomicInteger(0);
+		for (int thread = 0; thread < nThreads; thread++) {
+			final int t = thread;
+			final int stripe = t % nStripes;
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final AtomicInteger ai = nextSlice[stripe];
+					long[] count = new long[nLocal];
+					int[] bound = new int[6 * nLocal];
+					for (int l = 0; l < nLocal; l++) {
+						bound[6 * l] = Integer.MAX_VALUE;
+						bound[6 * l + 2] = Integer.MAX_VALUE;
+						bound[6 * l + 4] = Integer.MAX_VALUE;
+					}
+					double[] moment = new double[9 * nLocal];
+					double[] value = valueStack == null ? null
+							: new double[4 * nLocal];
+					final int[] labels = new int[w * h];
+					for (int z = ai.getAndIncrement(); z < d; z = ai
+							.getAndIncrement()) {
+						IJ.showStatus("Measuring particles...");
+						IJ.showProgress(z, d);
+						particleLabels.getSlice(z, labels);
+						final float[] pixels = valueStack == null ? null
+								: (float[]) valueStack.getPixels(z + 1);
+						for (int y = 0; y < h; y++) {
+							final int index = y * w;
+							for (int x = 0; x < w; x++) {
+								final int label = labels[index + x];
+								int p = label;
+								if (nStripes > 1) {
+									if (label % nStripes != stripe)
+										continue;
+									p = label / nStripes;
+								}
+								count[p]++;
+								final int b = 6 * p;
+								if (x < bound[b])
+									bound[b] = x;
+								if (x > bound[b + 1])
+									bound[b + 1] = x;
+								if (y < bound[b + 2])
+									bound[b + 2] = y;
+								if (y > bound[b + 3])
+									bound[b + 3] = y;
+								if (z < bound[b + 4])
+									bound[b + 4] = z;
+								if (z > bound[b + 5])
+									bound[b + 5] = z;
+								final int m = 9 * p;
+								moment[m] += x;
+								moment[m + 1] += y;
+								moment[m + 2] += z;
+								moment[m + 3] += (double) x * x;
+								moment[m + 4] += (double) y * y;
+								moment[m + 5] += (double) z * z;
+								moment[m + 6] += (double) x * y;
+								moment[m + 7] += (double) x * z;
+								moment[m + 8] += (double) y * z;
+								if (pixels != null) {
+									final double v = pixels[index + x];
+									if (v > threshold) {
+										final int q = 4 * p;
+										value[q]++;
+										value[q + 1] += v;
+										value[q + 2] += v * v;
+										if (v > value[q + 3])
+											value[q + 3] = v;
+									}
+								}
+							}
+						}
+					}
+					counts[t] = count;
+					bounds[t] = bound;
+					moments[t] = moment;
+					values[t] = value;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		// reduce each stripe into its first thread's arrays
+		for (int t = nStripes; t < nThreads; t++) {
+			final int f = t % nStripes;
+			final long[] count = counts[f];
+			final int[] bound = bounds[f];
+			final double[] moment = moments[f];
+			final double[] value = values[f];
+			for (int l = 0; l < nLocal; l++) {
+				count[l] += counts[t][l];
+				final int b = 6 * l;
+				for (int i = 0; i < 6; i += 2) {
+					bound[b + i] = Math.min(bound[b + i], bounds[t][b + i]);
+					bound[b + i + 1] = Math.max(bound[b + i + 1],
+							bounds[t][b + i + 1]);
+				}
+			}
+			for (int i = 0; i < moment.length; i++)
+				moment[i] += moments[t][i];
+			if (value != null) {
+				for (int l = 0; l < nLocal; l++) {
+					final int q = 4 * l;
+					value[q] += values[t][q];
+					value[q + 1] += values[t][q + 1];
+					value[q + 2] += values[t][q + 2];
+					value[q + 3] = Math.max(value[q + 3], values[t][q + 3]);
+				}
+			}
+			counts[t] = null;
+			bounds[t] = null;
+			moments[t] = null;
+			values[t] = null;
+		}
+
+		// interleave the stripes back into label order
+		long[] count = counts[0];
+		int[] bound = bounds[0];
+		double[] moment = moments[0];
+		double[] value = values[0];
+		if (nStripes > 1) {
+			count = new long[nParticles];
+			bound = new int[6 * nParticles];
+			moment = new double[9 * nParticles];
+			value = valueStack == null ? null : new double[4 * nParticles];
+			for (int s = 0; s < nStripes; s++) {
+				for (int p = s, l = 0; p < nParticles; p += nStripes, l++) {
+					count[p] = counts[s][l];
+					System.arraycopy(bounds[s], 6 * l, bound, 6 * p, 6);
+					System.arraycopy(moments[s], 9 * l, moment, 9 * p, 9);
+					if (value != null)
+						System.arraycopy(values[s], 4 * l, value, 4 * p, 4);
 				}
+				counts[s] = null;
+				bounds[s] = null;
+				moments[s] = null;
+				values[s] = null;
 			}
 		}
-		double[][] meanStdDev = new double[nParticles][3];
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][0] = sums[p] / particleSizes[p];
+
+		Calibration cal = imp.getCalibration();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		double[][] centroids = new double[nParticles][3];
+		int[][] limits = new int[nParticles][6];
+		for (int p = 0; p < nParticles; p++) {
+			final int m = 9 * p;
+			centroids[p][0] = vW * moment[m] / count[p];
+			centroids[p][1] = vH * moment[m + 1] / count[p];
+			centroids[p][2] = vD * moment[m + 2] / count[p];
+			for (int i = 0; i < 6; i++)
+				limits[p][i] = bound[6 * p + i];
+			// unused labels get the same limits as a separate pass would
+			if (count[p] == 0) {
+				limits[p][1] = 0;
+				limits[p][3] = 0;
+				limits[p][5] = 0;
+			}
 		}
 
-		double[] sumSquares = new double[nParticles];
-		for (int z = 0; z < d; z++) {
-			float[] pixels = (float[]) stack.getPixels(z + 1);
-			int[] labelPixels = particleLabels[z];
-			for (int i = 0; i < wh; i++) {
-				final double value = pixels[i];
-				if (value > threshold) {
-					final int p = labelPixels[i];
-					final double residual = value - meanStdDev[p][0];
-					sumSquares[p] += residual * residual;
-					meanStdDev[p][2] = Math.max(meanStdDev[p][2], value);
-				}
+		EigenvalueDecomposition[] eigens = null;
+		if (doEigens) {
+			final double voxVhVd = (vH * vH + vD * vD) / 12;
+			final double voxVwVd = (vW * vW + vD * vD) / 12;
+			final double voxVhVw = (vH * vH + vW * vW) / 12;
+			eigens = new EigenvalueDecomposition[nParticles];
+			for (int p = 1; p < nParticles; p++) {
+				final int m = 9 * p;
+				final double n = count[p];
+				// central second moments from raw sums, in real units
+				final double sXX = vW * vW
+						* (moment[m + 3] - moment[m] * moment[m] / n);
+				final double sYY = vH * vH
+						* (moment[m + 4] - moment[m + 1] * moment[m + 1] / n);
+				final double sZZ = vD * vD
+						* (moment[m + 5] - moment[m + 2] * moment[m + 2] / n);
+				final double sXY = vW * vH
+						* (moment[m + 6] - moment[m] * moment[m + 1] / n);
+				final double sXZ = vW * vD
+						* (moment[m + 7] - moment[m] * moment[m + 2] / n);
+				final double sYZ = vH * vD
+						* (moment[m + 8] - moment[m + 1] * moment[m + 2] / n);
+				double[][] inertiaTensor = new double[3][3];
+				inertiaTensor[0][0] = sYY + sZZ + n * voxVhVd;
+				inertiaTensor[1][1] = sXX + sZZ + n * voxVwVd;
+				inertiaTensor[2][2] = sYY + sXX + n * voxVhVw;
+				inertiaTensor[0][1] = -sXY;
+				inertiaTensor[0][2] = -sXZ;
+				inertiaTensor[1][0] = -sXY;
+				inertiaTensor[1][2] = -sYZ;
+				inertiaTensor[2][0] = -sXZ;
+				inertiaTensor[2][1] = -sYZ;
+				Matrix inertiaTensorMatrix = new Matrix(inertiaTensor);
+				eigens[p] = new EigenvalueDecomposition(inertiaTensorMatrix);
 			}
 		}
-		for (int p = 1; p < nParticles; p++) {
-			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / particleSizes[p]);
+
+		double[][] meanStdDev = null;
+		if (value != null) {
+			meanStdDev = new double[nParticles][3];
+			for (int p = 1; p < nParticles; p++) {
+				final int q = 4 * p;
+				final double mean = value[q + 1] / count[p];
+				// sum of squared residuals of the summarised values
+				final double sumSquares = value[q + 2] - 2 * mean
+						* value[q + 1] + value[q] * mean * mean;
+				meanStdDev[p][0] = mean;
+				meanStdDev[p][1] = Math.sqrt(Math.max(0, sumSquares)
+						/ count[p]);
+				meanStdDev[p][2] = value[q + 3];
+			}
 		}
-		return meanStdDev;
+		Object[] stats = { count, centroids, limits, eigens, meanStdDev };
+		return stats;
 	}
 
 	/**
@@ -587,7 +816,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @param nParticles
 	 * @return
 	 */
-	private double[][] getEulerCharacter(ImagePlus imp, int[][] particleLabels,
+	private double[][] getEulerCharacter(ImagePlus imp,
+			LabelVolume particleLabels,
 			int[][] limits, int nParticles) {
 		Connectivity con = new Connectivity();
 		double[][] eulerCharacters = new double[nParticles][3];
@@ -614,106 +844,6 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		return nCavities;
 	}
 
-	/**
-	 * Get the minimum and maximum x, y and z coordinates of each particle
-	 * 
-	 * @param imp
-	 *            ImagePlus (used for stack size)
-	 * @param particleLabels
-	 *            work array containing labelled particles
-	 * @param nParticles
-	 *            number of particles in the stack
-	 * @return int[][] containing x, y and z minima and maxima.
-	 */
-	private int[][] getParticleLimits(ImagePlus imp, int[][] particleLabels,
-			int nParticles) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		int[][] limits = new int[nParticles][6];
-		for (int i = 0; i < nParticles; i++) {
-			limits[i][0] = Integer.MAX_VALUE; // x min
-			limits[i][1] = 0; // x max
-			limits[i][2] = Integer.MAX_VALUE; // y min
-			limits[i][3] = 0; // y max
-			limits[i][4] = Integer.MAX_VALUE; // z min
-			limits[i][5] = 0; // z max
-		}
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int i = particleLabels[z][index + x];
-					limits[i][0] = Math.min(limits[i][0], x);
-					limits[i][1] = Math.max(limits[i][1], x);
-					limits[i][2] = Math.min(limits[i][2], y);
-					limits[i][3] = Math.max(limits[i][3], y);
-					limits[i][4] = Math.min(limits[i][4], z);
-					limits[i][5] = Math.max(limits[i][5], z);
-				}
-			}
-		}
-		return limits;
-	}
-
-	private EigenvalueDecomposition[] getEigens(ImagePlus imp,
-			int[][] particleLabels, double[][] centroids) {
-		Calibration cal = imp.getCalibration();
-		final double vW = cal.pixelWidth;
-		final double vH = cal.pixelHeight;
-		final double vD = cal.pixelDepth;
-		final double voxVhVd = (vH * vH + vD * vD) / 12;
-		final double voxVwVd = (vW * vW + vD * vD) / 12;
-		final double voxVhVw = (vH * vH + vW * vW) / 12;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		final int nParticles = centroids.length;
-		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
-		double[][] momentTensors = new double[nParticles][6];
-		for (int z = 0; z < d; z++) {
-			IJ.showStatus("Calculating particle moments...");
-			IJ.showProgress(z, d);
-			final double zVd = z * vD;
-			for (int y = 0; y < h; y++) {
-				final double yVh = y * vH;
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int p = particleLabels[z][index + x];
-					if (p > 0) {
-						final double xVw = x * vW;
-						final double dx = xVw - centroids[p][0];
-						final double dy = yVh - centroids[p][1];
-						final double dz = zVd - centroids[p][2];
-						momentTensors[p][0] += dy * dy + dz * dz + voxVhVd; // Ixx
-						momentTensors[p][1] += dx * dx + dz * dz + voxVwVd; // Iyy
-						momentTensors[p][2] += dy * dy + dx * dx + voxVhVw; // Izz
-						momentTensors[p][3] += dx * dy; // Ixy
-						momentTensors[p][4] += dx * dz; // Ixz
-						momentTensors[p][5] += dy * dz; // Iyz
-					}
-				}
-			}
-			for (int p = 1; p < nParticles; p++) {
-				double[][] inertiaTensor = new double[3][3];
-				inertiaTensor[0][0] = momentTensors[p][0];
-				inertiaTensor[1][1] = momentTensors[p][1];
-				inertiaTensor[2][2] = momentTensors[p][2];
-				inertiaTensor[0][1] = -momentTensors[p][3];
-				inertiaTensor[0][2] = -momentTensors[p][4];
-				inertiaTensor[1][0] = -momentTensors[p][3];
-				inertiaTensor[1][2] = -momentTensors[p][5];
-				inertiaTensor[2][0] = -momentTensors[p][4];
-				inertiaTensor[2][1] = -momentTensors[p][5];
-				Matrix inertiaTensorMatrix = new Matrix(inertiaTensor);
-				EigenvalueDecomposition E = new EigenvalueDecomposition(
-						inertiaTensorMatrix);
-				eigens[p] = E;
-			}
-		}
-		return eigens;
-	}
-
 	/**
 	 * Get the maximum distances from the centroid in x, y, and z axes, and
 	 * transformed x, y and z axes
@@ -726,7 +856,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *         transformed distances respectively
 	 * 
 	 */
-	private Object[] getMaxDistances(ImagePlus imp, int[][] particleLabels,
+	private Object[] getMaxDistances(ImagePlus imp, LabelVolume particleLabels,
 			double[][] centroids, EigenvalueDecomposition[] E) {
 		Calibration cal = imp.getCalibration();
 		final double vW = cal.pixelWidth;
@@ -738,11 +868,13 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final int nParticles = centroids.length;
 		double[][] maxD = new double[nParticles][3];
 		double[][] maxDt = new double[nParticles][3];
+		int[] labels = new int[w * h];
 		for (int z = 0; z < d; z++) {
+			particleLabels.getSlice(z, labels);
 			for (int y = 0; y < h; y++) {
 				final int index = y * w;
 				for (int x = 0; x < w; x++) {
-					final int p = particleLabels[z][index + x];
+					final int p = labels[index + x];
 					if (p > 0) {
 						final double dX = x * vW - centroids[p][0];
 						final double dY = y * vH - centroids[p][1];
@@ -961,115 +1093,170 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		}
 	}
 
-	private double[] getSurfaceArea(ArrayList<List<Point3f>> surfacePoints) {
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		double[] surfaceAreas = new double[surfacePoints.size()];
-		int p = 0;
-		while (iter.hasNext()) {
-			List<Point3f> points = iter.next();
-			if (null != points) {
-				double surfaceArea = MeasureSurface.getSurfaceArea(points);
-				surfaceAreas[p] = surfaceArea;
+	/**
+	 * Mesh each particle and take every requested surface measurement from
+	 * the mesh while it is still in memory. Particles are shared between
+	 * threads largest first, so that big particles do not hold up the end of
+	 * the run, and meshes are discarded once measured unless they are needed
+	 * for display.
+	 * 
+	 * @param imp
+	 * @param particleLabels
+	 * @param limits
+	 * @param resampling
+	 * @param particleSizes
+	 * @param surfaceAreas
+	 *            filled with surface areas, or null to skip
+	 * @param ferets
+	 *            filled with Feret diameters, or null to skip
+	 * @param feretTolerance
+	 *            0 for the exact Feret diameter, or the maximum relative
+	 *            underestimate of a faster approximation
+	 * @param surfaceVolumes
+	 *            filled with enclosed volumes, or null to skip
+	 * @param ellipsoids
+	 *            filled with ellipsoid fits, or null to skip
+	 * @param keepMeshes
+	 *            true to return the meshes
+	 * @return list of meshes indexed by particle label, or an empty list if
+	 *         keepMeshes is false
+	 */
+	private ArrayList<List<Point3f>> measureSurfaces(final ImagePlus imp,
+			final LabelVolume particleLabels, final int[][] limits,
+			final int resampling, final long[] particleSizes,
+			final double[] surfaceAreas, final double[] ferets,
+			final double feretTolerance, final double[] surfaceVolumes,
+			final Object[][] ellipsoids, final boolean keepMeshes) {
+		final int nParticles = particleSizes.length;
+		final List<List<Point3f>> meshes = new ArrayList<List<Point3f>>(
+				nParticles);
+		for (int p = 0; p < nParticles; p++)
+			meshes.add(null);
+
+		// largest particles first
+		Integer[] order = new Integer[nParticles - 1];
+		for (int p = 1; p < nParticles; p++)
+			order[p - 1] = p;
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(particleSizes[b], particleSizes[a]);
 			}
-			p++;
+		});
+		final Integer[] queue = order;
+
+		if (ferets != null)
+			ferets[0] = Double.NaN;
+		final AtomicInteger ai = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < queue.length; i = ai
+							.getAndIncrement()) {
+						final int p = queue[i];
+						List<Point3f> points = getSurfacePoints(imp,
+								particleLabels, limits, resampling, p);
+						if (surfaceAreas != null)
+							surfaceAreas[p] = MeasureSurface
+									.getSurfaceArea(points);
+						if (ferets != null)
+							ferets[p] = getFeret(points, feretTolerance);
+						if (surfaceVolumes != null)
+							surfaceVolumes[p] = getSurfaceVolume(points);
+						if (ellipsoids != null)
+							ellipsoids[p] = getEllipsoid(points, p);
+						if (keepMeshes) {
+							synchronized (meshes) {
+								meshes.set(p, points);
+							}
+						}
+						IJ.showStatus("Measuring surfaces...");
+						IJ.showProgress(done.incrementAndGet(), queue.length);
+					}
+				}
+			});
 		}
-		return surfaceAreas;
+		Multithreader.startAndJoin(threads);
+
+		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
+		if (keepMeshes)
+			surfacePoints.addAll(meshes);
+		return surfacePoints;
 	}
 
-	private double[] getSurfaceVolume(ArrayList<List<Point3f>> surfacePoints) {
-		Iterator<List<Point3f>> iter = surfacePoints.iterator();
-		double[] surfaceVolumes = new double[surfacePoints.size()];
+	private double getSurfaceVolume(List<Point3f> points) {
 		final Color3f colour = new Color3f(0.0f, 0.0f, 0.0f);
-		int p = 0;
-		while (iter.hasNext()) {
-			IJ.showStatus("Calculating enclosed volume...");
-			List<Point3f> points = iter.next();
-			if (null != points) {
-				CustomTriangleMesh surface = new CustomTriangleMesh(points,
-						colour, 0.0f);
-				surfaceVolumes[p] = Math.abs(surface.getVolume());
-			}
-			p++;
-		}
-		return surfaceVolumes;
+		CustomTriangleMesh surface = new CustomTriangleMesh(points, colour,
+				0.0f);
+		return Math.abs(surface.getVolume());
 	}
 
+	/**
+	 * Mesh a single particle
+	 * 
+	 * @param imp
+	 * @param particleLabels
+	 * @param limits
+	 * @param resampling
+	 * @param p
+	 *            particle label
+	 * @return triangle mesh in calibrated image coordinates
+	 */
 	@SuppressWarnings("unchecked")
-	private ArrayList<List<Point3f>> getSurfacePoints(ImagePlus imp,
-			int[][] particleLabels, int[][] limits, int resampling,
-			int nParticles) {
+	private List<Point3f> getSurfacePoints(ImagePlus imp,
+			LabelVolume particleLabels, int[][] limits, int resampling, int p) {
 		Calibration cal = imp.getCalibration();
-		ArrayList<List<Point3f>> surfacePoints = new ArrayList<List<Point3f>>();
 		final boolean[] channels = { true, false, false };
-		for (int p = 0; p < nParticles; p++) {
-			IJ.showStatus("Getting surface meshes...");
-			IJ.showProgress(p, nParticles);
-			if (p > 0) {
-				ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels,
-						limits, resampling);
-				MCTriangulator mct = new MCTriangulator();
-				List<Point3f> points = mct.getTriangles(binaryImp, 128,
-						channels, resampling);
-
-				final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
-				final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
-				final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
-				Iterator<Point3f> iter = points.iterator();
-				while (iter.hasNext()) {
-					Point3f point = iter.next();
-					point.x += xOffset;
-					point.y += yOffset;
-					point.z += zOffset;
-				}
-				surfacePoints.add(points);
-				if (points.size() == 0) {
-					IJ.log("Particle " + p + " resulted in 0 surface points");
-				}
-			} else {
-				surfacePoints.add(null);
-			}
+		ImagePlus binaryImp = getBinaryParticle(p, imp, particleLabels, limits,
+				resampling);
+		MCTriangulator mct = new MCTriangulator();
+		List<Point3f> points = mct.getTriangles(binaryImp, 128, channels,
+				resampling);
+
+		final double xOffset = (limits[p][0] - 1) * cal.pixelWidth;
+		final double yOffset = (limits[p][2] - 1) * cal.pixelHeight;
+		final double zOffset = (limits[p][4] - 1) * cal.pixelDepth;
+		Iterator<Point3f> iter = points.iterator();
+		while (iter.hasNext()) {
+			Point3f point = iter.next();
+			point.x += xOffset;
+			point.y += yOffset;
+			point.z += zOffset;
 		}
-		return surfacePoints;
+		if (points.size() == 0) {
+			IJ.log("Particle " + p + " resulted in 0 surface points");
+		}
+		return points;
 	}
 
 	/**
-	 * Get the Feret diameter of a surface. Uses an inefficient brute-force
-	 * algorithm.
+	 * Get the Feret diameter of a surface
 	 * 
-	 * @param particleSurfaces
-	 * @return
+	 * @param surface
+	 * @param tolerance
+	 *            0 for the exact diameter, or the maximum relative
+	 *            underestimate of a faster approximation
+	 * @return Feret diameter
+	 * @see Feret
 	 */
-	private double[] getFerets(ArrayList<List<Point3f>> particleSurfaces) {
-		int nParticles = particleSurfaces.size();
-		double[] ferets = new double[nParticles];
-		ListIterator<List<Point3f>> it = particleSurfaces.listIterator();
+	private double getFeret(List<Point3f> surface, double tolerance) {
+		double[][] points = toArray(surface);
+		if (tolerance > 0)
+			return Feret.getDiameter(points, tolerance);
+		return Feret.getDiameter(points);
+	}
+
+	private double[][] toArray(List<Point3f> points) {
+		double[][] coOrdinates = new double[points.size()][3];
 		int i = 0;
-		Point3f a;
-		Point3f b;
-		List<Point3f> surface;
-		ListIterator<Point3f> ita;
-		ListIterator<Point3f> itb;
-		while (it.hasNext()) {
-			IJ.showStatus("Finding Feret diameter...");
-			IJ.showProgress(it.nextIndex(), nParticles);
-			surface = it.next();
-			if (surface == null) {
-				ferets[i] = Double.NaN;
-				i++;
-				continue;
-			}
-			ita = surface.listIterator();
-			while (ita.hasNext()) {
-				a = ita.next();
-				itb = surface.listIterator(ita.nextIndex());
-				while (itb.hasNext()) {
-					b = itb.next();
-					ferets[i] = Math.max(ferets[i], a.distance(b));
-				}
-			}
+		for (Point3f point : points) {
+			coOrdinates[i][0] = point.x;
+			coOrdinates[i][1] = point.y;
+			coOrdinates[i][2] = point.z;
 			i++;
 		}
-		return ferets;
+		return coOrdinates;
 	}
 
 	/**
@@ -1089,7 +1276,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @return
 	 */
 	private static ImagePlus getBinaryParticle(int p, ImagePlus imp,
-			int[][] particleLabels, int[][] limits, int padding) {
+			LabelVolume particleLabels, int[][] limits, int padding) {
 
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -1110,7 +1297,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 			for (int y = yMin; y <= yMax; y++) {
 				final int sourceIndex = y * w;
 				for (int x = xMin; x <= xMax; x++) {
-					if (particleLabels[z][sourceIndex + x] == p) {
+					if (particleLabels.get(z, sourceIndex + x) == p) {
 						slice[i] = (byte) (255 & 0xFF);
 					}
 					i++;
@@ -1137,7 +1324,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * @return ImagePlus with particle labels substituted with some value
 	 */
 	private ImagePlus displayParticleValues(ImagePlus imp,
-			int[][] particleLabels, double[] values, String title) {
+			LabelVolume particleLabels, double[] values, String title) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
 		final int d = imp.getImageStackSize();
@@ -1145,9 +1332,11 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		float[][] pL = new float[d][wh];
 		values[0] = 0; // don't colour the background
 		ImageStack stack = new ImageStack(w, h);
+		int[] labels = new int[wh];
 		for (int z = 0; z < d; z++) {
+			particleLabels.getSlice(z, labels);
 			for (int i = 0; i < wh; i++) {
-				final int p = particleLabels[z][i];
+				final int p = labels[i];
 				pL[z][i] = (float) values[p];
 			}
 			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1), pL[z]);
@@ -1164,42 +1353,6 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		return impOut;
 	}
 
-	/**
-	 * Get the centroids of all the particles in real units
-	 * 
-	 * @param imp
-	 * @param particleLabels
-	 * @param particleSizes
-	 * @return double[][] containing all the particles' centroids
-	 */
-	private double[][] getCentroids(ImagePlus imp, int[][] particleLabels,
-			long[] particleSizes) {
-		final int nParticles = particleSizes.length;
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-		double[][] sums = new double[nParticles][3];
-		for (int z = 0; z < d; z++) {
-			for (int y = 0; y < h; y++) {
-				final int index = y * w;
-				for (int x = 0; x < w; x++) {
-					final int particle = particleLabels[z][index + x];
-					sums[particle][0] += x;
-					sums[particle][1] += y;
-					sums[particle][2] += z;
-				}
-			}
-		}
-		Calibration cal = imp.getCalibration();
-		double[][] centroids = new double[nParticles][3];
-		for (int p = 0; p < nParticles; p++) {
-			centroids[p][0] = cal.pixelWidth * sums[p][0] / particleSizes[p];
-			centroids[p][1] = cal.pixelHeight * sums[p][1] / particleSizes[p];
-			centroids[p][2] = cal.pixelDepth * sums[p][2] / particleSizes[p];
-		}
-		return centroids;
-	}
-
 	private double[] getVolumes(ImagePlus imp, long[] particleSizes) {
 		Calibration cal = imp.getCalibration();
 		final double voxelVolume = cal.pixelWidth * cal.pixelHeight
@@ -1335,6 +1488,8 @@ public class ParticleCounter implements PlugIn, DialogListener {
 			joinStructures(imp, particleLabels, phase);
 		} else if (labelMethod == MAPPED) {
 			joinMappedStructures(imp, particleLabels, nParticles, phase);
+		} else if (labelMethod == UNION_FIND) {
+			joinUnionFind(imp, particleLabels, nParticles, phase);
 		}
 		filterParticles(imp, workArray, particleLabels, minVol, maxVol, phase);
 		if (doExclude)
@@ -2137,6 +2292,160 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		IJ.showStatus("LUT applied");
 	}
 
+	/**
+	 * Join touching structures by building a disjoint-set forest over the
+	 * initial labels. Each labelled voxel is united with its already-visited
+	 * neighbours (13 of 26 for foreground, 3 of 6 for background), so every
+	 * adjacent pair is seen exactly once. Slices are scanned concurrently: the
+	 * forest is a primitive int array whose links only ever point to smaller
+	 * labels and are updated with compare-and-set, so no stitching pass is
+	 * needed between slices and no Integers are boxed.
+	 * 
+	 * @param imp
+	 * @param particleLabels
+	 *            labels from firstIDAttribution, replaced in place with the
+	 *            minimal label of each connected structure
+	 * @param nParticles
+	 *            greatest initial label + 1
+	 * @param phase
+	 *            FORE or BACK
+	 */
+	private void joinUnionFind(ImagePlus imp, final int[][] particleLabels,
+			int nParticles, final int phase) {
+		IJ.showStatus("Joining structures (union find)...");
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final AtomicIntegerArray parent = new AtomicIntegerArray(
+				nParticles + 1);
+		for (int i = 0; i <= nParticles; i++)
+			parent.set(i, i);
+
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < d; z = ai
+							.getAndIncrement()) {
+						final int[] slice = particleLabels[z];
+						final int[] below = z > 0 ? particleLabels[z - 1]
+								: null;
+						for (int y = 0; y < h; y++) {
+							final int yw = y * w;
+							for (int x = 0; x < w; x++) {
+								final int centre = slice[yw + x];
+								if (centre == 0)
+									continue;
+								if (phase == FORE)
+									unionBackward26(parent, slice, below,
+											centre, x, y, w, h);
+								else
+									unionBackward6(parent, slice, below,
+											centre, x, y, w);
+							}
+						}
+						IJ.showProgress(z, d);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		// point every label straight at its root
+		int[] lut = new int[nParticles + 1];
+		for (int i = 0; i <= nParticles; i++)
+			lut[i] = find(parent, i);
+		applyLUT(particleLabels, lut, w, h, d);
+	}
+
+	/**
+	 * Unite centre with the labels of the 13 neighbours that precede (x, y)
+	 * in raster order: the 9 in the slice below and 4 in the current slice
+	 */
+	private void unionBackward26(AtomicIntegerArray parent, int[] slice,
+			int[] below, int centre, int x, int y, int w, int h) {
+		final int yw = y * w;
+		final boolean left = x > 0;
+		final boolean right = x < w - 1;
+		final boolean up = y > 0;
+		final boolean down = y < h - 1;
+		if (left)
+			union(parent, centre, slice[yw + x - 1]);
+		if (up) {
+			final int i = yw - w + x;
+			union(parent, centre, slice[i]);
+			if (left)
+				union(parent, centre, slice[i - 1]);
+			if (right)
+				union(parent, centre, slice[i + 1]);
+		}
+		if (below == null)
+			return;
+		for (int vY = up ? y - 1 : y; vY <= (down ? y + 1 : y); vY++) {
+			final int i = vY * w + x;
+			union(parent, centre, below[i]);
+			if (left)
+				union(parent, centre, below[i - 1]);
+			if (right)
+				union(parent, centre, below[i + 1]);
+		}
+	}
+
+	/**
+	 * Unite centre with the labels of its 3 face neighbours at x - 1, y - 1
+	 * and z - 1
+	 */
+	private void unionBackward6(AtomicIntegerArray parent, int[] slice,
+			int[] below, int centre, int x, int y, int w) {
+		final int i = y * w + x;
+		if (x > 0)
+			union(parent, centre, slice[i - 1]);
+		if (y > 0)
+			union(parent, centre, slice[i - w]);
+		if (below != null)
+			union(parent, centre, below[i]);
+	}
+
+	/**
+	 * Find the root of label a, halving the path on the way. Links only move
+	 * towards smaller labels, so a failed compare-and-set means another
+	 * thread already shortened the path and can be ignored.
+	 */
+	private static int find(AtomicIntegerArray parent, int a) {
+		int p = parent.get(a);
+		while (p != a) {
+			final int gp = parent.get(p);
+			if (gp != p)
+				parent.compareAndSet(a, p, gp);
+			a = gp;
+			p = parent.get(a);
+		}
+		return a;
+	}
+
+	/**
+	 * Merge the sets containing labels a and b by linking the larger root to
+	 * the smaller. Background (0) is ignored.
+	 */
+	private static void union(AtomicIntegerArray parent, int a, int b) {
+		if (b == 0 || a == b)
+			return;
+		while (true) {
+			a = find(parent, a);
+			b = find(parent, b);
+			if (a == b)
+				return;
+			if (a < b) {
+				final int t = a;
+				a = b;
+				b = t;
+			}
+			if (parent.compareAndSet(a, a, b))
+				return;
+		}
+	}
+
 	private boolean checkConsistence(int[] lut, ArrayList<HashSet<Integer>> map) {
 		final int l = lut.length;
 		Integer val = null;
@@ -2765,7 +3074,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 *            original image, used for image dimensions, calibration and
 	 *            titles
 	 */
-	private ImagePlus displayParticleLabels(int[][] particleLabels,
+	private ImagePlus displayParticleLabels(LabelVolume particleLabels,
 			ImagePlus imp) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
@@ -2773,10 +3082,12 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		final int wh = w * h;
 		ImageStack stack = new ImageStack(w, h);
 		double max = 0;
+		int[] labels = new int[wh];
 		for (int z = 0; z < d; z++) {
 			float[] slicePixels = new float[wh];
+			particleLabels.getSlice(z, labels);
 			for (int i = 0; i < wh; i++) {
-				slicePixels[i] = (float) particleLabels[z][i];
+				slicePixels[i] = (float) labels[i];
 				max = Math.max(max, slicePixels[i]);
 			}
 			stack.addSlice(imp.getImageStack().getSliceLabel(z + 1),
@@ -2805,10 +3116,12 @@ public class ParticleCounter implements PlugIn, DialogListener {
 	 * Set the value of this instance's labelMethod field
 	 * 
 	 * @param label
-	 *            one of ParticleCounter.MULTI or .LINEAR
+	 *            one of ParticleCounter.MULTI, .LINEAR, .MAPPED or
+	 *            .UNION_FIND
 	 */
 	public void setLabelMethod(int label) {
-		if (label != MULTI && label != LINEAR && label != MAPPED) {
+		if (label != MULTI && label != LINEAR && label != MAPPED
+				&& label != UNION_FIND) {
 			throw new IllegalArgumentException();
 		}
 		labelMethod = label;
@@ -2823,7 +3136,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		Vector<?> numbers = gd.getNumericFields();
 		// link algorithm choice to chunk size field
 		Choice choice = (Choice) choices.get(1);
-		TextField num = (TextField) numbers.get(5);
+		TextField num = (TextField) numbers.get(6);
 		if (choice.getSelectedItem().contentEquals("Multithreaded")) {
 			num.setEnabled(true);
 		} else {
@@ -2838,9 +3151,14 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		else
 			vvvBox.setEnabled(false);
 
+		// link Feret diameter to Feret tolerance
+		Checkbox feretBox = (Checkbox) checkboxes.get(2);
+		TextField tol = (TextField) numbers.get(3);
+		tol.setEnabled(feretBox.getState());
+
 		// link show stack 3d to volume resampling
 		Checkbox box = (Checkbox) checkboxes.get(16);
-		TextField numb = (TextField) numbers.get(4);
+		TextField numb = (TextField) numbers.get(5);
 		if (box.getState()) {
 			numb.setEnabled(true);
 		} else {
@@ -2849,7 +3167,7 @@ public class ParticleCounter implements PlugIn, DialogListener {
 		// link show surfaces, gradient choice and split value
 		Checkbox surfbox = (Checkbox) checkboxes.get(12);
 		Choice col = (Choice) choices.get(0);
-		TextField split = (TextField) numbers.get(3);
+		TextField split = (TextField) numbers.get(4);
 		if (!surfbox.getState()) {
 			col.setEnabled(false);
 			split.setEnabled(false);
@@ -27,6 +27,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 import org.doube.util.DialogModifier;
 import org.doube.util.ImageCheck;
+import org.doube.util.LabelVolume;
 import org.doube.util.Multithreader;
 import org.doube.util.UsageReporter;
 
@@ -76,7 +77,7 @@ public class Purify implements PlugIn, DialogListener {
 			return;
 		}
 		GenericDialog gd = new GenericDialog("Setup");
-		String[] items = { "Multithreaded", "Linear", "Mapped" };
+		String[] items = { "Multithreaded", "Linear", "Mapped", "Union find" };
 		gd.addChoice("Labelling algorithm", items, items[2]);
 		gd.addNumericField("Chunk Size", 4, 0, 4, "slices");
 		gd.addCheckbox("Performance Log", false);
@@ -92,6 +93,8 @@ public class Purify implements PlugIn, DialogListener {
 			labelMethod = ParticleCounter.MULTI;
 		else if (choice.equals(items[1]))
 			labelMethod = ParticleCounter.LINEAR;
+		else if (choice.equals(items[3]))
+			labelMethod = ParticleCounter.UNION_FIND;
 		else
 			labelMethod = ParticleCounter.MAPPED;
 		int slicesPerChunk = (int) Math.floor(gd.getNextNumber());
@@ -138,19 +141,27 @@ public class Purify implements PlugIn, DialogListener {
 		Object[] foregroundParticles = pc.getParticles(imp, slicesPerChunk, 0,
 				Double.POSITIVE_INFINITY, fg);
 		byte[][] workArray = (byte[][]) foregroundParticles[0];
-		int[][] particleLabels = (int[][]) foregroundParticles[1];
 		// index 0 is background particle's size...
-		long[] particleSizes = pc.getParticleSizes(particleLabels);
-		removeSmallParticles(workArray, particleLabels, particleSizes, fg);
+		long[] particleSizes = (long[]) foregroundParticles[2];
+		// compact the labels so that they are not held as ints while the
+		// background is labelled
+		LabelVolume labels = LabelVolume.pack(
+				(int[][]) foregroundParticles[1], imp.getWidth());
+		foregroundParticles = null;
+		removeSmallParticles(workArray, labels, particleSizes, fg);
+		labels = null;
 
 		final int bg = ParticleCounter.BACK;
 		Object[] backgroundParticles = pc.getParticles(imp, workArray,
 				slicesPerChunk, 0, Double.POSITIVE_INFINITY, bg);
-		particleLabels = (int[][]) backgroundParticles[1];
+		int[][] particleLabels = (int[][]) backgroundParticles[1];
 		particleSizes = pc.getParticleSizes(particleLabels);
 		touchEdges(imp, workArray, particleLabels, particleSizes, bg);
 		particleSizes = pc.getParticleSizes(particleLabels);
-		removeSmallParticles(workArray, particleLabels, particleSizes, bg);
+		backgroundParticles = null;
+		labels = LabelVolume.pack(particleLabels, imp.getWidth());
+		particleLabels = null;
+		removeSmallParticles(workArray, labels, particleSizes, bg);
 
 		ImageStack stack = new ImageStack(imp.getWidth(), imp.getHeight());
 		final int nSlices = workArray.length;
@@ -308,7 +319,7 @@ public class Purify implements PlugIn, DialogListener {
 	 * @return workArray
 	 */
 	private void removeSmallParticles(final byte[][] workArray,
-			final int[][] particleLabels, final long[] particleSizes,
+			final LabelVolume particleLabels, final long[] particleSizes,
 			final int phase) {
 		final int d = workArray.length;
 		final int wh = workArray[0].length;
@@ -327,14 +338,16 @@ public class Purify implements PlugIn, DialogListener {
 		for (int thread = 0; thread < threads.length; thread++) {
 			threads[thread] = new Thread(new Runnable() {
 				public void run() {
+					final int[] labels = new int[wh];
 					if (phase == fg) {
 						// go through work array and turn all
 						// smaller foreground particles into background (0)
 						for (int z = ai.getAndIncrement(); z < d; z = ai
 								.getAndIncrement()) {
+							particleLabels.getSlice(z, labels);
 							for (int i = 0; i < wh; i++) {
 								if (workArray[z][i] == fg) {
-									if (particleSizes[particleLabels[z][i]] < maxVoxCount) {
+									if (particleSizes[labels[i]] < maxVoxCount) {
 										workArray[z][i] = bg;
 									}
 								}
@@ -347,9 +360,10 @@ public class Purify implements PlugIn, DialogListener {
 						// smaller background particles into foreground
 						for (int z = ai.getAndIncrement(); z < d; z = ai
 								.getAndIncrement()) {
+							particleLabels.getSlice(z, labels);
 							for (int i = 0; i < wh; i++) {
 								if (workArray[z][i] == bg) {
-									if (particleSizes[particleLabels[z][i]] < maxVoxCount) {
+									if (particleSizes[labels[i]] < maxVoxCount) {
 										workArray[z][i] = fg;
 									}
 								}
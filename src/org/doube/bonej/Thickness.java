@@ -1,16 +1,22 @@
 package org.doube.bonej;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import ij.*;
 import ij.gui.GenericDialog;
 import ij.macro.Interpreter;
+import ij.measure.ResultsTable;
 import ij.plugin.PlugIn;
 import ij.plugin.frame.RoiManager;
 import ij.process.*;
 
+import org.doube.util.DistanceTransform;
+import org.doube.util.FloatVolume;
 import org.doube.util.ImageCheck;
+import org.doube.util.Multithreader;
 import org.doube.util.ResultInserter;
 import org.doube.util.RoiMan;
-import org.doube.util.StackStats;
+import org.doube.util.StreamingStats;
 import org.doube.util.UsageReporter;
 
 /* Bob Dougherty 8/10/2007
@@ -70,6 +76,15 @@ import org.doube.util.UsageReporter;
  */
 public class Thickness implements PlugIn {
 	// public static final int THRESHOLD = 128;
+	/** Number of ridge spheres handed to a thread at a time */
+	private static final int SPHERE_BATCH = 64;
+
+	/**
+	 * Working memory of getLocalThicknesses: a 32-bit distance map, ridge and
+	 * thickness map for each phase
+	 */
+	private static final long BYTES_PER_VOXEL_TOGETHER = 2 * 3 * 4;
+
 	private float[][] sNew;
 
 	public void run(String arg) {
@@ -99,6 +114,8 @@ public class Thickness implements PlugIn {
 		gd.addCheckbox("Graphic Result", true);
 		gd.addCheckbox("Use_ROI_Manager", false);
 		gd.addCheckbox("Mask thickness map", true);
+		gd.addCheckbox("Histogram", false);
+		gd.addNumericField("Slab_depth", 0, 0, 5, "slices (0 = whole stack)");
 		gd.addHelp("http://bonej.org/thickness");
 		gd.showDialog();
 		if (gd.wasCanceled()) {
@@ -109,28 +126,54 @@ public class Thickness implements PlugIn {
 		boolean doGraphic = gd.getNextBoolean();
 		boolean doRoi = gd.getNextBoolean();
 		boolean doMask = gd.getNextBoolean();
+		boolean doHistogram = gd.getNextBoolean();
+		final int slabDepth = (int) Math.max(0, gd.getNextNumber());
 
 		long startTime = System.currentTimeMillis();
 		String title = stripExtension(imp.getTitle());
 
 		RoiManager roiMan = RoiManager.getInstance();
+		// the maps themselves are only needed for display
+		final boolean keepMaps = doGraphic && !Interpreter.isBatchMode();
+		final double binWidth = imp.getCalibration().pixelWidth;
+		StreamingStats thStats = new StreamingStats(binWidth);
+		StreamingStats spStats = new StreamingStats(binWidth);
+		ImagePlus impLTC = null;
+		ImagePlus impLTCi = null;
+		// without ROI cropping both phases share the same input, and they
+		// may run together if there is memory for both at once
+		final boolean together = doThickness && doSpacing
+				&& !(doRoi && roiMan != null) && slabDepth == 0
+				&& hasMemoryForBothPhases(imp);
+		if (together) {
+			StreamingStats[] stats = { thStats, spStats };
+			ImagePlus[] impLTCs = getLocalThicknesses(imp, doMask, stats,
+					keepMaps);
+			impLTC = impLTCs[0];
+			impLTCi = impLTCs[1];
+		}
 		// calculate trabecular thickness (Tb.Th)
 		if (doThickness) {
 			boolean inverse = false;
-			ImagePlus impLTC = new ImagePlus();
-			if (doRoi && roiMan != null) {
-				ImageStack stack = RoiMan.cropStack(roiMan, imp.getStack(),
-						true, 0, 1);
-				ImagePlus crop = new ImagePlus(imp.getTitle(), stack);
-				crop.setCalibration(imp.getCalibration());
-				impLTC = getLocalThickness(crop, inverse, doMask);
-			} else
-				impLTC = getLocalThickness(imp, inverse, doMask);
-			impLTC.setTitle(title + "_Tb.Th");
-			impLTC.setCalibration(imp.getCalibration());
-			double[] stats = StackStats.meanStdDev(impLTC);
+			if (!together) {
+				if (doRoi && roiMan != null) {
+					ImageStack stack = RoiMan.cropStack(roiMan,
+							imp.getStack(), true, 0, 1);
+					ImagePlus crop = new ImagePlus(imp.getTitle(), stack);
+					crop.setCalibration(imp.getCalibration());
+					impLTC = getLocalThickness(crop, inverse, doMask,
+							slabDepth, thStats, keepMaps);
+				} else
+					impLTC = getLocalThickness(imp, inverse, doMask,
+							slabDepth, thStats, keepMaps);
+			}
+			double[] stats = thStats.meanStdDev();
 			insertResults(imp, stats, inverse);
-			if (doGraphic && !Interpreter.isBatchMode()) {
+			if (doHistogram)
+				showHistogram(imp, thStats, title + "_Tb.Th");
+			if (impLTC != null) {
+				impLTC.setTitle(title + "_Tb.Th");
+				impLTC.setCalibration(imp.getCalibration());
 				impLTC.show();
 				impLTC.setSlice(1);
 				impLTC.getProcessor().setMinAndMax(0, stats[2]);
@@ -139,21 +182,26 @@ public class Thickness implements PlugIn {
 		}
 		if (doSpacing) {
 			boolean inverse = true;
-			ImagePlus impLTCi = new ImagePlus();
-			if (doRoi && roiMan != null) {
-				ImageStack stack = RoiMan.cropStack(roiMan, imp.getStack(),
-						true, 255, 1);
-				ImagePlus crop = new ImagePlus(imp.getTitle(), stack);
-				crop.setCalibration(imp.getCalibration());
-				impLTCi = getLocalThickness(crop, inverse, doMask);
-			} else
-				impLTCi = getLocalThickness(imp, inverse, doMask);
+			if (!together) {
+				if (doRoi && roiMan != null) {
+					ImageStack stack = RoiMan.cropStack(roiMan,
+							imp.getStack(), true, 255, 1);
+					ImagePlus crop = new ImagePlus(imp.getTitle(), stack);
+					crop.setCalibration(imp.getCalibration());
+					impLTCi = getLocalThickness(crop, inverse, doMask,
+							slabDepth, spStats, keepMaps);
+				} else
+					impLTCi = getLocalThickness(imp, inverse, doMask,
+							slabDepth, spStats, keepMaps);
+			}
 			// check marrow cavity size (i.e. trabcular separation, Tb.Sp)
-			impLTCi.setTitle(title + "_Tb.Sp");
-			impLTCi.setCalibration(imp.getCalibration());
-			double[] stats = StackStats.meanStdDev(impLTCi);
+			double[] stats = spStats.meanStdDev();
 			insertResults(imp, stats, inverse);
-			if (doGraphic && !Interpreter.isBatchMode()) {
+			if (doHistogram)
+				showHistogram(imp, spStats, title + "_Tb.Sp");
+			if (impLTCi != null) {
+				impLTCi.setTitle(title + "_Tb.Sp");
+				impLTCi.setCalibration(imp.getCalibration());
 				impLTCi.show();
 				impLTCi.setSlice(1);
 				impLTCi.getProcessor().setMinAndMax(0, stats[2]);
@@ -169,6 +217,22 @@ public class Thickness implements PlugIn {
 		return;
 	}
 
+	/**
+	 * Check whether both phases' distance maps, ridges and thickness maps fit
+	 * in the free memory at the same time, as getLocalThicknesses needs.
+	 * Running the phases one after the other needs about half as much.
+	 * 
+	 * @param imp
+	 *            input image
+	 * @return true if Tb.Th and Tb.Sp can be computed together
+	 */
+	private static boolean hasMemoryForBothPhases(ImagePlus imp) {
+		final long voxels = (long) imp.getWidth() * imp.getHeight()
+				* imp.getImageStackSize();
+		final long free = IJ.maxMemory() - IJ.currentMemory();
+		return free > 0 && voxels * BYTES_PER_VOXEL_TOGETHER < free;
+	}
+
 	// Modified from ImageJ code by Wayne Rasband
 	String stripExtension(String name) {
 		if (name != null) {
@@ -181,8 +245,9 @@ public class Thickness implements PlugIn {
 
 	/**
 	 * <p>
-	 * Saito-Toriwaki algorithm for Euclidian Distance Transformation. Direct
-	 * application of Algorithm 1. Bob Dougherty 8/8/2006
+	 * Euclidean distance transformation, originally Saito-Toriwaki Algorithm
+	 * 1 by Bob Dougherty 8/8/2006 and now computed by {@link DistanceTransform}
+	 * in linear time per line.
 	 * </p>
 	 * 
 	 * <ul>
@@ -198,8 +263,7 @@ public class Thickness implements PlugIn {
 	 * 
 	 * <p>
 	 * This version assumes the input stack is already in memory, 8-bit, and
-	 * outputs to a new 32-bit stack. Versions that are more stingy with memory
-	 * may be forthcoming.
+	 * outputs to a new 32-bit stack. Distances are in voxel units.
 	 * </p>
 	 * 
 	 * @param imp
@@ -207,304 +271,12 @@ public class Thickness implements PlugIn {
 	 * 
 	 */
 	private float[][] geometryToDistanceMap(ImagePlus imp, boolean inv) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getStackSize();
-		int nThreads = Runtime.getRuntime().availableProcessors();
-
-		// Create references to input data
-		ImageStack stack = imp.getStack();
-		byte[][] data = new byte[d][];
-		for (int k = 0; k < d; k++)
-			data[k] = (byte[]) stack.getPixels(k + 1);
-
-		// Create 32 bit floating point stack for output, s. Will also use it
-		// for g in Transformation 1.
-		float[][] s = new float[d][];
-		for (int k = 0; k < d; k++) {
-			ImageProcessor ipk = new FloatProcessor(w, h);
-			s[k] = (float[]) ipk.getPixels();
-		}
-		float[] sk;
-		// Transformation 1. Use s to store g.
-		IJ.showStatus("EDT transformation 1/3");
-		Step1Thread[] s1t = new Step1Thread[nThreads];
-		for (int thread = 0; thread < nThreads; thread++) {
-			s1t[thread] = new Step1Thread(thread, nThreads, w, h, d, inv, s,
-					data);
-			s1t[thread].start();
-		}
-		try {
-			for (int thread = 0; thread < nThreads; thread++) {
-				s1t[thread].join();
-			}
-		} catch (InterruptedException ie) {
-			IJ.error("A thread was interrupted in step 1 .");
-		}
-		// Transformation 2. g (in s) -> h (in s)
-		IJ.showStatus("EDT transformation 2/3");
-		Step2Thread[] s2t = new Step2Thread[nThreads];
-		for (int thread = 0; thread < nThreads; thread++) {
-			s2t[thread] = new Step2Thread(thread, nThreads, w, h, d, s);
-			s2t[thread].start();
-		}
-		try {
-			for (int thread = 0; thread < nThreads; thread++) {
-				s2t[thread].join();
-			}
-		} catch (InterruptedException ie) {
-			IJ.error("A thread was interrupted in step 2 .");
-		}
-		// Transformation 3. h (in s) -> s
-		IJ.showStatus("EDT transformation 3/3");
-		Step3Thread[] s3t = new Step3Thread[nThreads];
-		for (int thread = 0; thread < nThreads; thread++) {
-			s3t[thread] = new Step3Thread(thread, nThreads, w, h, d, inv, s,
-					data);
-			s3t[thread].start();
-		}
-		try {
-			for (int thread = 0; thread < nThreads; thread++) {
-				s3t[thread].join();
-			}
-		} catch (InterruptedException ie) {
-			IJ.error("A thread was interrupted in step 3 .");
-		}
-		// Find the largest distance for scaling
-		// Also fill in the background values.
-		float distMax = 0;
-		final int wh = w * h;
-		float dist;
-		for (int k = 0; k < d; k++) {
-			sk = s[k];
-			for (int ind = 0; ind < wh; ind++) {
-				if (((data[k][ind] & 255) < 128) ^ inv) {
-					sk[ind] = 0;
-				} else {
-					dist = (float) Math.sqrt(sk[ind]);
-					sk[ind] = dist;
-					distMax = (dist > distMax) ? dist : distMax;
-				}
-			}
-		}
-		IJ.showProgress(1.0);
+		float[][] s = DistanceTransform.getDistanceMap(imp.getStack(), inv, 1,
+				1, 1);
 		IJ.showStatus("Done");
 		return s;
 	}
 
-	class Step1Thread extends Thread {
-		int thread, nThreads, w, h, d, thresh;
-		float[][] s;
-		byte[][] data;
-		boolean inv;
-
-		public Step1Thread(int thread, int nThreads, int w, int h, int d,
-				boolean inv, float[][] s, byte[][] data) {
-			this.thread = thread;
-			this.nThreads = nThreads;
-			this.w = w;
-			this.h = h;
-			this.d = d;
-			this.inv = inv;
-			this.data = data;
-			this.s = s;
-		}
-
-		public void run() {
-			final int width = this.w;
-			final int height = this.h;
-			final int depth = this.d;
-			final boolean inverse = inv;
-			float[] sk;
-			int n = width;
-			if (height > n)
-				n = height;
-			if (depth > n)
-				n = depth;
-			int noResult = 3 * (n + 1) * (n + 1);
-			boolean[] background = new boolean[n];
-			int test, min;
-			for (int k = thread; k < depth; k += nThreads) {
-				IJ.showProgress(k / (1. * depth));
-				sk = s[k];
-				final byte[] dk = data[k];
-				for (int j = 0; j < height; j++) {
-					final int wj = width * j;
-					for (int i = 0; i < width; i++) {
-						background[i] = ((dk[i + wj] & 255) < 128) ^ inverse;
-					}
-					for (int i = 0; i < width; i++) {
-						min = noResult;
-						for (int x = i; x < width; x++) {
-							if (background[x]) {
-								test = i - x;
-								test *= test;
-								min = test;
-								break;
-							}
-						}
-						for (int x = i - 1; x >= 0; x--) {
-							if (background[x]) {
-								test = i - x;
-								test *= test;
-								if (test < min)
-									min = test;
-								break;
-							}
-						}
-						sk[i + wj] = min;
-					}
-				}
-			}
-		}// run
-	}// Step1Thread
-
-	class Step2Thread extends Thread {
-		int thread, nThreads, w, h, d;
-		float[][] s;
-
-		public Step2Thread(int thread, int nThreads, int w, int h, int d,
-				float[][] s) {
-			this.thread = thread;
-			this.nThreads = nThreads;
-			this.w = w;
-			this.h = h;
-			this.d = d;
-			this.s = s;
-		}
-
-		public void run() {
-			final int width = this.w;
-			final int height = this.h;
-			final int depth = this.d;
-			float[] sk;
-			int n = width;
-			if (height > n)
-				n = height;
-			if (depth > n)
-				n = depth;
-			int noResult = 3 * (n + 1) * (n + 1);
-			int[] tempInt = new int[n];
-			int[] tempS = new int[n];
-			boolean nonempty;
-			int test, min, delta;
-			for (int k = thread; k < depth; k += nThreads) {
-				IJ.showProgress(k / (1. * depth));
-				sk = s[k];
-				for (int i = 0; i < width; i++) {
-					nonempty = false;
-					for (int j = 0; j < height; j++) {
-						tempS[j] = (int) sk[i + width * j];
-						if (tempS[j] > 0)
-							nonempty = true;
-					}
-					if (nonempty) {
-						for (int j = 0; j < height; j++) {
-							min = noResult;
-							delta = j;
-							for (int y = 0; y < height; y++) {
-								test = tempS[y] + delta * delta--;
-								if (test < min)
-									min = test;
-							}
-							tempInt[j] = min;
-						}
-						for (int j = 0; j < height; j++) {
-							sk[i + width * j] = tempInt[j];
-						}
-					}
-				}
-			}
-		}// run
-	}// Step2Thread
-
-	class Step3Thread extends Thread {
-		int thread, nThreads, w, h, d;
-		float[][] s;
-		byte[][] data;
-		boolean inv;
-
-		public Step3Thread(int thread, int nThreads, int w, int h, int d,
-				boolean inv, float[][] s, byte[][] data) {
-			this.thread = thread;
-			this.nThreads = nThreads;
-			this.w = w;
-			this.h = h;
-			this.d = d;
-			this.s = s;
-			this.data = data;
-			this.inv = inv;
-		}
-
-		public void run() {
-			final int width = this.w;
-			final int height = this.h;
-			final int depth = this.d;
-			final byte[][] daTa = this.data;
-			final boolean inverse = inv;
-			int zStart, zStop, zBegin, zEnd;
-			// float[] sk;
-			int n = width;
-			if (height > n)
-				n = height;
-			if (depth > n)
-				n = depth;
-			int noResult = 3 * (n + 1) * (n + 1);
-			int[] tempInt = new int[n];
-			int[] tempS = new int[n];
-			boolean nonempty;
-			int test, min, delta;
-			for (int j = thread; j < height; j += nThreads) {
-				final int wj = width * j;
-				IJ.showProgress(j / (1. * height));
-				for (int i = 0; i < width; i++) {
-					nonempty = false;
-					for (int k = 0; k < depth; k++) {
-						tempS[k] = (int) s[k][i + wj];
-						if (tempS[k] > 0)
-							nonempty = true;
-					}
-					if (nonempty) {
-						zStart = 0;
-						while ((zStart < (depth - 1)) && (tempS[zStart] == 0))
-							zStart++;
-						if (zStart > 0)
-							zStart--;
-						zStop = depth - 1;
-						while ((zStop > 0) && (tempS[zStop] == 0))
-							zStop--;
-						if (zStop < (depth - 1))
-							zStop++;
-
-						for (int k = 0; k < depth; k++) {
-							// Limit to the non-background to save time,
-							if (((daTa[k][i + wj] & 255) >= 128) ^ inverse) {
-								min = noResult;
-								zBegin = zStart;
-								zEnd = zStop;
-								if (zBegin > k)
-									zBegin = k;
-								if (zEnd < k)
-									zEnd = k;
-								delta = k - zBegin;
-								for (int z = zBegin; z <= zEnd; z++) {
-									test = tempS[z] + delta * delta--;
-									if (test < min)
-										min = test;
-									// min = (test < min) ? test : min;
-								}
-								tempInt[k] = min;
-							}
-						}
-						for (int k = 0; k < depth; k++) {
-							s[k][i + wj] = tempInt[k];
-						}
-					}
-				}
-			}
-		}
-	}
-
 	/**
 	 * <p>
 	 * DistanceMaptoDistanceRidge
@@ -535,11 +307,12 @@ public class Thickness implements PlugIn {
 	 * 
 	 * @param imp
 	 *            3D Distance map (32-bit stack)
+	 * @return distance ridge, with 0 everywhere off the ridge
 	 */
-	private void distanceMaptoDistanceRidge(ImagePlus imp, float[][] s) {
+	private float[][] distanceMaptoDistanceRidge(ImagePlus imp, float[][] s) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
-		final int d = imp.getStackSize();
+		final int d = s.length;
 		sNew = new float[d][];
 		for (int k = 0; k < d; k++) {
 			ImageProcessor ipk = new FloatProcessor(w, h);
@@ -674,8 +447,7 @@ public class Thickness implements PlugIn {
 			}// j
 		}// k
 		IJ.showStatus("Distance Ridge complete");
-		// replace work array s with result of the method, sNew
-		s = sNew;
+		return sNew;
 	}
 
 	/*
@@ -757,209 +529,141 @@ public class Thickness implements PlugIn {
 	 * <li>Version 3 July 31, 2007. Parallel processing version.</li>
 	 * <li>Version 3.1 Multiplies the output by 2 to conform with the definition
 	 * of local thickness</li>
+	 * <li>Version 4 Paints only the distance ridge, sorted by radius so that
+	 * the largest spheres are painted first.</li>
 	 * </ul>
 	 * 
 	 * @param imp
 	 */
-	private void distanceRidgetoLocalThickness(ImagePlus imp, float[][] s) {
+	private void distanceRidgetoLocalThickness(ImagePlus imp,
+			final float[][] s) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
-		final int d = imp.getStackSize();
-		float[] sk;
-		// Count the distance ridge points on each slice
-		int[] nRidge = new int[d];
-		int ind, nr, iR;
+		final int d = s.length;
+		// Count the distance ridge points at each squared radius
 		IJ.showStatus("Local Thickness: scanning stack ");
+		int rSqMax = 0;
+		int nRidge = 0;
 		for (int k = 0; k < d; k++) {
-			sk = s[k];
-			nr = 0;
-			for (int j = 0; j < h; j++) {
-				final int wj = w * j;
-				for (int i = 0; i < w; i++) {
-					ind = i + wj;
-					if (sk[ind] > 0)
-						nr++;
+			final float[] sk = s[k];
+			for (int ind = 0; ind < w * h; ind++) {
+				if (sk[ind] > 0) {
+					nRidge++;
+					final int rSquared = (int) (sk[ind] * sk[ind] + 0.5f);
+					if (rSquared > rSqMax)
+						rSqMax = rSquared;
 				}
 			}
-			nRidge[k] = nr;
 		}
-		int[][] iRidge = new int[d][];
-		int[][] jRidge = new int[d][];
-		float[][] rRidge = new float[d][];
-		// Pull out the distance ridge points
-		int[] iRidgeK, jRidgeK;
-		float[] rRidgeK;
-		float sMax = 0;
+		int[] start = new int[rSqMax + 2];
 		for (int k = 0; k < d; k++) {
-			nr = nRidge[k];
-			iRidge[k] = new int[nr];
-			jRidge[k] = new int[nr];
-			rRidge[k] = new float[nr];
-			sk = s[k];
-			iRidgeK = iRidge[k];
-			jRidgeK = jRidge[k];
-			rRidgeK = rRidge[k];
-			iR = 0;
+			final float[] sk = s[k];
+			for (int ind = 0; ind < w * h; ind++)
+				if (sk[ind] > 0)
+					start[rSqMax - (int) (sk[ind] * sk[ind] + 0.5f) + 1]++;
+		}
+		for (int r = 1; r < start.length; r++)
+			start[r] += start[r - 1];
+		// Pull out the distance ridge points, largest sphere first
+		final int[] iRidge = new int[nRidge];
+		final int[] jRidge = new int[nRidge];
+		final int[] kRidge = new int[nRidge];
+		final int[] rRidge = new int[nRidge];
+		for (int k = 0; k < d; k++) {
+			final float[] sk = s[k];
 			for (int j = 0; j < h; j++) {
 				final int wj = w * j;
 				for (int i = 0; i < w; i++) {
-					ind = i + wj;
+					final int ind = i + wj;
 					if (sk[ind] > 0) {
-						;
-						iRidgeK[iR] = i;
-						jRidgeK[iR] = j;
-						rRidgeK[iR++] = sk[ind];
-						if (sk[ind] > sMax)
-							sMax = sk[ind];
+						final int rSquared = (int) (sk[ind] * sk[ind] + 0.5f);
+						final int iR = start[rSqMax - rSquared]++;
+						iRidge[iR] = i;
+						jRidge[iR] = j;
+						kRidge[iR] = k;
+						rRidge[iR] = rSquared;
 						sk[ind] = 0;
 					}
 				}
 			}
 		}
-		int nThreads = Runtime.getRuntime().availableProcessors();
+		start = null;
+
+		/*
+		 * Paint each ridge point's sphere with its squared radius. Spheres
+		 * come off the queue in order of decreasing radius, so most voxels
+		 * reached by a small sphere have already been given their final value
+		 * and are passed over without taking a lock.
+		 */
+		final int nR = nRidge;
 		final Object[] resources = new Object[d];// For synchronization
-		for (int k = 0; k < d; k++) {
+		for (int k = 0; k < d; k++)
 			resources[k] = new Object();
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int first = ai.getAndAdd(SPHERE_BATCH); first < nR; first = ai
+							.getAndAdd(SPHERE_BATCH)) {
+						IJ.showProgress(first, nR);
+						final int last = Math.min(first + SPHERE_BATCH, nR);
+						for (int iR = first; iR < last; iR++)
+							paintSphere(s, w, h, d, iRidge[iR], jRidge[iR],
+									kRidge[iR], rRidge[iR], resources);
+					}
+				}
+			});
 		}
-		LTThread[] ltt = new LTThread[nThreads];
-		for (int thread = 0; thread < nThreads; thread++) {
-			ltt[thread] = new LTThread(thread, nThreads, w, h, d, nRidge, s,
-					iRidge, jRidge, rRidge, resources);
-			ltt[thread].start();
-		}
-		try {
-			for (int thread = 0; thread < nThreads; thread++) {
-				ltt[thread].join();
-			}
-		} catch (InterruptedException ie) {
-			IJ.error("A thread was interrupted .");
-		}
+		Multithreader.startAndJoin(threads);
 
 		// Fix the square values and apply factor of 2
 		IJ.showStatus("Local Thickness: square root ");
 		for (int k = 0; k < d; k++) {
-			sk = s[k];
-			for (int j = 0; j < h; j++) {
-				final int wj = w * j;
-				for (int i = 0; i < w; i++) {
-					ind = i + wj;
-					sk[ind] = (float) (2 * Math.sqrt(sk[ind]));
-				}
-			}
+			final float[] sk = s[k];
+			for (int ind = 0; ind < w * h; ind++)
+				sk[ind] = (float) (2 * Math.sqrt(sk[ind]));
 		}
 		IJ.showStatus("Local Thickness complete");
 		return;
 	}
 
-	class LTThread extends Thread {
-		int thread, nThreads, w, h, d, nR;
-		float[][] s;
-		int[] nRidge;
-		int[][] iRidge, jRidge;
-		float[][] rRidge;
-		Object[] resources;
-
-		public LTThread(int thread, int nThreads, int w, int h, int d,
-				int[] nRidge, float[][] s, int[][] iRidge, int[][] jRidge,
-				float[][] rRidge, Object[] resources) {
-			this.thread = thread;
-			this.nThreads = nThreads;
-			this.w = w;
-			this.h = h;
-			this.d = d;
-			this.s = s;
-			this.nRidge = nRidge;
-			this.iRidge = iRidge;
-			this.jRidge = jRidge;
-			this.rRidge = rRidge;
-			this.resources = resources;
+	/**
+	 * Raise every voxel within rSquared of (i, j, k) to at least rSquared.
+	 * Each row of the sphere is checked without a lock first, and the lock on
+	 * its slice is taken only if some voxel in the row needs raising.
+	 */
+	private static void paintSphere(float[][] s, int w, int h, int d, int i,
+			int j, int k, int rSquared, Object[] resources) {
+		final int rInt = (int) Math.sqrt(rSquared);
+		final int kStart = Math.max(0, k - rInt);
+		final int kStop = Math.min(d - 1, k + rInt);
+		final int jStart = Math.max(0, j - rInt);
+		final int jStop = Math.min(h - 1, j + rInt);
+		for (int k1 = kStart; k1 <= kStop; k1++) {
+			final int r1SquaredK = (k1 - k) * (k1 - k);
+			final float[] sk1 = s[k1];
+			for (int j1 = jStart; j1 <= jStop; j1++) {
+				final int r1SquaredJK = r1SquaredK + (j1 - j) * (j1 - j);
+				if (r1SquaredJK > rSquared)
+					continue;
+				final int half = (int) Math.sqrt(rSquared - r1SquaredJK);
+				final int widthJ1 = w * j1;
+				final int iStart = widthJ1 + Math.max(0, i - half);
+				final int iStop = widthJ1 + Math.min(w - 1, i + half);
+				int ind1 = iStart;
+				while (ind1 <= iStop && sk1[ind1] >= rSquared)
+					ind1++;
+				if (ind1 > iStop)
+					continue;
+				synchronized (resources[k1]) {
+					for (; ind1 <= iStop; ind1++)
+						if (sk1[ind1] < rSquared)
+							sk1[ind1] = rSquared;
+				}
+			}
 		}
-
-		public void run() {
-			final int width = this.w;
-			final int height = this.h;
-			final int depth = this.d;
-			final float[][] stack = this.s;
-			float[] sk1;// sk,sk1;
-			/*
-			 * Loop through ridge points. For each one, update the local
-			 * thickness for the points within its sphere.
-			 */
-			int rInt;
-			int iStart, iStop, jStart, jStop, kStart, kStop;
-			float r1SquaredK, r1SquaredJK, r1Squared, s1;
-			int rSquared;
-			for (int k = thread; k < depth; k += nThreads) {
-				IJ.showStatus("Local Thickness: processing slice " + (k + 1)
-						+ "/" + depth);
-				final int nR = nRidge[k];
-				final int[] iRidgeK = iRidge[k];
-				final int[] jRidgeK = jRidge[k];
-				final float[] rRidgeK = rRidge[k];
-				for (int iR = 0; iR < nR; iR++) {
-					final int i = iRidgeK[iR];
-					final int j = jRidgeK[iR];
-					final float r = rRidgeK[iR];
-					rSquared = (int) (r * r + 0.5f);
-					rInt = (int) r;
-					if (rInt < r)
-						rInt++;
-					iStart = i - rInt;
-					if (iStart < 0)
-						iStart = 0;
-					iStop = i + rInt;
-					if (iStop >= width)
-						iStop = width - 1;
-					jStart = j - rInt;
-					if (jStart < 0)
-						jStart = 0;
-					jStop = j + rInt;
-					if (jStop >= height)
-						jStop = height - 1;
-					kStart = k - rInt;
-					if (kStart < 0)
-						kStart = 0;
-					kStop = k + rInt;
-					if (kStop >= depth)
-						kStop = depth - 1;
-					for (int k1 = kStart; k1 <= kStop; k1++) {
-						r1SquaredK = (k1 - k) * (k1 - k);
-						sk1 = stack[k1];
-						for (int j1 = jStart; j1 <= jStop; j1++) {
-							final int widthJ1 = width * j1;
-							r1SquaredJK = r1SquaredK + (j1 - j) * (j1 - j);
-							if (r1SquaredJK <= rSquared) {
-								for (int i1 = iStart; i1 <= iStop; i1++) {
-									r1Squared = r1SquaredJK + (i1 - i)
-											* (i1 - i);
-									if (r1Squared <= rSquared) {
-										final int ind1 = i1 + widthJ1;
-										s1 = sk1[ind1];
-										if (rSquared > s1) {
-											/*
-											 * Get a lock on sk1 and check again
-											 * to make sure that another thread
-											 * has not increased sk1[ind1] to
-											 * something larger than rSquared. A
-											 * test shows that this may not be
-											 * required...
-											 */
-											synchronized (resources[k1]) {
-												s1 = sk1[ind1];
-												if (rSquared > s1) {
-													sk1[ind1] = rSquared;
-												}
-											}
-										}
-									}// if within sphere of DR point
-								}// i1
-							}// if k and j components within sphere of DR point
-						}// j1
-					}// k1
-				}// iR
-			}// k
-		}// run
-	}// LTThread
+	}
 
 	/**
 	 * <p>
@@ -981,13 +685,35 @@ public class Thickness implements PlugIn {
 	 * <li>August 10. Version 3 This version also multiplies the local thickness
 	 * by 2 to conform with the official definition of local thickness.</li>
 	 * </ul>
+	 * <p>
+	 * The final pass also calibrates the map, applies the optional mask and
+	 * adds each output voxel to stats, so that no further pass over the map
+	 * is needed to summarise it.
+	 * </p>
 	 * 
+	 * @param imp
+	 *            binary input image
+	 * @param s
+	 *            local thickness before clean-up
+	 * @param offset
+	 *            stack index of s[0], 0-based
+	 * @param inv
+	 *            true if calculating thickness of background
+	 * @param doMask
+	 *            true to zero voxels that are not in the measured phase
+	 * @param stats
+	 *            statistics to add to, or null
+	 * @param from
+	 *            first slice of s to add to stats
+	 * @param to
+	 *            slice of s after the last one added to stats
 	 */
 	private ImagePlus localThicknesstoCleanedUpLocalThickness(ImagePlus imp,
-			float[][] s) {
+			float[][] s, int offset, boolean inv, boolean doMask,
+			StreamingStats stats, int from, int to) {
 		final int w = imp.getWidth();
 		final int h = imp.getHeight();
-		final int d = imp.getStackSize();
+		final int d = s.length;
 		IJ.showStatus("Cleaning up local thickness...");
 		// Create 32 bit floating point stack for output, sNew.
 		ImageStack newStack = new ImageStack(w, h);
@@ -1031,26 +757,31 @@ public class Thickness implements PlugIn {
 				}// i
 			}// j
 		}// k
-		// Fix the negative values and double the results
+		/*
+		 * Fix the negative values and calibrate the pixel values to pixel
+		 * width so that thicknesses represent real units (not pixels). Trim
+		 * the one pixel overhang of the map by masking it with the input.
+		 */
+		final double vW = imp.getCalibration().pixelWidth;
+		final ImageStack stack = imp.getImageStack();
+		final int keepValue = inv ? 0 : 255;
 		for (int k = 0; k < d; k++) {
-			for (int j = 0; j < h; j++) {
-				final int wj = w * j;
-				for (int i = 0; i < w; i++) {
-					final int ind = i + wj;
-					sNew[k][ind] = (float) Math.abs(sNew[k][ind]);
-				}// i
-			}// j
-		}// k
+			final float[] skNew = sNew[k];
+			final byte[] mask = doMask ? (byte[]) stack.getPixels(offset + k
+					+ 1) : null;
+			final boolean addToStats = stats != null && k >= from && k < to;
+			for (int ind = 0; ind < w * h; ind++) {
+				float value = (float) (Math.abs(skNew[ind]) * vW);
+				if (mask != null && (mask[ind] & 0xff) != keepValue)
+					value = 0;
+				skNew[ind] = value;
+				if (addToStats)
+					stats.add(value);
+			}
+		}
 		IJ.showStatus("Clean Up Local Thickness complete");
 		String title = stripExtension(imp.getTitle());
 		ImagePlus impOut = new ImagePlus(title + "_CL", newStack);
-		final double vW = imp.getCalibration().pixelWidth;
-		// calibrate the pixel values to pixel width
-		// so that thicknesses represent real units (not pixels)
-		for (int z = 0; z < d; z++) {
-			impOut.setSlice(z + 1);
-			impOut.getProcessor().multiply(vW);
-		}
 		return impOut;
 	}
 
@@ -1304,6 +1035,30 @@ public class Thickness implements PlugIn {
 		return;
 	}
 
+	/**
+	 * Show a thickness histogram in its own results table, one row per bin
+	 * 
+	 * @param imp
+	 *            image the histogram was measured from, for its units
+	 * @param stats
+	 *            statistics holding the histogram
+	 * @param title
+	 *            table title
+	 */
+	private void showHistogram(ImagePlus imp, StreamingStats stats,
+			String title) {
+		final String units = imp.getCalibration().getUnits();
+		final double binWidth = stats.getBinWidth();
+		final long[] histogram = stats.getHistogram();
+		ResultsTable rt = new ResultsTable();
+		for (int i = 0; i < histogram.length; i++) {
+			rt.incrementCounter();
+			rt.addValue("Bin start (" + units + ")", i * binWidth);
+			rt.addValue("Count", histogram[i]);
+		}
+		rt.show(title + "_histogram");
+	}
+
 	/**
 	 * Get a local thickness map from an ImagePlus with optional masking
 	 * correction
@@ -1321,15 +1076,181 @@ public class Thickness implements PlugIn {
 	 */
 	public ImagePlus getLocalThickness(ImagePlus imp, boolean inv,
 			boolean doMask) {
+		return getLocalThickness(imp, inv, doMask, 0, null, true);
+	}
+
+	/**
+	 * Get a local thickness map, optionally working through the stack in
+	 * slabs
+	 * 
+	 * @see #getLocalThickness(ImagePlus, boolean, boolean, int,
+	 *      StreamingStats, boolean)
+	 */
+	public ImagePlus getLocalThickness(ImagePlus imp, boolean inv,
+			boolean doMask, int slabDepth) {
+		return getLocalThickness(imp, inv, doMask, slabDepth, null, true);
+	}
+
+	/**
+	 * <p>
+	 * Get a local thickness map and its summary statistics. The statistics
+	 * are gathered as the map is written, and the map itself may be dropped
+	 * as soon as it has been counted.
+	 * </p>
+	 * <p>
+	 * If slabDepth is positive the stack is processed in slabs of slabDepth
+	 * slices, for stacks whose working arrays do not fit in memory. The
+	 * distance map is computed once into a memory-mapped scratch file. Each
+	 * slab is then read back with a halo of slices on either side, as wide as
+	 * the largest sphere plus the two slices that clean-up looks through, so
+	 * that every sphere reaching the slab is painted and the stitched map is
+	 * identical to the one made in memory. Slabs should be deeper than the
+	 * largest sphere radius, or most of the work is repeated in the halos.
+	 * </p>
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @param inv
+	 *            false if you want the thickness of the foreground and true if
+	 *            you want the thickness of the background
+	 * @param doMask
+	 *            true to apply a masking operation to enforce the map to
+	 *            contain thickness values only at coordinates where there is a
+	 *            corresponding input pixel
+	 * @param slabDepth
+	 *            number of slices to process at a time; 0 processes the whole
+	 *            stack in memory
+	 * @param stats
+	 *            statistics to add the map's values to, or null
+	 * @param keepMap
+	 *            false to discard the map once it has been counted
+	 * @return 32-bit ImagePlus containing a local thickness map, or null if
+	 *         keepMap is false
+	 */
+	public ImagePlus getLocalThickness(ImagePlus imp, boolean inv,
+			boolean doMask, int slabDepth, StreamingStats stats,
+			boolean keepMap) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getStackSize();
+		if (!(new ImageCheck()).isVoxelIsotropic(imp, 1E-3)) {
+			IJ.log("Warning: voxels are anisotropic. Local thickness results will be inaccurate");
+		}
+		if (slabDepth < 1 || slabDepth >= d) {
+			float[][] s = geometryToDistanceMap(imp, inv);
+			return distanceMaptoLocalThickness(imp, s, inv, doMask, stats,
+					keepMap);
+		}
+		FloatVolume map = new FloatVolume(w, h, d, FloatVolume.MAPPED);
+		ImageStack stack = new ImageStack(w, h);
+		try {
+			final float rSqMax = DistanceTransform.getSquaredDistanceMap(
+					imp.getStack(), inv, 1, 1, 1, map);
+			final int reach = (int) Math.ceil(Math.sqrt(rSqMax));
+			for (int z0 = 0; z0 < d; z0 += slabDepth) {
+				final int z1 = Math.min(d, z0 + slabDepth);
+				// clean-up looks 2 slices either side of an output slice
+				final int c0 = Math.max(0, z0 - 2);
+				final int c1 = Math.min(d, z1 + 2);
+				// centres of all spheres that reach the clean-up slices
+				final int l0 = Math.max(0, c0 - reach);
+				final int l1 = Math.min(d, c1 + reach);
+				IJ.showStatus("Local thickness: slices " + (z0 + 1) + "-"
+						+ z1 + "/" + d);
+				float[][] s = new float[l1 - l0][w * h];
+				for (int z = l0; z < l1; z++)
+					map.get(z, 0, s[z - l0], 0, w * h);
+				DistanceTransform.sqrt(s);
+				s = distanceMaptoDistanceRidge(imp, s);
+				distanceRidgetoLocalThickness(imp, s);
+				float[][] c = new float[c1 - c0][];
+				System.arraycopy(s, c0 - l0, c, 0, c1 - c0);
+				s = null;
+				ImageStack slab = localThicknesstoCleanedUpLocalThickness(imp,
+						c, c0, inv, doMask, stats, z0 - c0, z1 - c0)
+						.getStack();
+				if (keepMap)
+					for (int z = z0; z < z1; z++)
+						stack.addSlice(null, slab.getPixels(z - c0 + 1));
+			}
+		} finally {
+			map.dispose();
+		}
+		sNew = null;
+		if (!keepMap)
+			return null;
+		return new ImagePlus(stripExtension(imp.getTitle()) + "_CL", stack);
+	}
+
+	/**
+	 * Get the local thickness maps of the foreground and of the background
+	 * together
+	 * 
+	 * @see #getLocalThicknesses(ImagePlus, boolean, StreamingStats[],
+	 *      boolean)
+	 */
+	public ImagePlus[] getLocalThicknesses(ImagePlus imp, boolean doMask) {
+		return getLocalThicknesses(imp, doMask, null, true);
+	}
+
+	/**
+	 * Get the local thickness maps of the foreground and of the background
+	 * together. Both distance maps are made in one pass over the input, then
+	 * the ridge, local thickness and clean-up steps of the two phases run at
+	 * the same time.
+	 * 
+	 * @param imp
+	 *            Binary ImagePlus
+	 * @param doMask
+	 *            true to apply a masking operation to enforce the maps to
+	 *            contain thickness values only at coordinates where there is a
+	 *            corresponding input pixel
+	 * @param stats
+	 *            statistics to add the foreground and background maps' values
+	 *            to, or null
+	 * @param keepMaps
+	 *            false to discard the maps once they have been counted
+	 * @return 32-bit ImagePlus[2] containing the local thickness maps of the
+	 *         foreground (Tb.Th) and of the background (Tb.Sp), which are
+	 *         null if keepMaps is false
+	 */
+	public ImagePlus[] getLocalThicknesses(final ImagePlus imp,
+			final boolean doMask, final StreamingStats[] stats,
+			final boolean keepMaps) {
 		if (!(new ImageCheck()).isVoxelIsotropic(imp, 1E-3)) {
 			IJ.log("Warning: voxels are anisotropic. Local thickness results will be inaccurate");
 		}
-		float[][] s = geometryToDistanceMap(imp, inv);
-		distanceMaptoDistanceRidge(imp, s);
+		final float[][][] maps = DistanceTransform.getDistanceMaps(
+				imp.getStack(), 1, 1, 1);
+		final ImagePlus[] impLTCs = new ImagePlus[2];
+		Thread[] threads = new Thread[2];
+		for (int p = 0; p < 2; p++) {
+			final int phase = p;
+			threads[p] = new Thread(new Runnable() {
+				public void run() {
+					// each phase needs its own working arrays
+					impLTCs[phase] = new Thickness()
+							.distanceMaptoLocalThickness(imp, maps[phase],
+									phase == 1, doMask,
+									stats == null ? null : stats[phase],
+									keepMaps);
+					maps[phase] = null;
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		return impLTCs;
+	}
+
+	private ImagePlus distanceMaptoLocalThickness(ImagePlus imp, float[][] s,
+			boolean inv, boolean doMask, StreamingStats stats, boolean keepMap) {
+		s = distanceMaptoDistanceRidge(imp, s);
 		distanceRidgetoLocalThickness(imp, s);
-		ImagePlus impLTC = localThicknesstoCleanedUpLocalThickness(imp, s);
-		if (doMask)
-			impLTC = trimOverhang(imp, impLTC, inv);
+		ImagePlus impLTC = localThicknesstoCleanedUpLocalThickness(imp, s, 0,
+				inv, doMask, stats, 0, s.length);
+		sNew = null;
+		if (!keepMap)
+			return null;
 		return impLTC;
 	}
 
@@ -1348,43 +1269,4 @@ public class Thickness implements PlugIn {
 	public ImagePlus getLocalThickness(ImagePlus imp, boolean inv) {
 		return getLocalThickness(imp, inv, false);
 	}
-
-	/**
-	 * Reduce error in thickness quantitation by trimming the one pixel overhang
-	 * in the thickness map
-	 * 
-	 * @param imp
-	 *            Binary input image
-	 * @param impLTC
-	 *            Thickness map
-	 * @param inv
-	 *            true if calculating thickness of background, false for
-	 *            foreground
-	 * @return Thickness map with pixels masked by input image
-	 */
-	private ImagePlus trimOverhang(ImagePlus imp, ImagePlus impLTC, boolean inv) {
-		final int w = imp.getWidth();
-		final int h = imp.getHeight();
-		final int d = imp.getImageStackSize();
-
-		final ImageStack stack = imp.getImageStack();
-		final ImageStack mapStack = impLTC.getImageStack();
-
-		final int keepValue = inv ? 0 : 255;
-		ImageProcessor ip = new ByteProcessor(w, h);
-		ImageProcessor map = new FloatProcessor(w, h);
-		for (int z = 1; z <= d; z++) {
-			IJ.showStatus("Masking thickness map...");
-			IJ.showProgress(z, d);
-			ip = stack.getProcessor(z);
-			map = mapStack.getProcessor(z);
-			for (int y = 0; y < h; y++) {
-				for (int x = 0; x < w; x++) {
-					if (ip.get(x, y) != keepValue)
-						map.set(x, y, 0);
-				}
-			}
-		}
-		return impLTC;
-	}
-}
\ No newline at end of file
+}
@@ -66,6 +66,12 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 	/** Number of cycles of dilation to apply */
 	private int nDilates = 0;
 
+	/**
+	 * Calculate connectivity of the raw thresholded image with an incremental
+	 * Euler sweep, skipping purification, erosion and dilation
+	 */
+	private boolean incremental = false;
+
 	public void run(String arg) {
 		if (!ImageCheck.checkEnvironment())
 			return;
@@ -254,7 +260,9 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 
 	/**
 	 * Calculate connectivity after threshold-purify-erode-purify-dilate for
-	 * several threshold values.
+	 * several threshold values. In incremental mode, connectivity of the
+	 * thresholded image is calculated directly for all thresholds in a single
+	 * sweep.
 	 * 
 	 * @param imp2
 	 * @param testThreshold
@@ -286,6 +294,16 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 			stack2.addSlice(stack.getSliceLabel(z), ip2);
 		}
 
+		if (incremental) {
+			ImagePlus imp3 = new ImagePlus("Subvolume", stack2);
+			imp3.setCalibration(imp2.getCalibration());
+			Connectivity con = new Connectivity();
+			double[] deltaChi = con.getSumEulerSweep(imp3, testThreshold)[1];
+			for (int i = 0; i < nTests; i++)
+				conns[i] = con.getConnectivity(deltaChi[i]);
+			return conns;
+		}
+
 		ImagePlus imp3 = new ImagePlus();
 		for (int i = 0; i < nTests; i++) {
 			// apply threshold
@@ -363,6 +381,8 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 		gd.addNumericField("Subvolume Size", subVolume, 0);
 		gd.addNumericField("Erosion Cycles", nErodes, 0);
 		gd.addNumericField("Dilation Cycles", nDilates, 0);
+		gd.addCheckbox("Incremental (no purify, erode or dilate)",
+				incremental);
 		gd.addHelp("http://bonej.org/threshold");
 		gd.addDialogListener(this);
 		gd.showDialog();
@@ -383,6 +403,7 @@ public class ThresholdMinConn implements PlugIn, DialogListener {
 			subVolume = (int) Math.floor(gd.getNextNumber());
 			nErodes = (int) Math.floor(gd.getNextNumber());
 			nDilates = (int) Math.floor(gd.getNextNumber());
+			incremental = gd.getNextBoolean();
 			return true;
 		}
 	}
@@ -0,0 +1,397 @@
+package org.doube.geometry;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Vertices of the 3D convex hull of a point set, by the Quickhull algorithm.
+ * </p>
+ * <p>
+ * Faces are kept in flat, growable primitive arrays: three vertex indices,
+ * three neighbour indices (the face across edge 0-1, 1-2 and 2-0), a plane
+ * and a linked list of the points that lie outside the face. Vertices are
+ * ordered counter-clockwise when seen from outside.
+ * </p>
+ *
+ * @see <p>
+ *      Barber CB, Dobkin DP, Huhdanpaa H (1996) The Quickhull algorithm for
+ *      convex hulls. ACM Trans Math Softw 22: 469-483. <a
+ *      href="http://dx.doi.org/10.1145/235815.235821"
+ *      >doi:10.1145/235815.235821</a>
+ *      </p>
+ */
+public class ConvexHull {
+
+	private final double[][] points;
+
+	private final int nPoints;
+
+	/** Tolerance below which a point is considered to lie on a plane */
+	private double epsilon;
+
+	private int nFaces;
+
+	private int[] vertices;
+
+	private int[] neighbours;
+
+	/** Face planes as (nx, ny, nz, offset) */
+	private double[] planes;
+
+	private boolean[] alive;
+
+	/** First outside point of each face, or -1 */
+	private int[] outsideHead;
+
+	/** Next point in the same outside list, or -1 */
+	private int[] nextOutside;
+
+	/** Scratch: horizon faces indexed by their first and second vertex */
+	private int[] byStart, byEnd, horizonStamp;
+
+	private int iteration = 0;
+
+	private ConvexHull(double[][] points) {
+		this.points = points;
+		this.nPoints = points.length;
+	}
+
+	/**
+	 * Find the points that are vertices of the convex hull
+	 *
+	 * @param points
+	 *            double[n][3] containing n (x, y, z) coordinates
+	 * @return indices into points of the hull vertices, in ascending order.
+	 *         If the points are coplanar, collinear or fewer than 4, no hull
+	 *         can be built and all indices are returned.
+	 * @throws IllegalStateException
+	 *             if rounding error leaves the hull inconsistent
+	 */
+	public static int[] getHullVertices(double[][] points) {
+		ConvexHull hull = new ConvexHull(points);
+		if (!hull.build()) {
+			int[] all = new int[points.length];
+			for (int i = 0; i < all.length; i++)
+				all[i] = i;
+			return all;
+		}
+		return hull.collectVertices();
+	}
+
+	private boolean build() {
+		if (nPoints < 4)
+			return false;
+		// tolerance from Barber et al. (1996)
+		double[] maxAbs = new double[3];
+		for (int i = 0; i < nPoints; i++)
+			for (int j = 0; j < 3; j++)
+				maxAbs[j] = Math.max(maxAbs[j], Math.abs(points[i][j]));
+		epsilon = 3 * (maxAbs[0] + maxAbs[1] + maxAbs[2]) * Math.ulp(1.0);
+
+		int[] simplex = initialSimplex();
+		if (simplex == null)
+			return false;
+
+		final int capacity = 64;
+		vertices = new int[3 * capacity];
+		neighbours = new int[3 * capacity];
+		planes = new double[4 * capacity];
+		alive = new boolean[capacity];
+		outsideHead = new int[capacity];
+		nextOutside = new int[nPoints];
+		byStart = new int[nPoints];
+		byEnd = new int[nPoints];
+		horizonStamp = new int[nPoints];
+
+		// orient the tetrahedron so that all faces point outwards
+		final int a = simplex[0], b = simplex[1], c = simplex[2], d = simplex[3];
+		int f0, f1, f2, f3;
+		if (distance(a, b, c, d) < 0) {
+			f0 = addFace(a, b, c);
+			f1 = addFace(a, d, b);
+			f2 = addFace(b, d, c);
+			f3 = addFace(c, d, a);
+			link(f0, 0, f1, 2);
+			link(f0, 1, f2, 2);
+			link(f0, 2, f3, 2);
+			link(f1, 0, f3, 1);
+			link(f1, 1, f2, 0);
+			link(f2, 1, f3, 0);
+		} else {
+			f0 = addFace(a, c, b);
+			f1 = addFace(a, b, d);
+			f2 = addFace(b, c, d);
+			f3 = addFace(c, a, d);
+			link(f0, 0, f3, 0);
+			link(f0, 1, f2, 0);
+			link(f0, 2, f1, 0);
+			link(f1, 1, f2, 2);
+			link(f1, 2, f3, 1);
+			link(f2, 1, f3, 2);
+		}
+
+		Arrays.fill(nextOutside, -1);
+		for (int p = 0; p < nPoints; p++) {
+			if (p == a || p == b || p == c || p == d)
+				continue;
+			for (int f = f0; f <= f3; f++) {
+				if (distance(f, p) > epsilon) {
+					nextOutside[p] = outsideHead[f];
+					outsideHead[f] = p;
+					break;
+				}
+			}
+		}
+
+		int[] stack = new int[64];
+		int[] visible = new int[64];
+		int[] horizonFace = new int[64];
+		int[] horizonEdge = new int[64];
+		boolean added = true;
+		while (added) {
+			added = false;
+			for (int f = 0; f < nFaces; f++) {
+				if (!alive[f] || outsideHead[f] < 0)
+					continue;
+				added = true;
+				// furthest outside point is the eye
+				int eye = -1;
+				double max = -1;
+				for (int p = outsideHead[f]; p >= 0; p = nextOutside[p]) {
+					final double dist = distance(f, p);
+					if (dist > max) {
+						max = dist;
+						eye = p;
+					}
+				}
+
+				// depth-first search for faces visible from the eye,
+				// collecting the edges of the horizon
+				int nVisible = 0, nHorizon = 0, top = 0;
+				alive[f] = false;
+				stack[top++] = f;
+				while (top > 0) {
+					final int g = stack[--top];
+					if (nVisible == visible.length)
+						visible = Arrays.copyOf(visible, 2 * nVisible);
+					visible[nVisible++] = g;
+					for (int e = 0; e < 3; e++) {
+						final int n = neighbours[3 * g + e];
+						if (!alive[n])
+							continue;
+						if (distance(n, eye) > epsilon) {
+							alive[n] = false;
+							if (top == stack.length)
+								stack = Arrays.copyOf(stack, 2 * top);
+							stack[top++] = n;
+						} else {
+							if (nHorizon == horizonFace.length) {
+								horizonFace = Arrays.copyOf(horizonFace,
+										2 * nHorizon);
+								horizonEdge = Arrays.copyOf(horizonEdge,
+										2 * nHorizon);
+							}
+							horizonFace[nHorizon] = g;
+							horizonEdge[nHorizon] = e;
+							nHorizon++;
+						}
+					}
+				}
+				// cone of new faces from the horizon to the eye
+				iteration++;
+				final int firstNew = nFaces;
+				for (int h = 0; h < nHorizon; h++) {
+					final int g = horizonFace[h];
+					final int e = horizonEdge[h];
+					final int v0 = vertices[3 * g + e];
+					final int v1 = vertices[3 * g + (e + 1) % 3];
+					if (horizonStamp[v0] == iteration)
+						throw new IllegalStateException(
+								"Convex hull horizon is not a simple loop");
+					horizonStamp[v0] = iteration;
+					final int n = neighbours[3 * g + e];
+					final int nf = addFace(v0, v1, eye);
+					byStart[v0] = nf;
+					byEnd[v1] = nf;
+					for (int ne = 0; ne < 3; ne++) {
+						if (neighbours[3 * n + ne] == g) {
+							link(nf, 0, n, ne);
+							break;
+						}
+					}
+				}
+				for (int nf = firstNew; nf < nFaces; nf++) {
+					final int v0 = vertices[3 * nf];
+					final int v1 = vertices[3 * nf + 1];
+					if (horizonStamp[v1] != iteration)
+						throw new IllegalStateException(
+								"Convex hull horizon is not closed");
+					neighbours[3 * nf + 1] = byStart[v1];
+					neighbours[3 * nf + 2] = byEnd[v0];
+				}
+
+				// hand the orphaned outside points to the new faces
+				for (int v = 0; v < nVisible; v++) {
+					final int g = visible[v];
+					int p = outsideHead[g];
+					outsideHead[g] = -1;
+					while (p >= 0) {
+						final int next = nextOutside[p];
+						nextOutside[p] = -1;
+						if (p != eye) {
+							for (int nf = firstNew; nf < nFaces; nf++) {
+								if (distance(nf, p) > epsilon) {
+									nextOutside[p] = outsideHead[nf];
+									outsideHead[nf] = p;
+									break;
+								}
+							}
+						}
+						p = next;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Choose 4 well-separated, non-coplanar points
+	 *
+	 * @return indices of the 4 points, or null if the set is degenerate
+	 */
+	private int[] initialSimplex() {
+		// extreme points along each axis
+		int[] extremes = new int[6];
+		for (int i = 0; i < nPoints; i++) {
+			for (int j = 0; j < 3; j++) {
+				if (points[i][j] < points[extremes[2 * j]][j])
+					extremes[2 * j] = i;
+				if (points[i][j] > points[extremes[2 * j + 1]][j])
+					extremes[2 * j + 1] = i;
+			}
+		}
+		int a = 0, b = 0;
+		double max = 0;
+		for (int i = 0; i < 6; i++) {
+			for (int j = i + 1; j < 6; j++) {
+				final double d = Trig.distance3D(points[extremes[i]],
+						points[extremes[j]]);
+				if (d > max) {
+					max = d;
+					a = extremes[i];
+					b = extremes[j];
+				}
+			}
+		}
+		if (max <= epsilon)
+			return null;
+
+		// furthest from the line ab
+		final double[] pa = points[a];
+		final double[] ab = { points[b][0] - pa[0], points[b][1] - pa[1],
+				points[b][2] - pa[2] };
+		int c = -1;
+		max = 0;
+		for (int i = 0; i < nPoints; i++) {
+			final double[] cross = Vectors.crossProduct(ab[0], ab[1], ab[2],
+					points[i][0] - pa[0], points[i][1] - pa[1], points[i][2]
+							- pa[2]);
+			final double d = Trig.distance3D(cross);
+			if (d > max) {
+				max = d;
+				c = i;
+			}
+		}
+		if (c < 0 || max / Trig.distance3D(ab) <= epsilon)
+			return null;
+
+		// furthest from the plane abc
+		final double[] normal = Vectors.crossProduct(pa, points[b], points[c]);
+		final double length = Trig.distance3D(normal);
+		int d = -1;
+		max = 0;
+		for (int i = 0; i < nPoints; i++) {
+			final double dist = Math.abs((points[i][0] - pa[0]) * normal[0]
+					+ (points[i][1] - pa[1]) * normal[1]
+					+ (points[i][2] - pa[2]) * normal[2])
+					/ length;
+			if (dist > max) {
+				max = dist;
+				d = i;
+			}
+		}
+		if (d < 0 || max <= epsilon)
+			return null;
+		int[] simplex = { a, b, c, d };
+		return simplex;
+	}
+
+	private int addFace(int a, int b, int c) {
+		if (nFaces == alive.length) {
+			final int capacity = 2 * nFaces;
+			vertices = Arrays.copyOf(vertices, 3 * capacity);
+			neighbours = Arrays.copyOf(neighbours, 3 * capacity);
+			planes = Arrays.copyOf(planes, 4 * capacity);
+			alive = Arrays.copyOf(alive, capacity);
+			outsideHead = Arrays.copyOf(outsideHead, capacity);
+		}
+		final int f = nFaces++;
+		vertices[3 * f] = a;
+		vertices[3 * f + 1] = b;
+		vertices[3 * f + 2] = c;
+		final double[] n = Vectors.crossProduct(points[a], points[b],
+				points[c]);
+		final double length = Trig.distance3D(n);
+		for (int j = 0; j < 3; j++)
+			planes[4 * f + j] = n[j] / length;
+		planes[4 * f + 3] = planes[4 * f] * points[a][0] + planes[4 * f + 1]
+				* points[a][1] + planes[4 * f + 2] * points[a][2];
+		alive[f] = true;
+		outsideHead[f] = -1;
+		return f;
+	}
+
+	private void link(int f, int e, int g, int ge) {
+		neighbours[3 * f + e] = g;
+		neighbours[3 * g + ge] = f;
+	}
+
+	/** Signed distance of point p above the plane of face f */
+	private double distance(int f, int p) {
+		final double[] q = points[p];
+		return planes[4 * f] * q[0] + planes[4 * f + 1] * q[1]
+				+ planes[4 * f + 2] * q[2] - planes[4 * f + 3];
+	}
+
+	/** Signed volume test of point d against the triangle abc */
+	private double distance(int a, int b, int c, int d) {
+		final double[] n = Vectors.crossProduct(points[a], points[b],
+				points[c]);
+		return n[0] * (points[d][0] - points[a][0]) + n[1]
+				* (points[d][1] - points[a][1]) + n[2]
+				* (points[d][2] - points[a][2]);
+	}
+
+	private int[] collectVertices() {
+		boolean[] isVertex = new boolean[nPoints];
+		int count = 0;
+		for (int f = 0; f < nFaces; f++) {
+			if (!alive[f])
+				continue;
+			for (int j = 0; j < 3; j++) {
+				final int v = vertices[3 * f + j];
+				if (!isVertex[v]) {
+					isVertex[v] = true;
+					count++;
+				}
+			}
+		}
+		int[] hull = new int[count];
+		int h = 0;
+		for (int i = 0; i < nPoints; i++)
+			if (isVertex[i])
+				hull[h++] = i;
+		return hull;
+	}
+}
@@ -45,6 +45,12 @@ public class Ellipsoid {
 	/** ID field for tracking this particular ellipsoid */
 	public int id;
 
+	/**
+	 * Regularly-spaced unit vectors of the last size asked for, as arrays of
+	 * their x, y and z components
+	 */
+	private static volatile double[][] regularVectorCache = new double[3][0];
+
 	/**
 	 * Instantiate an ellipsoid from the result of FitEllipsoid
 	 * 
@@ -222,16 +228,57 @@ public class Ellipsoid {
 		return centre.clone();
 	}
 
+	/**
+	 * Get regularly-spaced unit vectors, as generated by
+	 * {@link Vectors#regularVectors(int)}, as arrays of their x, y and z
+	 * components. The vectors of the last size asked for are cached and
+	 * shared, so the arrays must not be modified.
+	 * 
+	 * @param nVectors
+	 *            number of vectors
+	 * @return array of 3 arrays (x, y and z) of nVectors components
+	 */
+	public static double[][] getRegularVectors(final int nVectors) {
+		double[][] vectors = regularVectorCache;
+		if (vectors[0].length != nVectors) {
+			double[][] v = Vectors.regularVectors(nVectors);
+			vectors = new double[3][nVectors];
+			for (int i = 0; i < nVectors; i++) {
+				vectors[0][i] = v[i][0];
+				vectors[1][i] = v[i][1];
+				vectors[2][i] = v[i][2];
+			}
+			regularVectorCache = vectors;
+		}
+		return vectors;
+	}
+
 	public double[][] getSurfacePoints(final int nPoints) {
 
 		// get regularly-spaced points on the unit sphere
-		double[][] vectors = Vectors.regularVectors(nPoints);
-		return getSurfacePoints(vectors);
+		double[][] u = getRegularVectors(nPoints);
+		double[][] points = new double[3][nPoints];
+		getSurfacePoints(u[0], u[1], u[2], nPoints, points[0], points[1],
+				points[2]);
+		double[][] surfacePoints = new double[nPoints][];
+		for (int p = 0; p < nPoints; p++)
+			surfacePoints[p] = new double[] { points[0][p], points[1][p],
+					points[2][p] };
+		return surfacePoints;
 
 	}
 
+	/**
+	 * Get the points on the surface of the ellipsoid in the directions of unit
+	 * vectors on the unit sphere, before it is stretched into the ellipsoid.
+	 * 
+	 * @param vectors
+	 *            unit vectors, which are not modified
+	 * @return new array of surface points, one per vector
+	 */
 	public double[][] getSurfacePoints(final double[][] vectors) {
 		final int nPoints = vectors.length;
+		double[][] points = new double[nPoints][];
 		for (int p = 0; p < nPoints; p++) {
 			final double[] v = vectors[p];
 
@@ -244,9 +291,50 @@ public class Ellipsoid {
 			final double vy = x * ev[1][0] + y * ev[1][1] + z * ev[1][2] + cy;
 			final double vz = x * ev[2][0] + y * ev[2][1] + z * ev[2][2] + cz;
 			
-			vectors[p] = new double[]{vx, vy, vz};
+			points[p] = new double[]{vx, vy, vz};
+		}
+		return points;
+	}
+
+	/**
+	 * Get surface points as {@link #getSurfacePoints(double[][])} does, but
+	 * with vectors and points held as separate arrays of x, y and z
+	 * components, and the points written into arrays supplied by the caller,
+	 * so that nothing is allocated.
+	 * 
+	 * @param ux
+	 *            x components of unit vectors
+	 * @param uy
+	 *            y components of unit vectors
+	 * @param uz
+	 *            z components of unit vectors
+	 * @param n
+	 *            number of vectors to use
+	 * @param x
+	 *            set to the x coordinates of the surface points
+	 * @param y
+	 *            set to the y coordinates of the surface points
+	 * @param z
+	 *            set to the z coordinates of the surface points
+	 */
+	public void getSurfacePoints(final double[] ux, final double[] uy,
+			final double[] uz, final int n, final double[] x,
+			final double[] y, final double[] z) {
+		// combine the radii with the rotation
+		final double[] e0 = ev[0];
+		final double[] e1 = ev[1];
+		final double[] e2 = ev[2];
+		final double m00 = ra * e0[0], m01 = rb * e0[1], m02 = rc * e0[2];
+		final double m10 = ra * e1[0], m11 = rb * e1[1], m12 = rc * e1[2];
+		final double m20 = ra * e2[0], m21 = rb * e2[1], m22 = rc * e2[2];
+		for (int p = 0; p < n; p++) {
+			final double vx = ux[p];
+			final double vy = uy[p];
+			final double vz = uz[p];
+			x[p] = vx * m00 + vy * m01 + vz * m02 + cx;
+			y[p] = vx * m10 + vy * m11 + vz * m12 + cy;
+			z[p] = vx * m20 + vy * m21 + vz * m22 + cz;
 		}
-		return vectors;
 	}
 
 	/**
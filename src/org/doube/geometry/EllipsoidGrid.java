@@ -0,0 +1,218 @@
+package org.doube.geometry;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Uniform grid over the axis-aligned bounding boxes of a set of ellipsoids,
+ * for finding quickly which ellipsoids contain a point. Each cell of the grid
+ * lists the ellipsoids whose bounding boxes overlap it, in the order of the
+ * input array, so a point only needs to be tested against the ellipsoids of
+ * one cell.
+ * </p>
+ * <p>
+ * The grid is not changed by queries, so it may be shared by several threads.
+ * </p>
+ */
+public class EllipsoidGrid {
+
+	/** Maximum number of cells in the grid */
+	private static final int MAX_CELLS = 1 << 21;
+
+	/** Ellipsoids, in the order of the input array */
+	private final Ellipsoid[] ellipsoids;
+
+	/** Bounding boxes: x min, x max, y min, y max, z min, z max of each */
+	private final double[] boxes;
+
+	/** Minimal corner of the grid */
+	private final double x0, y0, z0;
+
+	/** Side length of a cell */
+	private final double cellSize;
+
+	/** Number of cells in x, y and z */
+	private final int nx, ny, nz;
+
+	/** Entries of cell c are first[c] to first[c + 1] - 1 */
+	private final int[] first;
+
+	/** Ellipsoid indices of all the cells, ascending within each cell */
+	private final int[] entries;
+
+	/**
+	 * Build a grid over a set of ellipsoids. The cell size is the median of
+	 * the longest side of the ellipsoids' bounding boxes, increased if
+	 * necessary to limit the number of cells. Ellipsoids with non-finite
+	 * bounding boxes are left out.
+	 *
+	 * @param ellipsoids
+	 *            array of ellipsoids, usually sorted in order of descending
+	 *            volume
+	 */
+	public EllipsoidGrid(Ellipsoid[] ellipsoids) {
+		this.ellipsoids = ellipsoids;
+		final int n = ellipsoids.length;
+		boxes = new double[6 * n];
+		boolean[] valid = new boolean[n];
+		double[] sides = new double[n];
+		int nValid = 0;
+		double xMin = Double.POSITIVE_INFINITY, xMax = Double.NEGATIVE_INFINITY;
+		double yMin = Double.POSITIVE_INFINITY, yMax = Double.NEGATIVE_INFINITY;
+		double zMin = Double.POSITIVE_INFINITY, zMax = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			final double[] box = ellipsoids[i].getAxisAlignedBoundingBox();
+			boolean finite = true;
+			for (int j = 0; j < 6; j++) {
+				boxes[6 * i + j] = box[j];
+				if (Double.isNaN(box[j]) || Double.isInfinite(box[j]))
+					finite = false;
+			}
+			if (!finite)
+				continue;
+			valid[i] = true;
+			sides[nValid++] = Math.max(box[1] - box[0],
+					Math.max(box[3] - box[2], box[5] - box[4]));
+			xMin = Math.min(xMin, box[0]);
+			xMax = Math.max(xMax, box[1]);
+			yMin = Math.min(yMin, box[2]);
+			yMax = Math.max(yMax, box[3]);
+			zMin = Math.min(zMin, box[4]);
+			zMax = Math.max(zMax, box[5]);
+		}
+
+		if (nValid == 0) {
+			x0 = y0 = z0 = 0;
+			cellSize = 1;
+			nx = ny = nz = 0;
+			first = new int[1];
+			entries = new int[0];
+			return;
+		}
+
+		Arrays.sort(sides, 0, nValid);
+		double size = sides[nValid / 2];
+		final double extent = Math.max(xMax - xMin,
+				Math.max(yMax - yMin, zMax - zMin));
+		if (!(size > 0))
+			size = extent > 0 ? extent : 1;
+		while (cells(xMax - xMin, size) * cells(yMax - yMin, size)
+				* cells(zMax - zMin, size) > MAX_CELLS)
+			size *= 1.25;
+		x0 = xMin;
+		y0 = yMin;
+		z0 = zMin;
+		cellSize = size;
+		nx = (int) cells(xMax - xMin, size);
+		ny = (int) cells(yMax - yMin, size);
+		nz = (int) cells(zMax - zMin, size);
+
+		// count the entries of each cell, then fill them in ellipsoid order
+		first = new int[nx * ny * nz + 1];
+		for (int i = 0; i < n; i++)
+			if (valid[i])
+				addToCells(i, first, null);
+		for (int c = 1; c < first.length; c++)
+			first[c] += first[c - 1];
+		entries = new int[first[first.length - 1]];
+		int[] next = Arrays.copyOf(first, first.length);
+		for (int i = 0; i < n; i++)
+			if (valid[i])
+				addToCells(i, next, entries);
+	}
+
+	/**
+	 * Count or add an ellipsoid in each cell its bounding box overlaps
+	 *
+	 * @param i
+	 *            ellipsoid index
+	 * @param next
+	 *            if entries is null, cell counts offset by one cell; else the
+	 *            next free entry of each cell
+	 * @param entries
+	 *            entry array to add to, or null to count
+	 */
+	private void addToCells(int i, int[] next, int[] entries) {
+		final int b = 6 * i;
+		final int xa = cell(boxes[b], x0, nx);
+		final int xb = cell(boxes[b + 1], x0, nx);
+		final int ya = cell(boxes[b + 2], y0, ny);
+		final int yb = cell(boxes[b + 3], y0, ny);
+		final int za = cell(boxes[b + 4], z0, nz);
+		final int zb = cell(boxes[b + 5], z0, nz);
+		for (int z = za; z <= zb; z++) {
+			for (int y = ya; y <= yb; y++) {
+				final int offset = (z * ny + y) * nx;
+				for (int x = xa; x <= xb; x++) {
+					if (entries == null)
+						next[offset + x + 1]++;
+					else
+						entries[next[offset + x]++] = i;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Number of cells needed to cover a length, with room for its end
+	 *
+	 * @param length
+	 * @param size
+	 *            cell size
+	 * @return number of cells
+	 */
+	private static long cells(double length, double size) {
+		return (long) Math.floor(length / size) + 1;
+	}
+
+	/**
+	 * Find the cell index of a coordinate along one axis
+	 *
+	 * @param v
+	 *            coordinate
+	 * @param origin
+	 *            minimal coordinate of the grid
+	 * @param n
+	 *            number of cells along the axis
+	 * @return cell index, clamped to the grid
+	 */
+	private int cell(double v, double origin, int n) {
+		final int c = (int) Math.floor((v - origin) / cellSize);
+		if (c < 0)
+			return 0;
+		if (c >= n)
+			return n - 1;
+		return c;
+	}
+
+	/**
+	 * Find the first ellipsoid, in the order of the array the grid was built
+	 * from, which contains the point (x, y, z). If the array is sorted in order
+	 * of descending volume, this is the biggest ellipsoid containing the
+	 * point.
+	 *
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @return index in the ellipsoid array, or -1 if no ellipsoid contains the
+	 *         point
+	 */
+	public int firstContaining(double x, double y, double z) {
+		final double gx = Math.floor((x - x0) / cellSize);
+		final double gy = Math.floor((y - y0) / cellSize);
+		final double gz = Math.floor((z - z0) / cellSize);
+		if (!(gx >= 0 && gx < nx && gy >= 0 && gy < ny && gz >= 0 && gz < nz))
+			return -1;
+		final int c = ((int) gz * ny + (int) gy) * nx + (int) gx;
+		final int end = first[c + 1];
+		for (int e = first[c]; e < end; e++) {
+			final int i = entries[e];
+			final int b = 6 * i;
+			if (x >= boxes[b] && x <= boxes[b + 1] && y >= boxes[b + 2]
+					&& y <= boxes[b + 3] && z >= boxes[b + 4]
+					&& z <= boxes[b + 5] && ellipsoids[i].contains(x, y, z))
+				return i;
+		}
+		return -1;
+	}
+}
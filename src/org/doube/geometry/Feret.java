@@ -0,0 +1,144 @@
+package org.doube.geometry;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Feret diameter, the greatest distance between any two points of a set
+ */
+public class Feret {
+
+	/**
+	 * Find the exact Feret diameter. The points are first reduced to the
+	 * vertices of their convex hull, and pairs of hull vertices are searched
+	 * in order of decreasing distance from the centroid until no remaining
+	 * pair can be further apart than the current maximum.
+	 *
+	 * @param points
+	 *            double[n][3] containing n (x, y, z) coordinates
+	 * @return Feret diameter, or 0 if there are fewer than 2 points
+	 */
+	public static double getDiameter(double[][] points) {
+		int[] hull;
+		try {
+			hull = ConvexHull.getHullVertices(points);
+		} catch (IllegalStateException e) {
+			// numerically awkward input; search every point
+			hull = new int[points.length];
+			for (int i = 0; i < hull.length; i++)
+				hull[i] = i;
+		}
+		final int n = hull.length;
+		if (n < 2)
+			return 0;
+
+		final double[][] vertices = new double[n][];
+		for (int i = 0; i < n; i++)
+			vertices[i] = points[hull[i]];
+		final double[] centroid = Centroid.getCentroid(vertices);
+
+		// order vertices by decreasing distance from the centroid, so that
+		// the search can stop once no remaining pair could be further apart
+		final double[] radii = new double[n];
+		Integer[] order = new Integer[n];
+		for (int i = 0; i < n; i++) {
+			radii[i] = Trig.distance3D(vertices[i], centroid);
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Double.compare(radii[b], radii[a]);
+			}
+		});
+
+		double max2 = 0;
+		for (int i = 0; i < n; i++) {
+			final int oi = order[i];
+			final double[] a = vertices[oi];
+			final double ri = radii[oi];
+			for (int j = i + 1; j < n; j++) {
+				final int oj = order[j];
+				final double reach = ri + radii[oj];
+				if (reach * reach <= max2)
+					break;
+				final double[] b = vertices[oj];
+				final double dx = a[0] - b[0];
+				final double dy = a[1] - b[1];
+				final double dz = a[2] - b[2];
+				final double d2 = dx * dx + dy * dy + dz * dz;
+				if (d2 > max2)
+					max2 = d2;
+			}
+		}
+		return Math.sqrt(max2);
+	}
+
+	/**
+	 * <p>
+	 * Estimate the Feret diameter from the extent of the points along a fixed
+	 * set of directions. The result is the length of a real chord of the
+	 * set, so it never exceeds the true diameter, and it is guaranteed to be
+	 * no less than diameter / (1 + tolerance).
+	 * </p>
+	 * <p>
+	 * Directions are the centres of an m &times; m grid on three faces of a
+	 * cube, which are within an angle &theta; = 2 atan(1 / (&radic;2 m)) of
+	 * any unit vector. The extent along the direction nearest the true
+	 * diameter is at least diameter &times; cos &theta;, so m is chosen to
+	 * make 1 / cos &theta; &le; 1 + tolerance. Run time is proportional to
+	 * n / tolerance.
+	 * </p>
+	 *
+	 * @param points
+	 *            double[n][3] containing n (x, y, z) coordinates
+	 * @param tolerance
+	 *            maximum relative underestimate, greater than 0
+	 * @return approximate Feret diameter
+	 * @throws IllegalArgumentException
+	 *             if tolerance is not positive
+	 */
+	public static double getDiameter(double[][] points, double tolerance) {
+		if (!(tolerance > 0))
+			throw new IllegalArgumentException("Tolerance must be positive");
+		final int n = points.length;
+		if (n < 2)
+			return 0;
+		final double theta = Math.acos(1 / (1 + tolerance));
+		final int m = (int) Math.ceil(1 / (Math.sqrt(2) * Math.tan(theta / 2)));
+
+		double max2 = 0;
+		double[] u = new double[3];
+		for (int face = 0; face < 3; face++) {
+			for (int i = 0; i < m; i++) {
+				for (int j = 0; j < m; j++) {
+					u[face] = 1;
+					u[(face + 1) % 3] = -1 + (2 * i + 1) / (double) m;
+					u[(face + 2) % 3] = -1 + (2 * j + 1) / (double) m;
+					int lo = 0, hi = 0;
+					double min = Double.POSITIVE_INFINITY;
+					double max = Double.NEGATIVE_INFINITY;
+					for (int p = 0; p < n; p++) {
+						final double[] q = points[p];
+						final double t = q[0] * u[0] + q[1] * u[1] + q[2]
+								* u[2];
+						if (t < min) {
+							min = t;
+							lo = p;
+						}
+						if (t > max) {
+							max = t;
+							hi = p;
+						}
+					}
+					final double[] a = points[lo];
+					final double[] b = points[hi];
+					final double dx = a[0] - b[0];
+					final double dy = a[1] - b[1];
+					final double dz = a[2] - b[2];
+					max2 = Math.max(max2, dx * dx + dy * dy + dz * dz);
+				}
+			}
+		}
+		return Math.sqrt(max2);
+	}
+}
@@ -1,5 +1,7 @@
 package org.doube.geometry;
 
+import java.util.Random;
+
 import javax.vecmath.Point3f;
 
 public class Vectors {
@@ -159,6 +161,23 @@ public class Vectors {
 		return new double[]{x, y, z};
 	}
 
+	/**
+	 * Generate a single randomly-oriented vector on the unit sphere, using a
+	 * given random number generator so that the vector can be reproduced
+	 * 
+	 * @param random
+	 *            random number generator
+	 * @return 3-element double array containing [x y z]^T
+	 */
+	public static double[] randomVector(Random random) {
+		final double z = 2 * random.nextDouble() - 1;
+		final double rho = Math.sqrt(1 - z * z);
+		final double phi = Math.PI * (2 * random.nextDouble() - 1);
+		final double x = rho * Math.cos(phi);
+		final double y = rho * Math.sin(phi);
+		return new double[] { x, y, z };
+	}
+
 	/**
 	 * Generate an array of regularly-spaced 3D unit vectors. The vectors aren't
 	 * equally spaced in all directions, but there is no clustering around the
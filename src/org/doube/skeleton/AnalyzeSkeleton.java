@@ -3,10 +3,14 @@ package org.doube.skeleton;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.ListIterator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.doube.util.ImageCheck;
+import org.doube.util.Multithreader;
 import org.doube.util.UsageReporter;
 
 import ij.IJ;
@@ -136,7 +140,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 	/** list of junction coordinates in the entire image */
 	private ArrayList <Point> listOfJunctionVoxels = null;
 	/** list of slab coordinates in the entire image */
-	private ArrayList <Point> listOfSlabVoxels = null;
+	private VoxelList listOfSlabVoxels = null;
 	/** list of slab coordinates in the entire image */
 	private ArrayList <Point> listOfStartingSlabVoxels = null;
 	
@@ -144,12 +148,14 @@ public class AnalyzeSkeleton implements PlugInFilter
 	private ArrayList < ArrayList <Point> > listOfSingleJunctions[] = null;
 	/** array of junction vertex per tree */
 	private Vertex[][] junctionVertex = null;
+	/** junction vertex of each packed junction voxel (in every tree) */
+	private HashMap<Long, Vertex>[] junctionVertexOfVoxel = null;
 	
 	/** stack image containing the corresponding skeleton tags (end point, junction or slab) */
 	private ImageStack taggedImage = null;
 	
-	/** auxiliary temporary point */
-	private Point auxPoint = null;
+	/** auxiliary temporary point (per tree, so that trees can be visited concurrently) */
+	private Point[] auxPoint = null;
 	
 	/** number of trees (skeletons) in the image */
 	private int numOfTrees = 0;
@@ -163,13 +169,16 @@ public class AnalyzeSkeleton implements PlugInFilter
 	/** calculate largest shortest path option */
 	public static boolean calculateShortestPath = false;
 	
+	/** visit the trees (skeletons) of the image concurrently */
+	public static boolean parallelTrees = false;
+	
 	/** array of graphs (one per tree) */
 	private Graph[] graph = null;
 	
-	/** auxiliary list of slabs */
-	private ArrayList<Point> slabList = null;
-	/** auxiliary final vertex */
-	private Vertex auxFinalVertex = null;
+	/** auxiliary list of slabs (per tree) */
+	private VoxelList[] slabList = null;
+	/** auxiliary final vertex (per tree) */
+	private Vertex[] auxFinalVertex = null;
 		
 	/** prune cycle options */
 	public static final String[] pruneCyclesModes = {"none", 
@@ -243,6 +252,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 										AnalyzeSkeleton.pruneCyclesModes[pruneIndex]);
 		gd.addCheckbox("Prune ends", pruneEnds);
 		gd.addCheckbox("Calculate largest shortest path", calculateShortestPath);
+		gd.addCheckbox("Visit trees in parallel", parallelTrees);
 		gd.addCheckbox("Show detailed info", AnalyzeSkeleton.verbose);
 		gd.addHelp("http://fiji.sc/wiki/index.php/AnalyzeSkeleton");
 		gd.showDialog();
@@ -253,6 +263,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 		pruneIndex = gd.getNextChoiceIndex();
 		pruneEnds = gd.getNextBoolean();
 		calculateShortestPath = gd.getNextBoolean();
+		parallelTrees = gd.getNextBoolean();
 		AnalyzeSkeleton.verbose = gd.getNextBoolean();
 		
 		// pre-checking if another image is needed and also setting bPruneCycles
@@ -404,23 +415,8 @@ public class AnalyzeSkeleton implements PlugInFilter
 			for(int i=1; i<=this.inputImage.getSize(); i++)
 				shortPathImage.addSlice(this.inputImage.getSliceLabel(i), this.inputImage.getProcessor(i).duplicate());
 			
-			shortestPathList = new ArrayList < Double >();
-			
-			this.shortestPathPoints = new ArrayList [ this.numOfTrees ];
-			
 			// Visit skeleton and measure distances.
-			// and apply warshall algorithm
-			spStartPosition = new double[this.numOfTrees][3];
-			for(int i = 0; i < this.numOfTrees; i++)
-			{							
-				shortestPathPoints[ i ] = new ArrayList<Point>();
-				// Warshall algorithm including tag positions
-				this.shortestPath = warshallAlgorithm(this.graph[i], shortestPathPoints[ i ]);
-				shortestPathList.add(this.shortestPath);
-				spStartPosition[i][0] = spx * this.imRef.getCalibration().pixelWidth;
-				spStartPosition[i][1] = spy * this.imRef.getCalibration().pixelHeight;
-				spStartPosition[i][2] = spz * this.imRef.getCalibration().pixelDepth;				
-			}
+			calculateLongestShortestPaths();
 			
 			if (!silent) {
 				// Display short paths in a new stack
@@ -531,23 +527,8 @@ public class AnalyzeSkeleton implements PlugInFilter
 			for(int i=1; i<=this.inputImage.getSize(); i++)
 				shortPathImage.addSlice(this.inputImage.getSliceLabel(i), this.inputImage.getProcessor(i).duplicate());
 			
-			shortestPathList = new ArrayList < Double >();
-			
-			this.shortestPathPoints = new ArrayList [ this.numOfTrees ];
-			
 			// Visit skeleton and measure distances.
-			// and apply warshall algorithm
-			spStartPosition = new double[this.numOfTrees][3];
-			for(int i = 0; i < this.numOfTrees; i++)
-			{							
-				shortestPathPoints[ i ] = new ArrayList<Point>();
-				// Warshall algorithm including tag positions
-				this.shortestPath = warshallAlgorithm(this.graph[i], shortestPathPoints[ i ]);
-				shortestPathList.add(this.shortestPath);
-				spStartPosition[i][0] = spx * this.imRef.getCalibration().pixelWidth;
-				spStartPosition[i][1] = spy * this.imRef.getCalibration().pixelHeight;
-				spStartPosition[i][2] = spz * this.imRef.getCalibration().pixelDepth;				
-			}
+			calculateLongestShortestPaths();
 			
 			if (!silent) {
 				// Display short paths in a new stack
@@ -657,24 +638,18 @@ public class AnalyzeSkeleton implements PlugInFilter
 					
 					// Remove branch voxels
 					Edge branch = v.getBranches().get(0);
-					points = branch.getSlabs();
-					final int nSlabs = points.size();
+					final VoxelList slabs = branch.getSlabVoxels();
+					final int nSlabs = slabs.size();
 					for (int i = 0; i < nSlabs; i++)
 					{
-						Point p = points.get(i);
-						setPixel(stack, p.x, p.y, p.z, (byte) 0);
-						setPixel(taggedImage, p.x, p.y, p.z, (byte) 0);
+						final int x = slabs.getX(i);
+						final int y = slabs.getY(i);
+						final int z = slabs.getZ(i);
+						setPixel(stack, x, y, z, (byte) 0);
+						setPixel(taggedImage, x, y, z, (byte) 0);
 						this.numberOfSlabs[t]--;
 						this.totalNumberOfSlabs--;
-						Iterator<Point> pit = this.listOfSlabVoxels.listIterator();
-						while (pit.hasNext())
-						{
-							Point ep = pit.next();
-							if (ep.equals(p)){
-								pit.remove();
-								break;
-							}
-						}						
+						this.listOfSlabVoxels.remove(x, y, z);
 					}
 					
 					// remove the Edge from the Graph
@@ -776,24 +751,18 @@ public class AnalyzeSkeleton implements PlugInFilter
 					
 					// Remove branch voxels
 					Edge branch = v.getBranches().get(0);
-					points = branch.getSlabs();
-					final int nSlabs = points.size();
+					final VoxelList slabs = branch.getSlabVoxels();
+					final int nSlabs = slabs.size();
 					for (int i = 0; i < nSlabs; i++)
 					{
-						Point p = points.get(i);
-						setPixel(stack, p.x, p.y, p.z, (byte) 0);
-						setPixel(taggedImage, p.x, p.y, p.z, (byte) 0);
+						final int x = slabs.getX(i);
+						final int y = slabs.getY(i);
+						final int z = slabs.getZ(i);
+						setPixel(stack, x, y, z, (byte) 0);
+						setPixel(taggedImage, x, y, z, (byte) 0);
 						this.numberOfSlabs[t]--;
 						this.totalNumberOfSlabs--;
-						Iterator<Point> pit = this.listOfSlabVoxels.listIterator();
-						while (pit.hasNext())
-						{
-							Point ep = pit.next();
-							if (ep.equals(p)){
-								pit.remove();
-								break;
-							}
-						}						
+						this.listOfSlabVoxels.remove(x, y, z);
 					}
 					
 					// remove the Edge from the Graph
@@ -879,7 +848,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 		// Initialize  global lists of points
 		this.listOfEndPoints = new ArrayList<Point>();
 		this.listOfJunctionVoxels = new ArrayList<Point>();
-		this.listOfSlabVoxels = new ArrayList<Point>();
+		this.listOfSlabVoxels = new VoxelList();
 		this.listOfStartingSlabVoxels = new ArrayList<Point>();
 		this.totalNumberOfEndPoints = 0;
 		this.totalNumberOfJunctionVoxels = 0;
@@ -925,10 +894,44 @@ public class AnalyzeSkeleton implements PlugInFilter
 		resetVisited();
 		
 		// Visit skeleton and measure distances.
-		for(int i = 0; i < this.numOfTrees; i++)
-			visitSkeleton(taggedImage, treeIS, i+1);
+		if(AnalyzeSkeleton.parallelTrees && this.numOfTrees > 1)
+			visitTrees(taggedImage, treeIS);
+		else
+			for(int i = 0; i < this.numOfTrees; i++)
+				visitSkeleton(taggedImage, treeIS, i+1);
 		
 	} // end method processSkeleton
+	
+	// -----------------------------------------------------------------------
+	/**
+	 * Visit all trees concurrently, one tree per thread at a time.
+	 * <p>
+	 * Trees are disjoint 26-connected components, and a visit only looks at
+	 * the neighbors of the voxels of its own tree, so each tree only reads
+	 * and writes its own visited flags. All the other state of a visit
+	 * (graph, counts, lengths and the auxiliary point, vertex and slab list)
+	 * is kept per tree, which gives the same results as visiting the trees
+	 * one after another.
+	 * </p>
+	 * 
+	 * @param taggedImage tag skeleton image
+	 * @param treeImage skeleton image with tree classification
+	 */
+	private void visitTrees(final ImageStack taggedImage, final ImageStack treeImage)
+	{
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++)
+		{
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int i = ai.getAndIncrement(); i < numOfTrees; i = ai.getAndIncrement())
+						visitSkeleton(taggedImage, treeImage, i + 1);
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+	} // end method visitTrees
 
 	// -----------------------------------------------------------------------
 	/**
@@ -992,7 +995,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 							final Edge pre = backtrackVertex.getPredecessor();
 							// Update shortest loop edge if necessary
 							if(pruningMode == AnalyzeSkeleton.SHORTEST_BRANCH && 
-									pre.getSlabs().size() < minEdge.getSlabs().size())
+									pre.getSlabVoxels().size() < minEdge.getSlabVoxels().size())
 								minEdge = pre;
 							// Add to loop edge list
 							loopEdges.add(pre);
@@ -1005,8 +1008,9 @@ public class AnalyzeSkeleton implements PlugInFilter
 						{
 							// Remove middle slab from the shortest loop edge
 							Point removeCoords = null;
-							if(minEdge.getSlabs().size() > 0)
-								removeCoords = minEdge.getSlabs().get(minEdge.getSlabs().size()/2);
+							final VoxelList minSlabs = minEdge.getSlabVoxels();
+							if(minSlabs.size() > 0)
+								removeCoords = minSlabs.get(minSlabs.size()/2);
 							else 
 								removeCoords = minEdge.getV1().getPoints().get(0);
 							setPixel(inputImage, removeCoords,(byte) 0);
@@ -1269,6 +1273,13 @@ public class AnalyzeSkeleton implements PlugInFilter
 			this.listOfSingleJunctions[i] = new ArrayList < ArrayList <Point> > ();
 		}
 		this.junctionVertex  = new Vertex[this.numOfTrees][];
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final HashMap<Long, Vertex>[] vertexOfVoxel =
+			new HashMap[this.numOfTrees];
+		this.junctionVertexOfVoxel = vertexOfVoxel;
+		this.auxPoint = new Point[this.numOfTrees];
+		this.slabList = new VoxelList[this.numOfTrees];
+		this.auxFinalVertex = new Vertex[this.numOfTrees];
 	}// end method initializeTrees
 	
 	// -----------------------------------------------------------------------
@@ -1414,92 +1425,6 @@ public class AnalyzeSkeleton implements PlugInFilter
 		return result;
 	}
 
-	// -----------------------------------------------------------------------
-	/**
-	 * Visit skeleton from end points and register measures.
-	 * 
-	 * @param taggedImage
-	 * 
-	 * @deprecated
-	 */
-	private void visitSkeleton(ImageStack taggedImage) 
-	{
-	
-		// length of branches
-		double branchLength = 0;		
-		int numberOfBranches = 0;
-		double maximumBranchLength = 0;
-		double averageBranchLength = 0;
-		Point initialPoint = null;
-		Point finalPoint = null;
-		
-	
-		// Visit branches starting at end points
-		for(int i = 0; i < this.totalNumberOfEndPoints; i++)
-		{			
-			Point endPointCoord = this.listOfEndPoints.get(i);
-					 
-			// visit branch until next junction or end point.
-			double length = visitBranch(endPointCoord);
-						
-			if(length == 0)						
-				continue;			
-			
-			// increase number of branches
-			numberOfBranches++;
-			branchLength += length;				
-			
-			// update maximum branch length
-			if(length > maximumBranchLength)
-			{
-				maximumBranchLength = length;
-				initialPoint = endPointCoord;
-				finalPoint = this.auxPoint;
-			}
-		}
-		
-	
-		// Now visit branches starting at junctions
-		for(int i = 0; i < this.totalNumberOfJunctionVoxels; i++)
-		{
-			Point junctionCoord = this.listOfJunctionVoxels.get(i);
-			
-			// Mark junction as visited
-			setVisited(junctionCoord, true);
-					
-			Point nextPoint = getNextUnvisitedVoxel(junctionCoord);
-			
-			while(nextPoint != null)
-			{
-				branchLength += calculateDistance(junctionCoord, nextPoint);								
-								
-				double length = visitBranch(nextPoint);
-				
-				branchLength += length;
-				
-				// Increase number of branches
-				if(length != 0)
-				{
-					numberOfBranches++;
-					// update maximum branch length
-					if(length > maximumBranchLength)
-					{
-						maximumBranchLength = length;
-						initialPoint = junctionCoord;
-						finalPoint = this.auxPoint;
-					}
-				}
-				
-				nextPoint = getNextUnvisitedVoxel(junctionCoord);
-			}					
-		}
-
-		// Average length
-		averageBranchLength = branchLength / numberOfBranches;
-		
-	} // end visitSkeleton
-	
-	
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Visit skeleton starting at end-points, junctions and slab of circular 
@@ -1564,7 +1489,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 				this.graph[iTree].setRoot(v1);
 			
 			// slab list for the edge
-			this.slabList = new ArrayList<Point>();
+			this.slabList[iTree] = new VoxelList();
 					 
 			// Otherwise, visit branch until next junction or end point.
 			double length = visitBranch(endPointCoord, iTree);
@@ -1577,17 +1502,17 @@ public class AnalyzeSkeleton implements PlugInFilter
 				final Point aux = getVisitedJunctionNeighbor(endPointCoord, v1);				
 				if(null != aux)
 				{
-					this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], aux);
+					this.auxFinalVertex[iTree] = findJunctionVertex(iTree, aux);
 					length += calculateDistance(endPointCoord, aux);
 					
 					// Add the length to the first point of the vertex (to prevent later from having
 					// euclidean distances larger than the actual distance)
-					length += calculateDistance(auxFinalVertex.getPoints().get(0), endPointCoord);
+					length += calculateDistance(this.auxFinalVertex[iTree].getPoints().get(0), endPointCoord);
 					// Add branch to graph			
 					if(debug)
-						IJ.log( "adding branch from " + v1.getPoints().get(0) + " to " + this.auxFinalVertex.getPoints().get(0) );
-					this.graph[iTree].addVertex(this.auxFinalVertex);
-					this.graph[iTree].addEdge(new Edge(v1, this.auxFinalVertex, this.slabList, length));
+						IJ.log( "adding branch from " + v1.getPoints().get(0) + " to " + this.auxFinalVertex[iTree].getPoints().get(0) );
+					this.graph[iTree].addVertex(this.auxFinalVertex[iTree]);
+					this.graph[iTree].addEdge(new Edge(v1, this.auxFinalVertex[iTree], this.slabList[iTree], length));
 					// increase number of branches
 					this.numberOfBranches[iTree]++;
 					
@@ -1605,31 +1530,31 @@ public class AnalyzeSkeleton implements PlugInFilter
 			// If the final point is a slab, then we add the path to the
 			// neighbor junction voxel not belonging to the initial vertex
 			// (unless it is a self loop)
-			if(isSlab(this.auxPoint))
+			if(isSlab(this.auxPoint[iTree]))
 			{
-				final Point aux = this.auxPoint;
-				//IJ.log("Looking for " + this.auxPoint + " in the list of vertices...");
-				this.auxPoint = getVisitedJunctionNeighbor(this.auxPoint, v1);
-				this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], this.auxPoint);
-				if(this.auxPoint == null)
+				final Point aux = this.auxPoint[iTree];
+				//IJ.log("Looking for " + this.auxPoint[iTree] + " in the list of vertices...");
+				this.auxPoint[iTree] = getVisitedJunctionNeighbor(this.auxPoint[iTree], v1);
+				this.auxFinalVertex[iTree] = findJunctionVertex(iTree, this.auxPoint[iTree]);
+				if(this.auxPoint[iTree] == null)
 				{
 					//IJ.log("Point "+ aux + " has not neighbor end junction! (inner loop)");
 					// Inner loop
-					this.auxFinalVertex = v1;
-					this.auxPoint = aux;
+					this.auxFinalVertex[iTree] = v1;
+					this.auxPoint[iTree] = aux;
 				}
-				length += calculateDistance(this.auxPoint, aux);
+				length += calculateDistance(this.auxPoint[iTree], aux);
 								
 				// Add the length to the first point of the vertex (to prevent later from having
 				// euclidean distances larger than the actual distance)
-				length += calculateDistance(auxFinalVertex.getPoints().get(0), auxPoint);
+				length += calculateDistance(this.auxFinalVertex[iTree].getPoints().get(0), this.auxPoint[iTree]);
 			}
 			
 			// Add branch to graph			
 			if(debug)
-				IJ.log("adding branch from " + v1.getPoints().get(0) + " to " + this.auxFinalVertex.getPoints().get(0) +  ", aux point = " + this.auxPoint);
-			this.graph[iTree].addVertex(this.auxFinalVertex);
-			this.graph[iTree].addEdge(new Edge(v1, this.auxFinalVertex, this.slabList, length));
+				IJ.log("adding branch from " + v1.getPoints().get(0) + " to " + this.auxFinalVertex[iTree].getPoints().get(0) +  ", aux point = " + this.auxPoint[iTree]);
+			this.graph[iTree].addVertex(this.auxFinalVertex[iTree]);
+			this.graph[iTree].addEdge(new Edge(v1, this.auxFinalVertex[iTree], this.slabList[iTree], length));
 			
 			// increase number of branches
 			this.numberOfBranches[iTree]++;
@@ -1679,15 +1604,15 @@ public class AnalyzeSkeleton implements PlugInFilter
 							IJ.log("visiting " + nextPoint);
 						
 						// Create graph edge
-						this.slabList = new ArrayList<Point>();
-						this.slabList.add(nextPoint);
+						this.slabList[iTree] = new VoxelList();
+						this.slabList[iTree].add(nextPoint);
 						this.numberOfSlabs[iTree]++;
 
 						// Calculate distance from junction to that point
 						double length = calculateDistance(junctionCoord, nextPoint);	
 
 						// Visit branch
-						this.auxPoint = null;
+						this.auxPoint[iTree] = null;
 						length += visitBranch(nextPoint, iTree);
 
 						// Increase total length of branches
@@ -1696,42 +1621,36 @@ public class AnalyzeSkeleton implements PlugInFilter
 						// Increase number of branches
 						if(length != 0)
 						{				
-							if(this.auxPoint == null)
-								this.auxPoint = nextPoint;
+							if(this.auxPoint[iTree] == null)
+								this.auxPoint[iTree] = nextPoint;
 							
 							this.numberOfBranches[iTree]++;
 						
 							// Initial vertex
-							Vertex initialVertex = null;
-							for(int k = 0; k < this.junctionVertex[iTree].length; k++)
-								if(this.junctionVertex[iTree][k].isVertexPoint(junctionCoord))
-								{
-									initialVertex = this.junctionVertex[iTree][k];
-									break;
-								}
+							final Vertex initialVertex = findJunctionVertex(iTree, junctionCoord);
 							
 							
 							// If the final point is a slab, then we add the path to the
 							// neighbor junction voxel not belonging to the initial vertex
 							// (unless it is a self loop)
-							if(isSlab(this.auxPoint))
+							if(isSlab(this.auxPoint[iTree]))
 							{
-								final Point aux = this.auxPoint;
-								//IJ.log("Looking for " + this.auxPoint + " in the list of vertices...");
-								this.auxPoint = getVisitedJunctionNeighbor(this.auxPoint, initialVertex);
-								this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], this.auxPoint);
-								if(this.auxPoint == null)
+								final Point aux = this.auxPoint[iTree];
+								//IJ.log("Looking for " + this.auxPoint[iTree] + " in the list of vertices...");
+								this.auxPoint[iTree] = getVisitedJunctionNeighbor(this.auxPoint[iTree], initialVertex);
+								this.auxFinalVertex[iTree] = findJunctionVertex(iTree, this.auxPoint[iTree]);
+								if(this.auxPoint[iTree] == null)
 								{
 									//IJ.log("Point "+ aux + " has not neighbor end junction! (inner loop)");
 									// Inner loop
-									this.auxFinalVertex = initialVertex;
-									this.auxPoint = aux;
+									this.auxFinalVertex[iTree] = initialVertex;
+									this.auxPoint[iTree] = aux;
 								}
-								length += calculateDistance(this.auxPoint, aux);
+								length += calculateDistance(this.auxPoint[iTree], aux);
 							}
 							
 							if(debug)
-								IJ.log("increased number of branches, length = " + length + " (last point = " + this.auxPoint + ")");
+								IJ.log("increased number of branches, length = " + length + " (last point = " + this.auxPoint[iTree] + ")");
 							// update maximum branch length
 							if(length > this.maximumBranchLength[iTree])
 							{
@@ -1746,8 +1665,8 @@ public class AnalyzeSkeleton implements PlugInFilter
 							// Create graph branch							
 							// Add branch to graph
 							if(debug)
-								IJ.log("adding branch from " + initialVertex.getPoints().get(0) + " to " + this.auxFinalVertex.getPoints().get(0));							
-							this.graph[iTree].addEdge(new Edge(initialVertex, this.auxFinalVertex, this.slabList, length));												
+								IJ.log("adding branch from " + initialVertex.getPoints().get(0) + " to " + this.auxFinalVertex[iTree].getPoints().get(0));							
+							this.graph[iTree].addEdge(new Edge(initialVertex, this.auxFinalVertex[iTree], this.slabList[iTree], length));												
 						}
 					}
 					else
@@ -1775,8 +1694,8 @@ public class AnalyzeSkeleton implements PlugInFilter
 			this.graph[iTree].addVertex(v1);
 			
 			
-			this.slabList = new ArrayList<Point>();
-			this.slabList.add(startCoord);
+			this.slabList[iTree] = new VoxelList();
+			this.slabList[iTree].add(startCoord);
 			
 			this.numberOfSlabs[iTree]++;
 			
@@ -1797,7 +1716,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 			}
 			
 			// Create circular edge
-			this.graph[iTree].addEdge(new Edge(v1, v1, this.slabList, length));
+			this.graph[iTree].addEdge(new Edge(v1, v1, this.slabList[iTree], length));
 		}						
 
 		if(debug)
@@ -1921,9 +1840,10 @@ public class AnalyzeSkeleton implements PlugInFilter
 		// (just in case there are circular trees without junctions)
 		for(int i = 0; i < this.listOfSlabVoxels.size(); i++)
 		{
-			Point p = (Point) this.listOfSlabVoxels.get(i);
-			if(isVisited(p) == false)
+			if(isVisited(this.listOfSlabVoxels.getX(i), this.listOfSlabVoxels.getY(i),
+					this.listOfSlabVoxels.getZ(i)) == false)
 			{
+				Point p = this.listOfSlabVoxels.get(i);
 				// Mark that voxel as the start point of the circular skeleton
 				this.listOfStartingSlabVoxels.add(p);
 				
@@ -2054,59 +1974,6 @@ public class AnalyzeSkeleton implements PlugInFilter
 		return numOfVoxels;
 	} // end method visitTree
 
-	// -----------------------------------------------------------------------
-	/**
-	 * Visit a branch and calculate length.
-	 * 
-	 * @param startingPoint starting coordinates
-	 * @return branch length
-	 * 
-	 * @deprecated
-	 */
-	private double visitBranch(Point startingPoint) 
-	{
-		double length = 0;
-		
-		// mark starting point as visited
-		setVisited(startingPoint, true);
-		
-		// Get next unvisited voxel
-		Point nextPoint = getNextUnvisitedVoxel(startingPoint);
-		
-		if (nextPoint == null)
-			return 0;
-		
-		Point previousPoint = startingPoint;
-		
-		// We visit the branch until we find an end point or a junction
-		while(nextPoint != null && isSlab(nextPoint))
-		{
-			// Add length
-			length += calculateDistance(previousPoint, nextPoint);
-			
-			// Mark as visited
-			setVisited(nextPoint, true);
-			
-			// Move in the graph
-			previousPoint = nextPoint;			
-			nextPoint = getNextUnvisitedVoxel(previousPoint);			
-		}
-		
-		
-		if(nextPoint != null)
-		{
-			// Add distance to last point
-			length += calculateDistance(previousPoint, nextPoint);
-		
-			// Mark last point as visited
-			setVisited(nextPoint, true);
-		}
-		
-		this.auxPoint = previousPoint;
-		
-		return length;
-	}// end visitBranch
-
 	// -----------------------------------------------------------------------
 	/**
 	 * Visit a branch and calculate length in a specific tree
@@ -2137,7 +2004,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 			this.numberOfSlabs[iTree]++;
 		
 			// Add slab voxel to the edge
-			this.slabList.add(nextPoint);
+			this.slabList[iTree].add(nextPoint);
 			
 			// Add length
 			length += calculateDistance(previousPoint, nextPoint);
@@ -2167,24 +2034,24 @@ public class AnalyzeSkeleton implements PlugInFilter
 			{
 				if(debug)
 					IJ.log("found unvisited end point: " + nextPoint);
-				this.auxFinalVertex = new Vertex();
-				this.auxFinalVertex.addPoint(nextPoint);
+				this.auxFinalVertex[iTree] = new Vertex();
+				this.auxFinalVertex[iTree].addPoint(nextPoint);
 			}
 			else if(isJunction(nextPoint))
 			{
 				if(debug)
 					IJ.log("found unvisited junction point: " + nextPoint);
-				this.auxFinalVertex = findPointVertex(this.junctionVertex[iTree], nextPoint);
+				this.auxFinalVertex[iTree] = findJunctionVertex(iTree, nextPoint);
 				// Add the length to the first point of the vertex (to prevent later from having
 				// euclidean distances larger than the actual distance)
-				length += calculateDistance(auxFinalVertex.getPoints().get(0), nextPoint);
+				length += calculateDistance(this.auxFinalVertex[iTree].getPoints().get(0), nextPoint);
 				/*
 				int j = 0;
 				for(j = 0; j < this.junctionVertex[iTree].length; j++)
 					if(this.junctionVertex[iTree][j].isVertexPoint(nextPoint))
 					{
-						this.auxFinalVertex = this.junctionVertex[iTree][j];
-						IJ.log(" " + nextPoint + " belongs to junction " + this.auxFinalVertex.getPoints().get(0));
+						this.auxFinalVertex[iTree] = this.junctionVertex[iTree][j];
+						IJ.log(" " + nextPoint + " belongs to junction " + this.auxFinalVertex[iTree].getPoints().get(0));
 						break;
 					}
 				if(j == this.junctionVertex[iTree].length)
@@ -2192,10 +2059,10 @@ public class AnalyzeSkeleton implements PlugInFilter
 					*/
 			}
 			
-			this.auxPoint = nextPoint;
+			this.auxPoint[iTree] = nextPoint;
 		}
 		else
-			this.auxPoint = previousPoint;
+			this.auxPoint[iTree] = previousPoint;
 		
 		//IJ.log("finalPoint = (" + nextPoint.x + ", " + nextPoint.y + ", " + nextPoint.z + ")");
 		return length;
@@ -2224,6 +2091,30 @@ public class AnalyzeSkeleton implements PlugInFilter
 		return null;
 	}
 	
+	// -----------------------------------------------------------------------
+	/**
+	 * Find the junction vertex of a tree that contains a specific point, by
+	 * hash look up instead of searching every vertex.
+	 * 
+	 * @param iTree tree index
+	 * @param p vertex point (may be null)
+	 * @return vertex containing that point, or null if there is none
+	 */
+	private Vertex findJunctionVertex(int iTree, Point p)
+	{
+		if(p == null)
+			return null;
+		final Vertex v = this.junctionVertexOfVoxel[iTree].get(VoxelList.pack(p));
+		if(debug)
+		{
+			if(v == null)
+				IJ.log("point " + p + " was not found in vertex list! (vertex.length= " + this.junctionVertex[iTree].length +")");
+			else
+				IJ.log(" " + p + " belongs to junction " + v.getPoints().get(0));
+		}
+		return v;
+	}
+	
 	// -----------------------------------------------------------------------
 	/**
 	 * Calculate distance between two points in 3D.
@@ -2272,13 +2163,20 @@ public class AnalyzeSkeleton implements PlugInFilter
 			
 			// Create array of junction vertices for the graph
 			this.junctionVertex[iTree] = new Vertex[this.listOfSingleJunctions[iTree].size()];
+			this.junctionVertexOfVoxel[iTree] = new HashMap<Long, Vertex>();
 			
 			for(int j = 0 ; j < this.listOfSingleJunctions[iTree].size(); j++)
 			{
 				final ArrayList<Point> list = this.listOfSingleJunctions[iTree].get(j);
 				this.junctionVertex[iTree][j] = new Vertex();
 				for(final Point p : list)
+				{
 					this.junctionVertex[iTree][j].addPoint(p);
+					// as in findPointVertex, the first vertex holding a voxel wins
+					final Long key = VoxelList.pack(p);
+					if(!this.junctionVertexOfVoxel[iTree].containsKey(key))
+						this.junctionVertexOfVoxel[iTree].put(key, this.junctionVertex[iTree][j]);
+				}
 				
 			}
 		}
@@ -2691,8 +2589,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 						else
 						{
 							setPixel(outputImage, x, y, z, AnalyzeSkeleton.SLAB);
-							Point slab = new Point(x, y, z);
-							this.listOfSlabVoxels.add(slab);
+							this.listOfSlabVoxels.add(x, y, z);
 							this.totalNumberOfSlabs++;
 						}
 					}					
@@ -3001,235 +2898,148 @@ public class AnalyzeSkeleton implements PlugInFilter
 	
 
 	/**
-	 * Determine the longest shortest path using the APSP (all pairs shortest path) 
-	 * warshall algorithm
-	 * 
-	 * @param graph the graph of a tree
-	 * @param shortestPathPoints list to store the longest shortest path points
-	 * @return longest shortest path length
-	 * @author Huub Hovens
+	 * Find the longest shortest path of every tree and store its length, its
+	 * points and its start position. Shortest paths are found by a sparse
+	 * search from each vertex of each tree; the searches of all trees share
+	 * one pool of threads, so that both many small trees and one large tree
+	 * keep all threads busy. Of several equally long paths, the one from the
+	 * lowest vertex index to the lowest vertex index is taken.
 	 */
-	private double warshallAlgorithm(Graph graph, ArrayList <Point> shortestPathPoints)
+	private void calculateLongestShortestPaths()
 	{
-		// local fields
-		/** vertex 1 of an edge */
-		Vertex v1 = null;
-		/** vertex 2 of an edge */
-		Vertex v2 = null;
-		/** the equivalent of row in a matrix */
-		int row = 0;
-		/** the equivalent of column in a matrix */
-		int column = 0;
-		/** the value of the longest shortest path */
-		double maxPath = 0;
-		/** row that contains the longest shortest path value */
-		int a = 0;
-		/** column that contains the longest shortest path value */
-		int b = 0;
-
-		ArrayList< Edge > edgeList = graph.getEdges();
-		ArrayList< Vertex > vertexList = graph.getVertices();
-
-		//create empty adjacency and predecessor matrix
-
-		/** the matrix that contains the length of the shortest path from vertex a to vertex b */
-		double[][] adjacencyMatrix = new double[vertexList.size()][vertexList.size()];
-		/** the matrix that contains the predecessor vertex of vertex b in the shortest path from vertex a to b */
-		int[][] predecessorMatrix = new int[vertexList.size()][vertexList.size()];
-
-		// initial conditions for both matrices
-		/*
-		 * create 2D-adjacency array with the distance between the nodes.
-		 * distance i --> i = 0
-		 * distance i -/> j = infinite (edge does not exist)
-		 * distance i --> j = length of branch
-		 */
-
-		/*
-		 * create 2D-predecessor array using interconnected vertices.
-		 * the predecessor matrix contains the predecessor of j in a path from node i to j.
-		 * distance i --> i = NIL (there is no edge between a single vertex)
-		 * distance i -/> j = NIL (there is no edge between the vertices)
-		 * distance i --> j = i (the initial matrix only contains paths with a single edge)
-		 * 
-		 * I'm using -1 as NIL since it cannot refer to an index (and thus a vertex)
-		 */
-
-		// applying initial conditions
-		for(int i = 0 ; i < vertexList.size(); i++)
+		shortestPathList = new ArrayList < Double >();
+		this.shortestPathPoints = new ArrayList [ this.numOfTrees ];
+		spStartPosition = new double[this.numOfTrees][3];
+
+		final ShortestPaths[] paths = new ShortestPaths[this.numOfTrees];
+		// sources of tree i are firstSource[i] to firstSource[i + 1] - 1
+		final int[] firstSource = new int[this.numOfTrees + 1];
+		int maxVertices = 0;
+		for(int i = 0; i < this.numOfTrees; i++)
 		{
-			for(int j = 0 ; j < vertexList.size(); j++)
-			{
-				adjacencyMatrix[i][j]= Double.POSITIVE_INFINITY;
-				predecessorMatrix[i][j]= -1;
-			}
+			paths[i] = new ShortestPaths(this.graph[i]);
+			final int nVertices = paths[i].getNumberOfVertices();
+			firstSource[i + 1] = firstSource[i] + nVertices;
+			maxVertices = Math.max(maxVertices, nVertices);
 		}
-
-
-		for (Edge edge : edgeList)
+		final int nSources = firstSource[this.numOfTrees];
+		final int workSize = maxVertices;
+
+		// longest shortest path from each source, and the vertex it reaches
+		final double[] farthestDistance = new double[nSources];
+		final int[] farthestVertex = new int[nSources];
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++)
 		{
-			v1 = edge.getV1();
-			v2 = edge.getV2();
-			// use the index of the vertices as the index in the matrix
-			row = vertexList.indexOf(v1);
-			if(row == -1)
-			{
-				IJ.log("Vertex " + v1.getPoints().get(0) + " not found in the list of vertices!");
-				continue;
-			}
-			
-			column = vertexList.indexOf(v2);
-			if(column == -1)
-			{
-				IJ.log("Vertex " + v2.getPoints().get(0) + " not found in the list of vertices!");
-				continue;
-			}
-
-			/* 
-			 * the diagonal is 0. 
-			 * 
-			 * Because not every vertex is a 'v1 vertex' 
-			 * the [column][column] statement is needed as well.
-			 *
-			 * in an undirected graph the adjacencyMatrix is symmetric 
-			 * thus A = Transpose(A)
-			 */
-			adjacencyMatrix[row][row] = 0;
-			adjacencyMatrix[column][column] = 0;
-			adjacencyMatrix[row][column] = edge.getLength();
-			adjacencyMatrix[column][row] = edge.getLength();
-
-			/* 
-			 * the diagonal remains -1.
-			 * for the rest I use the index of the vertex so I can later refer to the vertexList
-			 * for the correct information
-			 * 
-			 * Determining what belongs where requires careful consideration of the definition
-			 * 
-			 * the array contains the predecessor of "column" in a path from "row" to "column"
-			 * therefore in the other statement it is the other way around.   
-			 */
-			predecessorMatrix[row][row] = -1;
-			predecessorMatrix[column][column] = -1;
-			predecessorMatrix[row][column] = row;
-			predecessorMatrix[column][row] = column;
-		}
-		// matrices now have their initial conditions
-
-
-		// the warshall algorithm with k as candidate vertex and i and j walk through the adjacencyMatrix
-		// the predecessor matrix is updated at the same time. 
-
-		for(int k = 0 ; k < vertexList.size(); k++)
-		{				
-			for(int i = 0 ; i < vertexList.size(); i++)
-			{								
-				for(int j = 0 ; j < vertexList.size(); j++)
-				{
-					if(adjacencyMatrix[i][k] + adjacencyMatrix[k][j] < adjacencyMatrix[i][j])
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final double[] distance = new double[workSize];
+					final int[] predecessor = new int[workSize];
+					final int[] heap = new int[workSize];
+					final int[] heapIndex = new int[workSize];
+					int tree = 0;
+					for (int s = ai.getAndIncrement(); s < nSources; s = ai.getAndIncrement())
 					{
-						adjacencyMatrix[i][j] = adjacencyMatrix[i][k] + adjacencyMatrix[k][j];
-						predecessorMatrix[i][j] = predecessorMatrix[k][j];
-
-					}					
+						while (s >= firstSource[tree + 1])
+							tree++;
+						final ShortestPaths sp = paths[tree];
+						final int source = s - firstSource[tree];
+						sp.search(source, distance, predecessor, heap, heapIndex);
+						double max = 0;
+						int b = 0;
+						for (int j = 0; j < sp.getNumberOfVertices(); j++)
+						{
+							final double d = j == source ? sp.getLoopLength(j) : distance[j];
+							// unreachable vertices are infinitely far
+							if (d > max && d != Double.POSITIVE_INFINITY)
+							{
+								max = d;
+								b = j;
+							}
+						}
+						farthestDistance[s] = max;
+						farthestVertex[s] = b;
+					}
 				}
-			}
+			});
 		}
+		Multithreader.startAndJoin(threads);
 
-		// find the maximum of all shortest paths
-		for(int i = 0; i < vertexList.size(); i++)
+		for(int i = 0; i < this.numOfTrees; i++)
 		{
-			for(int j = 0; j < vertexList.size(); j++)
+			shortestPathPoints[ i ] = new ArrayList<Point>();
+			double maxPath = 0;
+			int a = 0;
+			int b = 0;
+			for (int s = firstSource[i]; s < firstSource[i + 1]; s++)
 			{
-				// sometimes infinities still remain				
-				if (adjacencyMatrix[i][j] > maxPath && adjacencyMatrix[i][j] != Double.POSITIVE_INFINITY)
+				if (farthestDistance[s] > maxPath)
 				{
-					maxPath = adjacencyMatrix[i][j];
-					a = i;
-					b = j;
-
+					maxPath = farthestDistance[s];
+					a = s - firstSource[i];
+					b = farthestVertex[s];
 				}
 			}
+			this.shortestPath = maxPath;
+			if (paths[i].getNumberOfVertices() > 0)
+			{
+				final int[] predecessor = new int[paths[i].getNumberOfVertices()];
+				paths[i].search(a, new double[predecessor.length], predecessor,
+						new int[predecessor.length], new int[predecessor.length]);
+				reconstructPath(paths[i], predecessor, a, b, shortestPathPoints[ i ]);
+			}
+			shortestPathList.add(this.shortestPath);
+			spStartPosition[i][0] = spx * this.imRef.getCalibration().pixelWidth;
+			spStartPosition[i][1] = spy * this.imRef.getCalibration().pixelHeight;
+			spStartPosition[i][2] = spz * this.imRef.getCalibration().pixelDepth;
 		}
-
-		// trace back the longest shortest path
-		reconstructPath(predecessorMatrix, a, b, edgeList, vertexList, shortestPathPoints);
-
-		// !important return maxPath;
-		return maxPath;
-
 	}
-	// end method warshallAlgorithm
+	// end method calculateLongestShortestPaths
 	
 	/**
-	 * Reconstruction and visualisation of the longest shortest path found by the APSP warshall algorithm
+	 * Reconstruction and visualisation of the longest shortest path of a tree
 	 *  
-	 * @param predecessorMatrix the Matrix which contains the predecessor of vertex b in the shortest path from a to b
-	 * @param startIndex the index of the row which contains the longest shortest path
-	 * @param endIndex the index of the column which contains the longest shortest path
-	 * @param edgeList the list of edges 
-	 * @param vertexList the list of vertices
+	 * @param paths shortest paths of the tree's graph
+	 * @param predecessor adjacency entry leading to each vertex on its shortest path from startIndex
+	 * @param startIndex the index of the vertex where the longest shortest path starts
+	 * @param endIndex the index of the vertex where the longest shortest path ends
 	 * @param shortestPathPoints contains points of the longest shortest path for each graph
 	 * @author Huub Hovens
 	 */
 	private void reconstructPath(
-			int[][] predecessorMatrix, 
+			ShortestPaths paths,
+			int[] predecessor, 
 			int startIndex, 
 			int endIndex, 
-			ArrayList<Edge> edgeList, 
-			ArrayList<Vertex> vertexList,
 			ArrayList<Point> shortestPathPoints)
 	{
 		// We know the first and last vertex of the longest shortest path, namely a and b
-		// using the predecessor matrix we can now determine the path that is taken from a to b
+		// using the predecessors we can now determine the path that is taken from a to b
 		// remember a and b are indices and not the actual vertices.
 
 		int b = endIndex;
 		int a = startIndex;
+		// points already in the list, for constant time look up
+		HashSet<Point> added = new HashSet<Point>(shortestPathPoints);
 
 		while (b != a)
 		{
-			Vertex predecessor = vertexList.get(predecessorMatrix[a][b]);
-			Vertex endvertex = vertexList.get(b);
-			ArrayList< Edge > sp_edgeslist = new ArrayList< Edge >();
-			Double lengthtest = Double.POSITIVE_INFINITY;
-			Edge shortestedge = null;
-
-			// search all edges for a combination of the two vertices
-			for (Edge edge : edgeList)
-			{
-
-				if ((edge.getV1()==predecessor && edge.getV2()==endvertex) || (edge.getV1()==endvertex && edge.getV2()==predecessor))
-				{
-					// sometimes there are multiple edges between two vertices so add them to a list
-					// for a second test
-					sp_edgeslist.add(edge);					
-				}			
-
-			}
-			// the second test
-			// this test looks which edge has the shortest length in sp_edgeslist
-			for (Edge edge : sp_edgeslist)
-			{
-				if (edge.getLength() < lengthtest)
-				{
-					shortestedge = edge;
-					lengthtest = edge.getLength();
-				}
-
-			}
+			// the search followed the shortest of any edges between the two vertices
+			final Edge shortestedge = paths.getEdge(predecessor[b]);
 			
 			// add slab points of the shortest edge to the list of points
 			for (Point p : shortestedge.getSlabs())
 			{
 				shortestPathPoints.add(p);
+				added.add(p);
 				setPixel(this.shortPathImage, p.x, p.y, p.z, SHORTEST_PATH);
 			}
 
 			// add vertex points too
 			for (Point p : shortestedge.getV1().getPoints())
 			{
-				if( ! shortestPathPoints.contains( p ))
+				if( added.add( p ))
 				{
 					shortestPathPoints.add(p);
 					//setPixel(this.shortPathImage, p.x, p.y, p.z, SHORTEST_PATH);
@@ -3238,7 +3048,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 			
 			for (Point p : shortestedge.getV2().getPoints())
 			{
-				if( ! shortestPathPoints.contains( p ))
+				if( added.add( p ))
 				{
 					shortestPathPoints.add(p);
 					//setPixel(this.shortPathImage, p.x, p.y, p.z, SHORTEST_PATH);
@@ -3247,7 +3057,7 @@ public class AnalyzeSkeleton implements PlugInFilter
 
 			// now make the index of the endvertex the index of the predecessor so that the path now goes from
 			// a to predecessor and repeat cycle
-			b = predecessorMatrix[a][b];
+			b = paths.getOrigin(predecessor[b]);
 		}
 		if (shortestPathPoints.size() != 0)
 		{
@@ -40,8 +40,10 @@ public class Edge
 	private Vertex v1 = null;
 	/** vertex at the other extreme of the edge */
 	private Vertex v2 = null;
-	/** list of slab voxels belonging to this edge */
+	/** list of slab voxels belonging to this edge, created on demand */
 	private ArrayList <Point> slabs = null;
+	/** packed slab voxels belonging to this edge */
+	private VoxelList slabVoxels = null;
 	/** length of the edge */
 	private double length = 0;
 
@@ -63,6 +65,25 @@ public class Edge
 		this.slabs = slabs;
 		this.length = length;
 	}
+	
+	/**
+	 * Create an edge of specific vertices and packed list of slab voxels.
+	 * @param v1 first vertex
+	 * @param v2 second vertex
+	 * @param slabVoxels list of slab voxels
+	 * @param length calibrated edge length
+	 */
+	public Edge(
+			Vertex v1, 
+			Vertex v2, 
+			VoxelList slabVoxels,
+			double length)
+	{
+		this.v1 = v1;
+		this.v2 = v2;
+		this.slabVoxels = slabVoxels;
+		this.length = length;
+	}
 	/**
 	 * Get first vertex. 
 	 * @return first vertex of the edge
@@ -80,13 +101,32 @@ public class Edge
 		return this.v2;
 	}
 	/**
-	 * Get list of slab voxels belonging to the edge.
+	 * Get list of slab voxels belonging to the edge. If the edge was created
+	 * from a packed list, the points are created on the first call.
 	 * @return list of slab voxels
 	 */
 	public ArrayList<Point> getSlabs()
 	{
+		if(this.slabs == null && this.slabVoxels != null)
+			this.slabs = this.slabVoxels.toPoints();
 		return this.slabs;
 	}
+	
+	/**
+	 * Get packed list of slab voxels belonging to the edge, without creating
+	 * points.
+	 * @return packed list of slab voxels
+	 */
+	public VoxelList getSlabVoxels()
+	{
+		if(this.slabVoxels == null)
+		{
+			this.slabVoxels = new VoxelList(this.slabs.size());
+			for(final Point p : this.slabs)
+				this.slabVoxels.add(p);
+		}
+		return this.slabVoxels;
+	}
 	/**
 	 * Set DFS type (BACK or TREE)
 	 * @param type DFS classification (BACK or TREE)
@@ -68,6 +68,15 @@ public class Point
 		final Point p = (Point) o;
 		return p.x == this.x && p.y == this.y && p.z == this.z;
 	}	
+
+	/**
+	 * Override hashCode method to be consistent with equals.
+	 * @return hash of the coordinates
+	 */
+	public int hashCode()
+	{
+		return (this.z * 31 + this.y) * 31 + this.x;
+	}
 	
 
 }// end class point
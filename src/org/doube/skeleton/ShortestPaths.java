@@ -0,0 +1,272 @@
+package org.doube.skeleton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import ij.IJ;
+
+/**
+ * Sparse single-source shortest paths between the vertices of a
+ * {@link Graph}. The edges are held as compact adjacency lists, so a search
+ * takes O(E log V) time and O(V) memory instead of the O(V<sup>3</sup>) time
+ * and O(V<sup>2</sup>) memory of an all-pairs matrix.
+ * <p>
+ * Searches do not change the object, so several threads may search the same
+ * graph at once as long as each has its own work arrays.
+ * </p>
+ */
+public class ShortestPaths
+{
+	/** vertices of the graph, in graph order */
+	private final ArrayList<Vertex> vertices;
+	/** adjacency entries of vertex v are first[v] to first[v + 1] - 1 */
+	private final int[] first;
+	/** vertex at the start of each adjacency entry */
+	private final int[] origin;
+	/** vertex at the end of each adjacency entry */
+	private final int[] target;
+	/** calibrated length of each adjacency entry */
+	private final double[] length;
+	/** edge of each adjacency entry */
+	private final Edge[] edge;
+	/** length of the last loop of vertices whose only edges are loops, else 0 */
+	private final double[] loopLength;
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Build the adjacency lists of a graph. Adjacency entries keep the order of
+	 * the graph's edge list and loops are left out.
+	 *
+	 * @param graph graph of a tree
+	 */
+	public ShortestPaths(Graph graph)
+	{
+		this.vertices = graph.getVertices();
+		final int nVertices = this.vertices.size();
+		HashMap<Vertex, Integer> index = new HashMap<Vertex, Integer>(
+				2 * nVertices);
+		for (int i = 0; i < nVertices; i++)
+			index.put(this.vertices.get(i), i);
+
+		ArrayList<Edge> edges = graph.getEdges();
+		final int nEdges = edges.size();
+		int[] v1 = new int[nEdges];
+		int[] v2 = new int[nEdges];
+		int[] degree = new int[nVertices];
+		boolean[] hasBranch = new boolean[nVertices];
+		this.loopLength = new double[nVertices];
+		for (int e = 0; e < nEdges; e++)
+		{
+			final Edge edge = edges.get(e);
+			v1[e] = -1;
+			final Integer i1 = index.get(edge.getV1());
+			if (i1 == null)
+			{
+				IJ.log("Vertex " + edge.getV1().getPoints().get(0)
+						+ " not found in the list of vertices!");
+				continue;
+			}
+			final Integer i2 = index.get(edge.getV2());
+			if (i2 == null)
+			{
+				IJ.log("Vertex " + edge.getV2().getPoints().get(0)
+						+ " not found in the list of vertices!");
+				continue;
+			}
+			v1[e] = i1;
+			v2[e] = i2;
+			if (v1[e] == v2[e])
+			{
+				this.loopLength[v1[e]] = edge.getLength();
+				continue;
+			}
+			hasBranch[v1[e]] = true;
+			hasBranch[v2[e]] = true;
+			degree[v1[e]]++;
+			degree[v2[e]]++;
+		}
+		// a vertex reached through any other edge is 0 from itself
+		for (int v = 0; v < nVertices; v++)
+			if (hasBranch[v])
+				this.loopLength[v] = 0;
+
+		this.first = new int[nVertices + 1];
+		for (int v = 0; v < nVertices; v++)
+			this.first[v + 1] = this.first[v] + degree[v];
+		final int nEntries = this.first[nVertices];
+		this.origin = new int[nEntries];
+		this.target = new int[nEntries];
+		this.length = new double[nEntries];
+		this.edge = new Edge[nEntries];
+		int[] next = Arrays.copyOf(this.first, nVertices);
+		for (int e = 0; e < nEdges; e++)
+		{
+			if (v1[e] < 0 || v1[e] == v2[e])
+				continue;
+			addEntry(next[v1[e]]++, v1[e], v2[e], edges.get(e));
+			addEntry(next[v2[e]]++, v2[e], v1[e], edges.get(e));
+		}
+	}
+
+	private void addEntry(int entry, int from, int to, Edge e)
+	{
+		this.origin[entry] = from;
+		this.target[entry] = to;
+		this.length[entry] = e.getLength();
+		this.edge[entry] = e;
+	}
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Find the shortest paths from one vertex to all the others (Dijkstra's
+	 * algorithm). All work arrays must be at least as long as the number of
+	 * vertices.
+	 *
+	 * @param source index of the start vertex
+	 * @param distance set to the calibrated distance of each vertex from
+	 *            source, or infinity if it cannot be reached
+	 * @param predecessor set to the adjacency entry that leads to each vertex
+	 *            on its shortest path, or -1 for the source and unreached
+	 *            vertices
+	 * @param heap work array
+	 * @param heapIndex work array
+	 */
+	public void search(int source, double[] distance, int[] predecessor,
+			int[] heap, int[] heapIndex)
+	{
+		final int nVertices = this.vertices.size();
+		Arrays.fill(distance, 0, nVertices, Double.POSITIVE_INFINITY);
+		Arrays.fill(predecessor, 0, nVertices, -1);
+		Arrays.fill(heapIndex, 0, nVertices, -1);
+		distance[source] = 0;
+		heap[0] = source;
+		heapIndex[source] = 0;
+		int size = 1;
+		while (size > 0)
+		{
+			final int u = heap[0];
+			heapIndex[u] = -1;
+			size--;
+			if (size > 0)
+			{
+				heap[0] = heap[size];
+				heapIndex[heap[0]] = 0;
+				siftDown(0, size, distance, heap, heapIndex);
+			}
+			final double du = distance[u];
+			for (int entry = this.first[u]; entry < this.first[u + 1]; entry++)
+			{
+				final int v = this.target[entry];
+				final double dv = du + this.length[entry];
+				if (dv < distance[v])
+				{
+					distance[v] = dv;
+					predecessor[v] = entry;
+					int i = heapIndex[v];
+					if (i < 0)
+					{
+						i = size++;
+						heap[i] = v;
+						heapIndex[v] = i;
+					}
+					siftUp(i, distance, heap, heapIndex);
+				}
+			}
+		}
+	}
+
+	private static void siftUp(int i, double[] distance, int[] heap,
+			int[] heapIndex)
+	{
+		final int v = heap[i];
+		while (i > 0)
+		{
+			final int parent = (i - 1) >>> 1;
+			if (distance[heap[parent]] <= distance[v])
+				break;
+			heap[i] = heap[parent];
+			heapIndex[heap[i]] = i;
+			i = parent;
+		}
+		heap[i] = v;
+		heapIndex[v] = i;
+	}
+
+	private static void siftDown(int i, int size, double[] distance,
+			int[] heap, int[] heapIndex)
+	{
+		final int v = heap[i];
+		while (true)
+		{
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size
+					&& distance[heap[child + 1]] < distance[heap[child]])
+				child++;
+			if (distance[v] <= distance[heap[child]])
+				break;
+			heap[i] = heap[child];
+			heapIndex[heap[i]] = i;
+			i = child;
+		}
+		heap[i] = v;
+		heapIndex[v] = i;
+	}
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Get the distance of a vertex from itself: the loop length of a vertex
+	 * whose only edges are loops (e.g. a ring), otherwise 0.
+	 *
+	 * @param v vertex index
+	 * @return calibrated distance
+	 */
+	public double getLoopLength(int v)
+	{
+		return this.loopLength[v];
+	}
+
+	/**
+	 * @return number of vertices
+	 */
+	public int getNumberOfVertices()
+	{
+		return this.vertices.size();
+	}
+
+	/**
+	 * @param v vertex index
+	 * @return vertex
+	 */
+	public Vertex getVertex(int v)
+	{
+		return this.vertices.get(v);
+	}
+
+	/**
+	 * Get the vertex an adjacency entry starts from, i.e. the previous vertex
+	 * on a path
+	 *
+	 * @param entry adjacency entry, as set in predecessor by
+	 *            {@link #search(int, double[], int[], int[], int[])}
+	 * @return vertex index
+	 */
+	public int getOrigin(int entry)
+	{
+		return this.origin[entry];
+	}
+
+	/**
+	 * Get the edge of an adjacency entry. Of several edges between the same
+	 * two vertices, searches follow the first shortest.
+	 *
+	 * @param entry adjacency entry
+	 * @return edge
+	 */
+	public Edge getEdge(int entry)
+	{
+		return this.edge[entry];
+	}
+}// end class ShortestPaths
@@ -64,6 +64,8 @@ public class SkeletonResult
 	ArrayList <Point> listOfJunctionVoxels = null;
 	/** list of slab coordinates in the entire image */
 	ArrayList <Point> listOfSlabVoxels = null;
+	/** packed list of slab coordinates, turned into points when asked for */
+	VoxelList slabVoxels = null;
 	/** list of slab coordinates in the entire image */
 	ArrayList <Point> listOfStartingSlabVoxels = null;
 
@@ -152,6 +154,13 @@ public class SkeletonResult
 	public void setListOfSlabVoxels(ArrayList <Point> listOfSlabVoxels)
 	{
 		this.listOfSlabVoxels = listOfSlabVoxels;
+		this.slabVoxels = null;
+	}
+
+	public void setListOfSlabVoxels(VoxelList slabVoxels)
+	{
+		this.slabVoxels = slabVoxels;
+		this.listOfSlabVoxels = null;
 	}
 
 	public void setListOfStartingSlabVoxels(ArrayList <Point> listOfStartingSlabVoxels)
@@ -244,6 +253,8 @@ public class SkeletonResult
 
 	public ArrayList <Point> getListOfSlabVoxels()
 	{
+		if (listOfSlabVoxels == null && slabVoxels != null)
+			listOfSlabVoxels = slabVoxels.toPoints();
 		return listOfSlabVoxels;
 	}
 
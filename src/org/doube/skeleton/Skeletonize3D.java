@@ -19,14 +19,18 @@ package org.doube.skeleton;
  * 
  */
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.doube.util.ImageCheck;
+import org.doube.util.Multithreader;
 import org.doube.util.UsageReporter;
 
 import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
+import ij.gui.GenericDialog;
 import ij.plugin.PlugIn;
 
 /**
@@ -63,6 +67,46 @@ import ij.plugin.PlugIn;
  */
 public class Skeletonize3D implements PlugIn {
 
+	/**
+	 * Delete points one at a time, re-checking each candidate after the
+	 * deletions before it [Lee94]
+	 */
+	public static final int SEQUENTIAL = 0;
+
+	/**
+	 * Delete points in 8 subfields of voxel parity; points within a subfield
+	 * are never neighbors, so each subfield is thinned in parallel
+	 */
+	public static final int SUBFIELDS = 1;
+
+	/** Neighborhood type not yet worked out */
+	private static final int UNKNOWN = 0;
+
+	/** Removing the voxel would change the topology of its neighborhood */
+	private static final int NOT_SIMPLE = 1;
+
+	/** Simple but not Euler invariant */
+	private static final int SIMPLE = 2;
+
+	/** Simple and Euler invariant */
+	private static final int DELETABLE = 3;
+
+	/**
+	 * Bit of the 26-bit neighborhood that holds the N, S, E, W, U and B
+	 * neighbor, for border types 1 to 6
+	 */
+	private static final int[] BORDER_BITS = { 1 << 10, 1 << 15, 1 << 13,
+			1 << 12, 1 << 21, 1 << 4 };
+
+	/** Euler LUT [Lee94] */
+	private static final int[] EULER_LUT = new int[256];
+	static {
+		fillEulerLUT(EULER_LUT);
+	}
+
+	/** 2-bit neighborhood types, indexed by 26-bit neighborhood */
+	private static int[] neighborhoodTypes;
+
 	public void run(String run) {
 		if (!ImageCheck.checkEnvironment())
 			return;
@@ -77,7 +121,14 @@ public class Skeletonize3D implements PlugIn {
 			return;
 		}
 
-		ImagePlus skeleton = getSkeleton(imp);
+		GenericDialog gd = new GenericDialog("Skeletonise 3D");
+		gd.addCheckbox("Parallel_subfields", false);
+		gd.showDialog();
+		if (gd.wasCanceled())
+			return;
+		final int mode = gd.getNextBoolean() ? SUBFIELDS : SEQUENTIAL;
+
+		ImagePlus skeleton = getSkeleton(imp, mode);
 
 		skeleton.show();
 		if (imp.isInvertedLut() && !skeleton.isInvertedLut())
@@ -95,13 +146,29 @@ public class Skeletonize3D implements PlugIn {
 	 * @return skeletonised image
 	 */
 	public ImagePlus getSkeleton(ImagePlus imp) {
+		return getSkeleton(imp, SEQUENTIAL);
+	}
+
+	/**
+	 * Gets a medial axis skeleton from a binary imp using a topology-preserving
+	 * iterative algorithm
+	 * 
+	 * @param imp
+	 *            input image
+	 * @param mode
+	 *            SEQUENTIAL or SUBFIELDS. Both preserve topology but may
+	 *            delete different points, so the skeletons can differ in
+	 *            detail.
+	 * @return skeletonised image
+	 */
+	public ImagePlus getSkeleton(ImagePlus imp, int mode) {
 		ImageStack inputImage = imp.getStack();
 
 		// Prepare data
 		ImageStack outputImage = prepareData(inputImage);
 
 		// Compute Thinning
-		ImagePlus imp2 = computeThinImage(outputImage);
+		ImagePlus imp2 = computeThinImage(outputImage, mode);
 
 		ImageStack stack2 = imp2.getImageStack();
 
@@ -155,22 +222,67 @@ public class Skeletonize3D implements PlugIn {
 	/* -----------------------------------------------------------------------*/
 	/**
 	 * Post processing for computing thinning.
+	 * <p>
+	 * The image is packed into one bit per voxel, in rows of 64-bit words with
+	 * a one voxel border of background, so that a voxel's 26-neighbourhood
+	 * can be read as nine 3-bit windows without bounds checks and packed into
+	 * a single int. The border, end point, Euler invariance and simple point
+	 * tests are then bit tests on that int and lookups in a shared table.
+	 * </p>
+	 * <p>
+	 * Whether a voxel is a deletable border point depends only on its
+	 * neighborhood, so after the first pass each border type only re-examines
+	 * the 64-voxel words next to voxels deleted since that border type was
+	 * last scanned. Candidates are still collected in raster order and
+	 * re-checked in that order, so the result is the same as rescanning the
+	 * whole stack.
+	 * </p>
 	 * 
 	 * @param outputImage output image stack
 	 */
 	public ImagePlus computeThinImage(ImageStack outputImage) 
 	{
+		return computeThinImage(outputImage, SEQUENTIAL);
+	}
+
+	/* -----------------------------------------------------------------------*/
+	/**
+	 * Post processing for computing thinning, as
+	 * {@link #computeThinImage(ImageStack)} but with a choice of deletion
+	 * scheme.
+	 * 
+	 * @param outputImage output image stack
+	 * @param mode SEQUENTIAL or SUBFIELDS
+	 */
+	public ImagePlus computeThinImage(ImageStack outputImage, int mode) 
+	{
+		if (mode != SEQUENTIAL && mode != SUBFIELDS)
+			throw new IllegalArgumentException("Unknown thinning mode " + mode);
 		//IJ.write("Compute Thin Image Start");
 		IJ.showStatus("Computing thin image ...");
-		final int w = outputImage.getWidth();
 		final int h = outputImage.getHeight();
 		final int d = outputImage.getSize();
+		final int h2 = h + 2;
+
+		final long[][] rows = pack(outputImage);
+		final int[] cache = getCache();
 
-		ArrayList<int[]> simpleBorderPoints = new ArrayList<int[]>();
+		// words to re-examine for each border type, one bit per word of rows
+		final int markWords = (rows[0].length + 63) >>> 6;
+		final long[][] marks = new long[6][rows.length * markWords];
+		final boolean[][] markedSlices = new boolean[6][d + 2];
+		for (int r = 0; r < rows.length; r++)
+			for (int k = 0; k < rows[r].length; k++)
+				if (rows[r][k] != 0)
+					for (int b = 0; b < 6; b++)
+					{
+						marks[b][r * markWords + (k >>> 6)] |= 1L << k;
+						markedSlices[b][r / h2] = true;
+					}
 
-		// Prepare Euler LUT [Lee94]
-		int eulerLUT[] = new int[256]; 
-		fillEulerLUT( eulerLUT );
+		// simple border points as (row, x) pairs
+		int[] simpleBorderPoints = new int[1024];
+		int nPoints = 0;
 		
 		int iter = 1;
 		
@@ -182,75 +294,56 @@ public class Skeletonize3D implements PlugIn {
 			for( int currentBorder = 1; currentBorder <= 6; currentBorder++)
 			{
 				IJ.showStatus("Thinning iteration " + iter + " (" + currentBorder +"/6 borders) ...");
+				if( mode == SUBFIELDS )
+				{
+					if( !thinSubfields(rows, cache, marks, markedSlices, currentBorder - 1, h, d) )
+						unchangedBorders++;
+					continue;
+				}
+				final int borderBit = BORDER_BITS[currentBorder - 1];
+				final long[] borderMarks = marks[currentBorder - 1];
+				final boolean[] borderSlices = markedSlices[currentBorder - 1];
 				
-				// Loop through the image.				 
+				// Loop through the marked foreground points of the image.
 				for (int z = 0; z < d; z++)
 				{
+					if( !borderSlices[z + 1] )
+						continue;
+					borderSlices[z + 1] = false;
 					for (int y = 0; y < h; y++)
 					{
-						for (int x = 0; x < w; x++)						
+						final int r = (z + 1) * h2 + y + 1;
+						final long[] row = rows[r];
+						for (int m = r * markWords; m < (r + 1) * markWords; m++)
 						{
-							// check if point is foreground
-					        if ( getPixel(outputImage, x, y, z, w, h, d) != 1 )
-					        {
-					          continue;         // current point is already background 
-					        }
-					        // check 6-neighbors if point is a border point of type currentBorder
-					        boolean isBorderPoint = false;
-					        // North
-					        if( currentBorder == 1 && N(outputImage, x, y, z, w, h, d) <= 0 )
-					          isBorderPoint = true;
-					        // South
-					        if( currentBorder == 2 && S(outputImage, x, y, z, w, h, d) <= 0 )
-					          isBorderPoint = true;
-					        // East
-					        if( currentBorder == 3 && E(outputImage, x, y, z, w, h, d) <= 0 )
-					          isBorderPoint = true;
-					        // West
-					        if( currentBorder == 4 && W(outputImage, x, y, z, w, h, d) <= 0 )
-					          isBorderPoint = true;
-					        // Up
-					        if( currentBorder == 5 && U(outputImage, x, y, z, w, h, d) <= 0 )
-					          isBorderPoint = true;
-					        // Bottom
-					        if( currentBorder == 6 && B(outputImage, x, y, z, w, h, d) <= 0 )
-					          isBorderPoint = true;
-					        
-					        if( !isBorderPoint )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // check if point is the end of an arc
-					        int numberOfNeighbors = -1;   // -1 and not 0 because the center pixel will be counted as well
-					        byte[] neighbor = getNeighborhood(outputImage, x, y, z, w, h, d);
-					        for( int i = 0; i < 27; i++ ) // i =  0..26
-					        {					        	
-					          if( neighbor[i] == 1 )
-					            numberOfNeighbors++;
-					        }
-
-					        if( numberOfNeighbors == 1 )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        
-					        // Check if point is Euler invariant
-					        if( !isEulerInvariant( getNeighborhood(outputImage, x, y, z, w, h, d), eulerLUT ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // Check if point is simple (deletion does not change connectivity in the 3x3x3 neighborhood)
-					        if( !isSimplePoint(getNeighborhood(outputImage, x, y, z, w, h, d) ) )
-					        {
-					          continue;         // current point is not deletable
-					        }
-					        // add all simple border points to a list for sequential re-checking
-					        int[] index = new int[3];
-					        index[0] = x;
-					        index[1] = y;
-					        index[2] = z;
-					        simpleBorderPoints.add(index);
+							long marked = borderMarks[m];
+							borderMarks[m] = 0;
+							while (marked != 0)
+							{
+								final int k = ((m - r * markWords) << 6) + Long.numberOfTrailingZeros(marked);
+								marked &= marked - 1;
+								long word = row[k];
+								while (word != 0)
+								{
+									final int x = (k << 6) + Long.numberOfTrailingZeros(word) - 1;
+									word &= word - 1;
+									final int neighbors = getNeighborhood(rows, r, x, h2);
+									// check 6-neighbors if point is a border point of type currentBorder
+									if( (neighbors & borderBit) != 0 )
+										continue;         // current point is not deletable
+									// check if point is the end of an arc
+									if( Integer.bitCount(neighbors) == 1 )
+										continue;         // current point is not deletable
+									// Check if point is Euler invariant and simple
+									if( classify(neighbors, cache) != DELETABLE )
+										continue;         // current point is not deletable
+									// add all simple border points to a list for sequential re-checking
+									if( nPoints + 2 > simpleBorderPoints.length )
+										simpleBorderPoints = Arrays.copyOf(simpleBorderPoints, 2 * simpleBorderPoints.length);
+									simpleBorderPoints[nPoints++] = r;
+									simpleBorderPoints[nPoints++] = x;
+								}
+							}
 						}
 					}					
 					IJ.showProgress(z, d);				
@@ -259,43 +352,37 @@ public class Skeletonize3D implements PlugIn {
 				// sequential re-checking to preserve connectivity when
 				// deleting in a parallel way
 				boolean noChange = true;
-				int[] index = null;
-				for(int i = 0; 	i < simpleBorderPoints.size() ; i++)
+				for(int i = 0; i < nPoints; i += 2)
 				{
-					index = simpleBorderPoints.get(i);
+					final int r = simpleBorderPoints[i];
+					final int x = simpleBorderPoints[i + 1];
 					// 1. Set simple border point to 0
-					setPixel( outputImage, index[0], index[1], index[2], w, h, d, (byte) 0);
+					final long bit = 1L << (x + 1);
+					rows[r][(x + 1) >>> 6] &= ~bit;
 					
 					// 2. Check if neighborhood is still connected
-					if( !isSimplePoint( getNeighborhood(outputImage, index[0], index[1], index[2], w, h, d) ) )
+					if( classify(getNeighborhood(rows, r, x, h2), cache) == NOT_SIMPLE )
 					{
 						// we cannot delete current point, so reset
-						setPixel( outputImage, index[0], index[1], index[2], w, h, d, (byte) 1);
+						rows[r][(x + 1) >>> 6] |= bit;
 					}
 					else
 					{
 						noChange = false;
+						mark(marks, markedSlices, r, x, h2, markWords);
 					}
 				}
 				if( noChange )
 					unchangedBorders++;
 
-				//IJ.write("# simple border points = " + simpleBorderPoints.size());
-				/*
-				if(index != null)
-					IJ.write("# last point = [" + index[0] + ", " + index[1] + "," +  index[2]+ "]");
-				else 
-					IJ.write("# last point = [0, 0, 0]");
-					*/
-				simpleBorderPoints.clear();
-				//IJ.write("# simple border points = " + simpleBorderPoints.size() + "\n");
-							
+				nPoints = 0;
 			} // end currentBorder for loop
 			
 			// Progress bar iterations
 			iter++;
 		}
 
+		unpack(rows, outputImage);
 		//IJ.write("Compute Thin Image End");
 		IJ.showStatus("Computed thin image.");
 		ImagePlus impOut = new ImagePlus();
@@ -305,179 +392,284 @@ public class Skeletonize3D implements PlugIn {
 	
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Get neighborhood of a pixel in a 3D image (0 border conditions) 
-	 * 
-	 * @param image 3D image (ImageStack)
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding 27-pixels neighborhood (0 if out of image)
-	 */
-	private byte[] getNeighborhood(ImageStack image, int x, int y, int z, int w, int h, int d)
-	{
-		byte[] neighborhood = new byte[27];
-		
-		neighborhood[ 0] = getPixel(image, x-1, y-1, z-1, w, h, d);
-		neighborhood[ 1] = getPixel(image, x  , y-1, z-1, w, h, d);
-		neighborhood[ 2] = getPixel(image, x+1, y-1, z-1, w, h, d);
-		
-		neighborhood[ 3] = getPixel(image, x-1, y,   z-1, w, h, d);
-		neighborhood[ 4] = getPixel(image, x,   y,   z-1, w, h, d);
-		neighborhood[ 5] = getPixel(image, x+1, y,   z-1, w, h, d);
-		
-		neighborhood[ 6] = getPixel(image, x-1, y+1, z-1, w, h, d);
-		neighborhood[ 7] = getPixel(image, x,   y+1, z-1, w, h, d);
-		neighborhood[ 8] = getPixel(image, x+1, y+1, z-1, w, h, d);
-		
-		neighborhood[ 9] = getPixel(image, x-1, y-1, z  , w, h, d);
-		neighborhood[10] = getPixel(image, x,   y-1, z  , w, h, d);
-		neighborhood[11] = getPixel(image, x+1, y-1, z  , w, h, d);
-		
-		neighborhood[12] = getPixel(image, x-1, y,   z  , w, h, d);
-		neighborhood[13] = getPixel(image, x,   y,   z  , w, h, d);
-		neighborhood[14] = getPixel(image, x+1, y,   z  , w, h, d);
-		
-		neighborhood[15] = getPixel(image, x-1, y+1, z  , w, h, d);
-		neighborhood[16] = getPixel(image, x,   y+1, z  , w, h, d);
-		neighborhood[17] = getPixel(image, x+1, y+1, z  , w, h, d);
-		
-		neighborhood[18] = getPixel(image, x-1, y-1, z+1, w, h, d);
-		neighborhood[19] = getPixel(image, x,   y-1, z+1, w, h, d);
-		neighborhood[20] = getPixel(image, x+1, y-1, z+1, w, h, d);
-		
-		neighborhood[21] = getPixel(image, x-1, y,   z+1, w, h, d);
-		neighborhood[22] = getPixel(image, x,   y,   z+1, w, h, d);
-		neighborhood[23] = getPixel(image, x+1, y,   z+1, w, h, d);
-		
-		neighborhood[24] = getPixel(image, x-1, y+1, z+1, w, h, d);
-		neighborhood[25] = getPixel(image, x,   y+1, z+1, w, h, d);
-		neighborhood[26] = getPixel(image, x+1, y+1, z+1, w, h, d);
-		
-		return neighborhood;
-	} /* end getNeighborhood */
-	
-	/* -----------------------------------------------------------------------*/
-	/**
-	 * Get pixel in 3D image (0 border conditions) 
+	 * Delete the deletable border points of one type, one subfield of voxel
+	 * parity at a time. No two points of a subfield are 26-neighbors, so
+	 * deleting one does not change whether another is deletable, and all the
+	 * simple points of a subfield can be deleted together without
+	 * re-checking. Slices are shared out between threads so that no two
+	 * threads write to the same or neighboring slices at once. The result
+	 * does not depend on the number of threads.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding pixel (0 if out of image)
+	 * @param rows packed rows
+	 * @param cache table from {@link #getCache()}
+	 * @param marks words to re-examine, for each border type
+	 * @param markedSlices padded slices holding marks, for each border type
+	 * @param border border type, 0 to 5
+	 * @param h image height
+	 * @param d image depth
+	 * @return true if any point was deleted
 	 */
-	private byte getPixel(ImageStack image, int x, int y, int z, int w, int h, int d)
+	private boolean thinSubfields(final long[][] rows, final int[] cache,
+			final long[][] marks, final boolean[][] markedSlices,
+			final int border, final int h, final int d)
 	{
-		if(x >= 0 && x < w && y >= 0 && y < h && z >= 0 && z < d)
-			return ((byte[]) image.getPixels(z + 1))[x + y * w];
-		else return 0;
-	} /* end getPixel */
-	
+		final int h2 = h + 2;
+		final int markWords = marks[border].length / rows.length;
+		final int borderBit = BORDER_BITS[border];
+		// examine the words marked so far; marks made now are for next time
+		final long[] current = marks[border];
+		final boolean[] currentSlices = markedSlices[border];
+		marks[border] = new long[current.length];
+		markedSlices[border] = new boolean[currentSlices.length];
+		final AtomicBoolean changed = new AtomicBoolean(false);
+		for (int subfield = 0; subfield < 8; subfield++)
+		{
+			final int py = (subfield >> 1) & 1;
+			final int pz = subfield >> 2;
+			// voxel x is bit x + 1 of a padded row
+			final long parity = (subfield & 1) == 0 ? 0xAAAAAAAAAAAAAAAAL
+					: 0x5555555555555555L;
+			// a slice's deletions mark the slices either side, so
+			// concurrent slices must be at least 4 apart
+			for (int phase = 0; phase < 2; phase++)
+			{
+				final int z0 = pz + 2 * phase;
+				final AtomicInteger ai = new AtomicInteger(0);
+				Thread[] threads = Multithreader.newThreads();
+				for (int thread = 0; thread < threads.length; thread++)
+				{
+					threads[thread] = new Thread(new Runnable() {
+						public void run() {
+							for (int z = z0 + 4 * ai.getAndIncrement(); z < d; z = z0
+									+ 4 * ai.getAndIncrement())
+							{
+								if (!currentSlices[z + 1])
+									continue;
+								for (int y = py; y < h; y += 2)
+								{
+									final int r = (z + 1) * h2 + y + 1;
+									final long[] row = rows[r];
+									for (int m = r * markWords; m < (r + 1) * markWords; m++)
+									{
+										long marked = current[m];
+										while (marked != 0)
+										{
+											final int k = ((m - r * markWords) << 6)
+													+ Long.numberOfTrailingZeros(marked);
+											marked &= marked - 1;
+											long word = row[k] & parity;
+											while (word != 0)
+											{
+												final int x = (k << 6)
+														+ Long.numberOfTrailingZeros(word) - 1;
+												word &= word - 1;
+												final int neighbors = getNeighborhood(rows, r, x, h2);
+												if ((neighbors & borderBit) != 0
+														|| Integer.bitCount(neighbors) == 1
+														|| classify(neighbors, cache) != DELETABLE)
+													continue;
+												row[k] &= ~(1L << (x + 1));
+												mark(marks, markedSlices, r, x, h2, markWords);
+												changed.set(true);
+											}
+										}
+									}
+								}
+							}
+						}
+					});
+				}
+				Multithreader.startAndJoin(threads);
+			}
+		}
+		return changed.get();
+	} /* end thinSubfields */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Set pixel in 3D image 
+	 * Mark the words holding the 26-neighborhood of a deleted voxel for
+	 * re-examination by every border type
 	 * 
-	 * @param image 3D image
+	 * @param marks one bit per word of rows, for each border type
+	 * @param markedSlices padded slices holding marks, for each border type
+	 * @param r row of the deleted voxel
 	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @param value pixel value
+	 * @param h2 number of rows per slice, h + 2
+	 * @param markWords number of longs of marks per row
 	 */
-	private void setPixel(ImageStack image, int x, int y, int z, int w, int h, int d, byte value)
+	private static void mark(long[][] marks, boolean[][] markedSlices,
+			int r, int x, int h2, int markWords)
 	{
-		if(x >= 0 && x < w && y >= 0 && y < h && z >= 0 && z < d)
-			((byte[]) image.getPixels(z + 1))[x + y * w] = value;
-	} /* end getPixel */
-	
+		// voxels x - 1 .. x + 1 are bits x .. x + 2 of a padded row
+		final int k0 = x >>> 6;
+		final int k1 = (x + 2) >>> 6;
+		for (int dz = -h2; dz <= h2; dz += h2)
+		{
+			for (int dy = -1; dy <= 1; dy++)
+			{
+				final int rr = r + dz + dy;
+				for (int b = 0; b < 6; b++)
+				{
+					marks[b][rr * markWords + (k0 >>> 6)] |= 1L << k0;
+					marks[b][rr * markWords + (k1 >>> 6)] |= 1L << k1;
+					markedSlices[b][rr / h2] = true;
+				}
+			}
+		}
+	} /* end mark */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * North neighborhood (0 border conditions) 
+	 * Pack a 0/1 image into one bit per voxel. Row (y, z) of the image is
+	 * rows[(z + 1) * (h + 2) + y + 1] and voxel x is bit x + 1 of that row,
+	 * so every row and bit of the one voxel border is 0.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding north pixel
+	 * @param image 3D image with foreground 1
+	 * @return packed rows
 	 */
-	private byte N(ImageStack image, int x, int y, int z, int w, int h, int d)
+	private static long[][] pack(ImageStack image)
 	{
-		return getPixel(image, x, y-1, z, w, h, d);
-	} /* end N */
-	
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final int d = image.getSize();
+		final int words = (w + 2 + 63) >>> 6;
+		long[][] rows = new long[(d + 2) * (h + 2)][words];
+		for (int z = 0; z < d; z++)
+		{
+			final byte[] pixels = (byte[]) image.getPixels(z + 1);
+			for (int y = 0; y < h; y++)
+			{
+				final long[] row = rows[(z + 1) * (h + 2) + y + 1];
+				for (int x = 0; x < w; x++)
+					if (pixels[x + y * w] == 1)
+						row[(x + 1) >>> 6] |= 1L << (x + 1);
+			}
+		}
+		return rows;
+	} /* end pack */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * South neighborhood (0 border conditions) 
+	 * Write packed rows back into a 0/1 image
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding south pixel
+	 * @param rows packed rows, as made by {@link #pack(ImageStack)}
+	 * @param image 3D image to overwrite
 	 */
-	private byte S(ImageStack image, int x, int y, int z, int w, int h, int d)
+	private static void unpack(long[][] rows, ImageStack image)
 	{
-		return getPixel(image, x, y+1, z, w, h, d);
-	} /* end S */
-	
+		final int w = image.getWidth();
+		final int h = image.getHeight();
+		final int d = image.getSize();
+		for (int z = 0; z < d; z++)
+		{
+			final byte[] pixels = (byte[]) image.getPixels(z + 1);
+			for (int y = 0; y < h; y++)
+			{
+				final long[] row = rows[(z + 1) * (h + 2) + y + 1];
+				for (int x = 0; x < w; x++)
+					pixels[x + y * w] = (byte) ((row[(x + 1) >>> 6] >>> (x + 1)) & 1);
+			}
+		}
+	} /* end unpack */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * East neighborhood (0 border conditions) 
+	 * Get the 26-neighborhood of a voxel from packed rows. Bit i holds
+	 * neighbor i of {@link #unpackNeighborhood(int)} for i &lt; 13 and
+	 * neighbor i + 1 for i &ge; 13, i.e. the 27-voxel neighborhood in the
+	 * order x, then y, then z, without its centre.
 	 * 
-	 * @param image 3D image
+	 * @param rows packed rows
+	 * @param r row of the voxel
 	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding east pixel
+	 * @param h2 number of rows per slice, h + 2
+	 * @return 26-bit neighborhood
 	 */
-	private byte E(ImageStack image, int x, int y, int z, int w, int h, int d)
+	private static int getNeighborhood(long[][] rows, int r, int x, int h2)
 	{
-		return getPixel(image, x+1, y, z, w, h, d);
-	} /* end E */
-	
+		// voxels x - 1 .. x + 1 are bits x .. x + 2 of a padded row
+		final int word = x >>> 6;
+		final int shift = x & 63;
+		int n = 0;
+		int bit = 0;
+		for (int dz = -h2; dz <= h2; dz += h2)
+		{
+			for (int dy = -1; dy <= 1; dy++)
+			{
+				final long[] row = rows[r + dz + dy];
+				long window = row[word] >>> shift;
+				if (shift > 61)
+					window |= row[word + 1] << (64 - shift);
+				n |= ((int) window & 7) << bit;
+				bit += 3;
+			}
+		}
+		// drop the centre
+		return (n & 0x1FFF) | ((n >>> 14) << 13);
+	} /* end getNeighborhood */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * West neighborhood (0 border conditions) 
+	 * Expand a 26-bit neighborhood into the 27-voxel form used by
+	 * {@link #isEulerInvariant(byte[], int[])} and
+	 * {@link #isSimplePoint(byte[])}, with the centre set
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding west pixel
+	 * @param neighbors 26-bit neighborhood
+	 * @return neighbor pixels, 0 or 1
 	 */
-	private byte W(ImageStack image, int x, int y, int z, int w, int h, int d)
+	private static byte[] unpackNeighborhood(int neighbors)
 	{
-		return getPixel(image, x-1, y, z, w, h, d);
-	} /* end W */
-	
+		byte[] neighborhood = new byte[27];
+		for (int i = 0; i < 26; i++)
+			neighborhood[i < 13 ? i : i + 1] = (byte) ((neighbors >>> i) & 1);
+		neighborhood[13] = 1;
+		return neighborhood;
+	} /* end unpackNeighborhood */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Up neighborhood (0 border conditions) 
+	 * Find whether a voxel with the given neighborhood is simple, and if so
+	 * whether it is also Euler invariant. Each neighborhood is worked out
+	 * once and then kept in cache.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding up pixel
+	 * @param neighbors 26-bit neighborhood
+	 * @param cache table from {@link #getCache()}
+	 * @return NOT_SIMPLE, SIMPLE or DELETABLE
 	 */
-	private byte U(ImageStack image, int x, int y, int z, int w, int h, int d)
+	private int classify(int neighbors, int[] cache)
 	{
-		return getPixel(image, x, y, z+1, w, h, d);
-	} /* end U */
-	
+		final int word = neighbors >>> 4;
+		final int shift = (neighbors & 15) << 1;
+		int type = (cache[word] >>> shift) & 3;
+		if (type == UNKNOWN)
+		{
+			final byte[] neighborhood = unpackNeighborhood(neighbors);
+			if (!isSimplePoint(neighborhood))
+				type = NOT_SIMPLE;
+			else if (isEulerInvariant(neighborhood, EULER_LUT))
+				type = DELETABLE;
+			else
+				type = SIMPLE;
+			// a racing write can only lose an entry, which is recomputed
+			cache[word] |= type << shift;
+		}
+		return type;
+	} /* end classify */
+
 	/* -----------------------------------------------------------------------*/
 	/**
-	 * Bottom neighborhood (0 border conditions) 
+	 * Get the table of neighborhood types, 2 bits for each of the
+	 * 2<sup>26</sup> neighborhoods, allocating it on first use. The table is
+	 * shared by all thinning runs and fills as new neighborhoods are met.
 	 * 
-	 * @param image 3D image
-	 * @param x x- coordinate
-	 * @param y y- coordinate
-	 * @param z z- coordinate (in image stacks the indexes start at 1)
-	 * @return corresponding bottom pixel
+	 * @return neighborhood type table
 	 */
-	private byte B(ImageStack image, int x, int y, int z, int w, int h, int d)
+	private static synchronized int[] getCache()
 	{
-		return getPixel(image, x, y, z-1, w, h, d);
-	} /* end N */
+		if (neighborhoodTypes == null)
+			neighborhoodTypes = new int[1 << 22];
+		return neighborhoodTypes;
+	} /* end getCache */
 	
 	/* -----------------------------------------------------------------------*/
 	/**
@@ -485,7 +677,7 @@ public class Skeletonize3D implements PlugIn {
 	 * 
 	 * @param LUT Euler LUT
 	 */
-	private void fillEulerLUT(int[] LUT) 
+	private static void fillEulerLUT(int[] LUT) 
 	{
 		LUT[1]  =  1;
 		LUT[3]  = -1;
@@ -0,0 +1,169 @@
+package org.doube.skeleton;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Compact, growable list of voxel coordinates. Each voxel is packed into a
+ * single long (21 bits per coordinate), so that long lists of slab voxels do
+ * not need a {@link Point} object per voxel. Points are only created when
+ * asked for.
+ */
+public class VoxelList
+{
+	/** bits per coordinate */
+	private static final int BITS = 21;
+	/** mask of one coordinate */
+	private static final long MASK = (1L << BITS) - 1;
+
+	/** packed voxels */
+	private long[] voxels;
+	/** number of voxels in the list */
+	private int size = 0;
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Create an empty list.
+	 */
+	public VoxelList()
+	{
+		this(16);
+	}
+
+	/**
+	 * Create an empty list with room for a number of voxels.
+	 * @param capacity initial capacity
+	 */
+	public VoxelList(int capacity)
+	{
+		this.voxels = new long[Math.max(capacity, 1)];
+	}
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Pack voxel coordinates into a long, e.g. to use as a hash key.
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate
+	 * @return packed voxel
+	 */
+	public static long pack(int x, int y, int z)
+	{
+		return ((long) z << (2 * BITS)) | ((long) y << BITS) | x;
+	}
+
+	/**
+	 * Pack the coordinates of a point.
+	 * @param p point
+	 * @return packed voxel
+	 */
+	public static long pack(Point p)
+	{
+		return pack(p.x, p.y, p.z);
+	}
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Add a voxel to the end of the list.
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate
+	 */
+	public void add(int x, int y, int z)
+	{
+		if (this.size == this.voxels.length)
+			this.voxels = Arrays.copyOf(this.voxels, 2 * this.size);
+		this.voxels[this.size++] = pack(x, y, z);
+	}
+
+	/**
+	 * Add the coordinates of a point to the end of the list.
+	 * @param p point
+	 */
+	public void add(Point p)
+	{
+		add(p.x, p.y, p.z);
+	}
+
+	// --------------------------------------------------------------------------
+	/**
+	 * Remove the first occurrence of a voxel, keeping the order of the others.
+	 * @param x x- coordinate
+	 * @param y y- coordinate
+	 * @param z z- coordinate
+	 * @return true if the voxel was in the list
+	 */
+	public boolean remove(int x, int y, int z)
+	{
+		final long v = pack(x, y, z);
+		for (int i = 0; i < this.size; i++)
+		{
+			if (this.voxels[i] == v)
+			{
+				System.arraycopy(this.voxels, i + 1, this.voxels, i,
+						this.size - i - 1);
+				this.size--;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// --------------------------------------------------------------------------
+	/**
+	 * @return number of voxels in the list
+	 */
+	public int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * @param i index in the list
+	 * @return x- coordinate of voxel i
+	 */
+	public int getX(int i)
+	{
+		return (int) (this.voxels[i] & MASK);
+	}
+
+	/**
+	 * @param i index in the list
+	 * @return y- coordinate of voxel i
+	 */
+	public int getY(int i)
+	{
+		return (int) ((this.voxels[i] >>> BITS) & MASK);
+	}
+
+	/**
+	 * @param i index in the list
+	 * @return z- coordinate of voxel i
+	 */
+	public int getZ(int i)
+	{
+		return (int) (this.voxels[i] >>> (2 * BITS));
+	}
+
+	/**
+	 * Create a point from a voxel of the list.
+	 * @param i index in the list
+	 * @return new point with the coordinates of voxel i
+	 */
+	public Point get(int i)
+	{
+		return new Point(getX(i), getY(i), getZ(i));
+	}
+
+	/**
+	 * Create a list of points from the voxels of the list.
+	 * @return new list of points, in list order
+	 */
+	public ArrayList<Point> toPoints()
+	{
+		ArrayList<Point> points = new ArrayList<Point>(this.size);
+		for (int i = 0; i < this.size; i++)
+			points.add(get(i));
+		return points;
+	}
+}// end class VoxelList
@@ -0,0 +1,500 @@
+package org.doube.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ij.IJ;
+import ij.ImageStack;
+
+/**
+ * <p>
+ * Exact 3D Euclidean distance transform of a binary stack, giving for each
+ * foreground voxel the distance to the nearest background voxel.
+ * </p>
+ * <p>
+ * The transform is separable: a linear scan along each row finds the
+ * nearest background voxel in x, then the lower envelope of parabolas is
+ * taken along each column in y and along each line in z, all in linear
+ * time. Each pass is split into independent lines that are handed to
+ * threads through a shared counter, and the y and z passes gather blocks of
+ * adjacent columns at a time so that every read from a slice array is a
+ * short contiguous run rather than a single voxel.
+ * </p>
+ * <p>
+ * Voxel spacing may differ along each axis, in which case distances are in
+ * the same units as the spacing.
+ * </p>
+ *
+ * @see <p>
+ *      Felzenszwalb PF, Huttenlocher DP (2012) Distance transforms of sampled
+ *      functions. Theory of Computing 8: 415-428. <a
+ *      href="http://dx.doi.org/10.4086/toc.2012.v008a019"
+ *      >doi:10.4086/toc.2012.v008a019</a>
+ *      </p>
+ */
+public class DistanceTransform {
+
+	/** Number of adjacent columns gathered together in the y and z passes */
+	private static final int BLOCK = 16;
+
+	/**
+	 * Get the distance map of an 8-bit binary stack
+	 *
+	 * @param stack
+	 *            8-bit stack; voxels &ge; 128 are foreground
+	 * @param inverse
+	 *            true to measure the background instead of the foreground
+	 * @param pixelWidth
+	 *            voxel spacing in x
+	 * @param pixelHeight
+	 *            voxel spacing in y
+	 * @param pixelDepth
+	 *            voxel spacing in z
+	 * @return float[d][w*h] distances, 0 for background
+	 */
+	public static float[][] getDistanceMap(ImageStack stack, boolean inverse,
+			double pixelWidth, double pixelHeight, double pixelDepth) {
+		float[][] s = getSquaredDistanceMap(getData(stack), stack.getWidth(),
+				inverse, pixelWidth, pixelHeight, pixelDepth);
+		sqrt(s);
+		return s;
+	}
+
+	/**
+	 * Get the distance maps of the foreground and of the background of an
+	 * 8-bit binary stack in one traversal
+	 *
+	 * @param stack
+	 *            8-bit stack; voxels &ge; 128 are foreground
+	 * @param pixelWidth
+	 *            voxel spacing in x
+	 * @param pixelHeight
+	 *            voxel spacing in y
+	 * @param pixelDepth
+	 *            voxel spacing in z
+	 * @return float[2][d][w*h]: distances within the foreground and within
+	 *         the background
+	 */
+	public static float[][][] getDistanceMaps(ImageStack stack,
+			double pixelWidth, double pixelHeight, double pixelDepth) {
+		float[][][] maps = getSquaredDistanceMaps(getData(stack),
+				stack.getWidth(), pixelWidth, pixelHeight, pixelDepth);
+		for (float[][] s : maps)
+			sqrt(s);
+		return maps;
+	}
+
+	private static byte[][] getData(ImageStack stack) {
+		final int d = stack.getSize();
+		byte[][] data = new byte[d][];
+		for (int z = 0; z < d; z++)
+			data[z] = (byte[]) stack.getPixels(z + 1);
+		return data;
+	}
+
+	/**
+	 * Get the squared distance map of binary data. With unit spacing the
+	 * results are integers. Foreground voxels in a stack that contains no
+	 * background are given 3 (n + 1)<sup>2</sup> times the largest squared
+	 * spacing, where n is the longest stack dimension.
+	 *
+	 * @param data
+	 *            byte[d][w*h] voxels; values &ge; 128 are foreground
+	 * @param w
+	 *            stack width
+	 * @param inverse
+	 *            true to measure the background instead of the foreground
+	 * @param pixelWidth
+	 * @param pixelHeight
+	 * @param pixelDepth
+	 * @return float[d][w*h] squared distances, 0 for background
+	 */
+	public static float[][] getSquaredDistanceMap(byte[][] data, int w,
+			boolean inverse, double pixelWidth, double pixelHeight,
+			double pixelDepth) {
+		return getSquaredDistanceMaps(data, w, new boolean[] { inverse },
+				pixelWidth, pixelHeight, pixelDepth)[0];
+	}
+
+	/**
+	 * Get the squared distance maps of the foreground and of the background
+	 * together. Each row of data is read once for both maps, and each unit of
+	 * work in the y and z passes transforms the same lines of both maps.
+	 *
+	 * @param data
+	 *            byte[d][w*h] voxels; values &ge; 128 are foreground
+	 * @param w
+	 *            stack width
+	 * @param pixelWidth
+	 * @param pixelHeight
+	 * @param pixelDepth
+	 * @return float[2][d][w*h]: squared distances within the foreground and
+	 *         within the background, each 0 outside its phase
+	 * @see #getSquaredDistanceMap(byte[][], int, boolean, double, double,
+	 *      double)
+	 */
+	public static float[][][] getSquaredDistanceMaps(byte[][] data, int w,
+			double pixelWidth, double pixelHeight, double pixelDepth) {
+		return getSquaredDistanceMaps(data, w, new boolean[] { false, true },
+				pixelWidth, pixelHeight, pixelDepth);
+	}
+
+	private static float[][][] getSquaredDistanceMaps(final byte[][] data,
+			final int w, final boolean[] inverses, double pixelWidth,
+			double pixelHeight, double pixelDepth) {
+		final int d = data.length;
+		final int h = data[0].length / w;
+		final int n = Math.max(w, Math.max(h, d));
+		final int nMaps = inverses.length;
+		final double maxSpacing = Math.max(pixelWidth, Math.max(pixelHeight,
+				pixelDepth));
+		// rounded to float so that it compares equal once stored in s
+		final double noResult = (float) (3.0 * (n + 1) * (n + 1)
+				* maxSpacing * maxSpacing);
+		final double wx = pixelWidth * pixelWidth;
+		final double wy = pixelHeight * pixelHeight;
+		final double wz = pixelDepth * pixelDepth;
+
+		final float[][][] maps = new float[nMaps][d][w * h];
+
+		// x: distance to the nearest background voxel in the same row
+		IJ.showStatus("EDT transformation 1/3");
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < d; z = ai
+							.getAndIncrement()) {
+						IJ.showProgress(z, d);
+						final byte[] dz = data[z];
+						for (int y = 0; y < h; y++)
+							for (int m = 0; m < nMaps; m++)
+								transformRow(dz, maps[m][z], y * w, w,
+										inverses[m], wx, noResult);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		// y: lower envelope along columns, one slice per work unit
+		IJ.showStatus("EDT transformation 2/3");
+		ai.set(0);
+		threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final double[][] lines = new double[BLOCK][h];
+					final int[] v = new int[h];
+					final double[] boundaries = new double[h + 1];
+					final double[] out = new double[h];
+					for (int z = ai.getAndIncrement(); z < d; z = ai
+							.getAndIncrement()) {
+						IJ.showProgress(z, d);
+						for (int m = 0; m < nMaps; m++)
+							transformColumns(maps[m][z], w, h, wy, noResult,
+									lines, v, boundaries, out);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		// z: lower envelope through slices, one row of every slice per unit
+		IJ.showStatus("EDT transformation 3/3");
+		ai.set(0);
+		threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final double[][] lines = new double[BLOCK][d];
+					final int[] v = new int[d];
+					final double[] boundaries = new double[d + 1];
+					final double[] out = new double[d];
+					for (int y = ai.getAndIncrement(); y < h; y = ai
+							.getAndIncrement()) {
+						IJ.showProgress(y, h);
+						final int yw = y * w;
+						for (int m = 0; m < nMaps; m++) {
+							final float[][] s = maps[m];
+							for (int x0 = 0; x0 < w; x0 += BLOCK) {
+								final int b = Math.min(BLOCK, w - x0);
+								final int offset = yw + x0;
+								for (int z = 0; z < d; z++) {
+									final float[] sz = s[z];
+									for (int i = 0; i < b; i++)
+										lines[i][z] = sz[offset + i];
+								}
+								for (int i = 0; i < b; i++)
+									transformLine(lines[i], d, wz, noResult, v,
+											boundaries, out);
+								for (int z = 0; z < d; z++) {
+									final float[] sz = s[z];
+									for (int i = 0; i < b; i++)
+										sz[offset + i] = (float) lines[i][z];
+								}
+							}
+						}
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		IJ.showProgress(1.0);
+		return maps;
+	}
+
+	/**
+	 * Get the squared distance map of an 8-bit binary stack into a
+	 * {@link FloatVolume}, so that the map need not be held on the heap. Each
+	 * slice is transformed in x and y while it is in memory, then each row is
+	 * transformed in z by reading it from every slice of the volume. Results
+	 * are the same as {@link #getSquaredDistanceMap(byte[][], int, boolean,
+	 * double, double, double)}.
+	 *
+	 * @param stack
+	 *            8-bit stack; voxels &ge; 128 are foreground
+	 * @param inverse
+	 *            true to measure the background instead of the foreground
+	 * @param pixelWidth
+	 * @param pixelHeight
+	 * @param pixelDepth
+	 * @param map
+	 *            volume the same size as stack to hold the result
+	 * @return the largest squared distance in the map
+	 */
+	public static float getSquaredDistanceMap(ImageStack stack,
+			final boolean inverse, double pixelWidth, double pixelHeight,
+			double pixelDepth, final FloatVolume map) {
+		final byte[][] data = getData(stack);
+		final int w = stack.getWidth();
+		final int h = stack.getHeight();
+		final int d = data.length;
+		final int n = Math.max(w, Math.max(h, d));
+		final double maxSpacing = Math.max(pixelWidth, Math.max(pixelHeight,
+				pixelDepth));
+		final double noResult = (float) (3.0 * (n + 1) * (n + 1)
+				* maxSpacing * maxSpacing);
+		final double wx = pixelWidth * pixelWidth;
+		final double wy = pixelHeight * pixelHeight;
+		final double wz = pixelDepth * pixelDepth;
+
+		// x and y, one slice per work unit
+		IJ.showStatus("EDT transformation 1/2");
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final float[] sz = new float[w * h];
+					final double[][] lines = new double[BLOCK][h];
+					final int[] v = new int[h];
+					final double[] boundaries = new double[h + 1];
+					final double[] out = new double[h];
+					for (int z = ai.getAndIncrement(); z < d; z = ai
+							.getAndIncrement()) {
+						IJ.showProgress(z, d);
+						for (int y = 0; y < h; y++)
+							transformRow(data[z], sz, y * w, w, inverse, wx,
+									noResult);
+						transformColumns(sz, w, h, wy, noResult, lines, v,
+								boundaries, out);
+						map.put(z, 0, sz, 0, w * h);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+
+		// z: gather row y of every slice into a d x w plane and transform
+		// its columns
+		IJ.showStatus("EDT transformation 2/2");
+		ai.set(0);
+		final float[] maxima = new float[h];
+		threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					final float[] plane = new float[d * w];
+					final double[][] lines = new double[BLOCK][d];
+					final int[] v = new int[d];
+					final double[] boundaries = new double[d + 1];
+					final double[] out = new double[d];
+					for (int y = ai.getAndIncrement(); y < h; y = ai
+							.getAndIncrement()) {
+						IJ.showProgress(y, h);
+						for (int z = 0; z < d; z++)
+							map.get(z, y * w, plane, z * w, w);
+						transformColumns(plane, w, d, wz, noResult, lines, v,
+								boundaries, out);
+						float max = 0;
+						for (int z = 0; z < d; z++) {
+							map.put(z, y * w, plane, z * w, w);
+							for (int x = z * w; x < (z + 1) * w; x++)
+								if (plane[x] > max)
+									max = plane[x];
+						}
+						maxima[y] = max;
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+		IJ.showProgress(1.0);
+		float max = 0;
+		for (float m : maxima)
+			max = Math.max(max, m);
+		return max;
+	}
+
+	/**
+	 * Replace squared distances with distances
+	 *
+	 * @param s
+	 *            float[d][w*h] squared distances
+	 */
+	public static void sqrt(final float[][] s) {
+		final int d = s.length;
+		final AtomicInteger ai = new AtomicInteger(0);
+		Thread[] threads = Multithreader.newThreads();
+		for (int thread = 0; thread < threads.length; thread++) {
+			threads[thread] = new Thread(new Runnable() {
+				public void run() {
+					for (int z = ai.getAndIncrement(); z < d; z = ai
+							.getAndIncrement()) {
+						final float[] sz = s[z];
+						for (int i = 0; i < sz.length; i++)
+							sz[i] = (float) Math.sqrt(sz[i]);
+					}
+				}
+			});
+		}
+		Multithreader.startAndJoin(threads);
+	}
+
+	/**
+	 * Squared distance along a row to the nearest background voxel, by a
+	 * forward and a backward scan
+	 */
+	private static void transformRow(byte[] data, float[] s, int offset,
+			int w, boolean inverse, double weight, double noResult) {
+		int last = -1;
+		for (int x = 0; x < w; x++) {
+			if (((data[offset + x] & 255) < 128) ^ inverse) {
+				last = x;
+				s[offset + x] = 0;
+			} else if (last < 0) {
+				s[offset + x] = (float) noResult;
+			} else {
+				final double dx = x - last;
+				s[offset + x] = (float) (dx * dx * weight);
+			}
+		}
+		if (last < 0)
+			return;
+		last = -1;
+		for (int x = w - 1; x >= 0; x--) {
+			if (((data[offset + x] & 255) < 128) ^ inverse) {
+				last = x;
+			} else if (last >= 0) {
+				final double dx = last - x;
+				final double test = dx * dx * weight;
+				if (test < s[offset + x])
+					s[offset + x] = (float) test;
+			}
+		}
+	}
+
+	/**
+	 * Transform every column of a w &times; h plane, BLOCK columns at a time
+	 *
+	 * @param plane
+	 *            row-major values, replaced with the result
+	 * @param lines
+	 *            scratch, double[BLOCK][h]
+	 * @see #transformLine(double[], int, double, double, int[], double[],
+	 *      double[])
+	 */
+	private static void transformColumns(float[] plane, int w, int h,
+			double weight, double noResult, double[][] lines, int[] v,
+			double[] boundaries, double[] out) {
+		for (int x0 = 0; x0 < w; x0 += BLOCK) {
+			final int b = Math.min(BLOCK, w - x0);
+			for (int y = 0; y < h; y++) {
+				final int offset = y * w + x0;
+				for (int i = 0; i < b; i++)
+					lines[i][y] = plane[offset + i];
+			}
+			for (int i = 0; i < b; i++)
+				transformLine(lines[i], h, weight, noResult, v, boundaries, out);
+			for (int y = 0; y < h; y++) {
+				final int offset = y * w + x0;
+				for (int i = 0; i < b; i++)
+					plane[offset + i] = (float) lines[i][y];
+			}
+		}
+	}
+
+	/**
+	 * Replace f with its squared distance transform along one line: the
+	 * minimum over all v of f(v) + weight (q - v)<sup>2</sup>, found from the
+	 * lower envelope of the parabolas rooted at each finite sample. Samples
+	 * of noResult or more have no parabola and stay at noResult unless some
+	 * parabola passes below them.
+	 *
+	 * @param f
+	 *            values along the line, replaced with the result
+	 * @param n
+	 *            number of samples
+	 * @param weight
+	 *            squared sample spacing
+	 * @param noResult
+	 *            value meaning that no background has been found
+	 * @param v
+	 *            scratch, int[n]: roots of the envelope's parabolas
+	 * @param boundaries
+	 *            scratch, double[n + 1]: where each parabola starts
+	 * @param out
+	 *            scratch, double[n]
+	 */
+	private static void transformLine(double[] f, int n, double weight,
+			double noResult, int[] v, double[] boundaries, double[] out) {
+		int k = -1;
+		for (int q = 0; q < n; q++) {
+			if (f[q] >= noResult)
+				continue;
+			if (k < 0) {
+				k = 0;
+				v[0] = q;
+				boundaries[0] = Double.NEGATIVE_INFINITY;
+				boundaries[1] = Double.POSITIVE_INFINITY;
+				continue;
+			}
+			// drop parabolas that q's parabola hides
+			final double fq = f[q] + weight * q * q;
+			double start;
+			while (true) {
+				final int r = v[k];
+				start = (fq - (f[r] + weight * r * r))
+						/ (2 * weight * (q - r));
+				if (start > boundaries[k])
+					break;
+				k--;
+			}
+			k++;
+			v[k] = q;
+			boundaries[k] = start;
+			boundaries[k + 1] = Double.POSITIVE_INFINITY;
+		}
+		if (k < 0)
+			return;
+		int j = 0;
+		for (int q = 0; q < n; q++) {
+			while (boundaries[j + 1] < q)
+				j++;
+			final double dq = q - v[j];
+			out[q] = Math.min(noResult, f[v[j]] + weight * dq * dq);
+		}
+		System.arraycopy(out, 0, f, 0, n);
+	}
+}
@@ -0,0 +1,227 @@
+package org.doube.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+
+import ij.IJ;
+
+/**
+ * <p>
+ * 32-bit voxel volume for intermediate results that need not stay on the Java
+ * heap, such as a distance map that is read back a few slices at a time.
+ * </p>
+ * <p>
+ * Each slice is stored as one flat, row-major array of width &times; height
+ * floats, either on the heap ({@link #HEAP}) or in a memory-mapped scratch
+ * file ({@link #MAPPED}) so that the operating system pages it in and out as
+ * needed.
+ * </p>
+ */
+public class FloatVolume {
+
+	/** Slices are float[] on the Java heap */
+	public static final int HEAP = 0;
+
+	/** Slices are mapped from a temporary scratch file */
+	public static final int MAPPED = 1;
+
+	private final int width, height, depth;
+
+	/** Number of floats in a slice */
+	private final int sliceSize;
+
+	/** Storage mode, one of HEAP or MAPPED */
+	private final int storage;
+
+	private float[][] heapSlices;
+
+	private FloatBuffer[] bufferSlices;
+
+	/** Scratch file backing MAPPED storage */
+	private File scratchFile;
+
+	/** Channel to the scratch file */
+	private RandomAccessFile scratchAccess;
+
+	/**
+	 * Create a volume in which all voxels are 0
+	 *
+	 * @param width
+	 *            number of voxels in x
+	 * @param height
+	 *            number of voxels in y
+	 * @param depth
+	 *            number of voxels in z
+	 * @param storage
+	 *            one of HEAP or MAPPED
+	 * @throws IllegalArgumentException
+	 *             if dimensions are not positive or a slice would not fit
+	 *             into one array or mapping
+	 */
+	public FloatVolume(int width, int height, int depth, int storage) {
+		if (width < 1 || height < 1 || depth < 1)
+			throw new IllegalArgumentException("Invalid volume dimensions");
+		if (storage != HEAP && storage != MAPPED)
+			throw new IllegalArgumentException("Unknown storage mode "
+					+ storage);
+		final long size = (long) width * (long) height;
+		if (4 * size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException(
+					"Slice is too large for a single array");
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.sliceSize = (int) size;
+		this.storage = storage;
+		allocate();
+	}
+
+	private void allocate() {
+		switch (storage) {
+		case HEAP:
+			heapSlices = new float[depth][sliceSize];
+			break;
+		case MAPPED:
+			bufferSlices = new FloatBuffer[depth];
+			final long sliceBytes = 4L * sliceSize;
+			try {
+				scratchFile = File.createTempFile("bonej", ".vol");
+				scratchFile.deleteOnExit();
+				scratchAccess = new RandomAccessFile(scratchFile, "rw");
+				scratchAccess.setLength(sliceBytes * depth);
+				FileChannel channel = scratchAccess.getChannel();
+				for (int z = 0; z < depth; z++)
+					bufferSlices[z] = channel
+							.map(FileChannel.MapMode.READ_WRITE,
+									z * sliceBytes, sliceBytes)
+							.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			} catch (IOException e) {
+				IJ.handleException(e);
+				throw new RuntimeException(e);
+			}
+			break;
+		}
+	}
+
+	/**
+	 * Get a voxel
+	 *
+	 * @param z
+	 *            0-based slice number
+	 * @param i
+	 *            offset within the slice, y * width + x
+	 * @return voxel value
+	 */
+	public final float get(int z, int i) {
+		if (heapSlices != null)
+			return heapSlices[z][i];
+		return bufferSlices[z].get(i);
+	}
+
+	/**
+	 * Set a voxel
+	 *
+	 * @param z
+	 *            0-based slice number
+	 * @param i
+	 *            offset within the slice, y * width + x
+	 * @param value
+	 */
+	public final void set(int z, int i, float value) {
+		if (heapSlices != null)
+			heapSlices[z][i] = value;
+		else
+			bufferSlices[z].put(i, value);
+	}
+
+	/**
+	 * Copy a run of voxels out of slice z
+	 *
+	 * @param z
+	 *            0-based slice number
+	 * @param i
+	 *            offset within the slice of the first voxel
+	 * @param dest
+	 * @param offset
+	 *            position in dest to start writing
+	 * @param length
+	 *            number of voxels
+	 */
+	public void get(int z, int i, float[] dest, int offset, int length) {
+		if (heapSlices != null)
+			System.arraycopy(heapSlices[z], i, dest, offset, length);
+		else {
+			FloatBuffer slice = bufferSlices[z].duplicate();
+			slice.position(i);
+			slice.get(dest, offset, length);
+		}
+	}
+
+	/**
+	 * Copy a run of voxels into slice z
+	 *
+	 * @param z
+	 *            0-based slice number
+	 * @param i
+	 *            offset within the slice of the first voxel
+	 * @param src
+	 * @param offset
+	 *            position in src of the first voxel
+	 * @param length
+	 *            number of voxels
+	 */
+	public void put(int z, int i, float[] src, int offset, int length) {
+		if (heapSlices != null)
+			System.arraycopy(src, offset, heapSlices[z], i, length);
+		else {
+			FloatBuffer slice = bufferSlices[z].duplicate();
+			slice.position(i);
+			slice.put(src, offset, length);
+		}
+	}
+
+	/**
+	 * Release storage. For MAPPED volumes the scratch file is closed and
+	 * deleted. The volume must not be used afterwards.
+	 */
+	public void dispose() {
+		heapSlices = null;
+		bufferSlices = null;
+		if (scratchAccess != null) {
+			try {
+				scratchAccess.close();
+			} catch (IOException e) {
+				IJ.handleException(e);
+			}
+			scratchAccess = null;
+			scratchFile.delete();
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @return number of voxels in a slice
+	 */
+	public int getSliceSize() {
+		return sliceSize;
+	}
+
+	public int getStorage() {
+		return storage;
+	}
+}
@@ -0,0 +1,269 @@
+package org.doube.util;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Read-only volume of particle labels stored in the narrowest form that
+ * holds them, for use after labelling is finished and labels have been
+ * minimised.
+ * </p>
+ * <p>
+ * Labels up to 255 are stored as one byte per voxel ({@link #BYTE}), up to
+ * 65535 as two bytes ({@link #SHORT}), and larger labels as ints ({@link #INT}
+ * ). When most voxels are 0, each slice is instead stored as runs of equal
+ * non-zero labels ({@link #RUN_LENGTH}), which costs 12 bytes per run
+ * however long it is.
+ * </p>
+ */
+public class LabelVolume {
+
+	/** Unsigned byte per voxel */
+	public static final int BYTE = 0;
+
+	/** Unsigned short per voxel */
+	public static final int SHORT = 1;
+
+	/** int per voxel */
+	public static final int INT = 2;
+
+	/** Runs of non-zero labels, as (start, length, label) per run */
+	public static final int RUN_LENGTH = 3;
+
+	private final int width, height, depth;
+
+	private final int storage;
+
+	private byte[][] byteSlices;
+
+	private short[][] shortSlices;
+
+	private int[][] intSlices;
+
+	/** Run triples per slice, ordered by start */
+	private int[][] runSlices;
+
+	/**
+	 * Copy labels into compact storage, releasing each slice of the source
+	 * array as it is copied so that both copies are never held in full.
+	 *
+	 * @param labels
+	 *            int[d][w*h] labels, which are set to null on return
+	 * @param width
+	 *            stack width
+	 * @param storage
+	 *            one of BYTE, SHORT, INT or RUN_LENGTH
+	 * @throws IllegalArgumentException
+	 *             if a label is negative or too large for storage
+	 */
+	public LabelVolume(int[][] labels, int width, int storage) {
+		this.depth = labels.length;
+		this.width = width;
+		this.height = labels[0].length / width;
+		this.storage = storage;
+		final int wh = width * height;
+		switch (storage) {
+		case BYTE:
+			byteSlices = new byte[depth][];
+			break;
+		case SHORT:
+			shortSlices = new short[depth][];
+			break;
+		case INT:
+			intSlices = new int[depth][];
+			break;
+		case RUN_LENGTH:
+			runSlices = new int[depth][];
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown storage " + storage);
+		}
+		final int max = storage == BYTE ? 0xff : storage == SHORT ? 0xffff
+				: Integer.MAX_VALUE;
+		for (int z = 0; z < depth; z++) {
+			final int[] slice = labels[z];
+			for (int i = 0; i < wh; i++)
+				if (slice[i] < 0 || slice[i] > max)
+					throw new IllegalArgumentException("Label " + slice[i]
+							+ " does not fit storage " + storage);
+			switch (storage) {
+			case BYTE:
+				byte[] b = new byte[wh];
+				for (int i = 0; i < wh; i++)
+					b[i] = (byte) slice[i];
+				byteSlices[z] = b;
+				break;
+			case SHORT:
+				short[] s = new short[wh];
+				for (int i = 0; i < wh; i++)
+					s[i] = (short) slice[i];
+				shortSlices[z] = s;
+				break;
+			case INT:
+				intSlices[z] = slice;
+				break;
+			case RUN_LENGTH:
+				runSlices[z] = encode(slice);
+				break;
+			}
+			labels[z] = null;
+		}
+	}
+
+	/**
+	 * Choose the most compact storage for a label array and copy it, as for
+	 * {@link #LabelVolume(int[][], int, int)}
+	 *
+	 * @param labels
+	 *            int[d][w*h] labels, which are set to null on return
+	 * @param width
+	 *            stack width
+	 * @return compact label volume
+	 */
+	public static LabelVolume pack(int[][] labels, int width) {
+		return new LabelVolume(labels, width, getStorage(labels));
+	}
+
+	/**
+	 * Find the storage that holds labels in the least memory
+	 *
+	 * @param labels
+	 * @return one of BYTE, SHORT, INT or RUN_LENGTH
+	 */
+	public static int getStorage(int[][] labels) {
+		int max = 0;
+		long runs = 0;
+		long voxels = 0;
+		for (int z = 0; z < labels.length; z++) {
+			final int[] slice = labels[z];
+			int previous = 0;
+			for (int i = 0; i < slice.length; i++) {
+				final int label = slice[i];
+				if (label > max)
+					max = label;
+				if (label != 0 && label != previous)
+					runs++;
+				previous = label;
+			}
+			voxels += slice.length;
+		}
+		final int dense = max <= 0xff ? BYTE : max <= 0xffff ? SHORT : INT;
+		// BYTE, SHORT and INT are also log2 of their size in bytes
+		final long denseBytes = voxels << dense;
+		if (12 * runs < denseBytes)
+			return RUN_LENGTH;
+		return dense;
+	}
+
+	private static int[] encode(int[] slice) {
+		int nRuns = 0;
+		int previous = 0;
+		for (int i = 0; i < slice.length; i++) {
+			if (slice[i] != 0 && slice[i] != previous)
+				nRuns++;
+			previous = slice[i];
+		}
+		int[] runs = new int[3 * nRuns];
+		int r = -3;
+		previous = 0;
+		for (int i = 0; i < slice.length; i++) {
+			final int label = slice[i];
+			if (label == 0) {
+				previous = 0;
+				continue;
+			}
+			if (label != previous) {
+				r += 3;
+				runs[r] = i;
+				runs[r + 2] = label;
+			}
+			runs[r + 1]++;
+			previous = label;
+		}
+		return runs;
+	}
+
+	/**
+	 * Get a label
+	 *
+	 * @param z
+	 *            0-based slice number
+	 * @param i
+	 *            offset within the slice, y * width + x
+	 * @return label
+	 */
+	public int get(int z, int i) {
+		switch (storage) {
+		case BYTE:
+			return byteSlices[z][i] & 0xff;
+		case SHORT:
+			return shortSlices[z][i] & 0xffff;
+		case INT:
+			return intSlices[z][i];
+		default:
+			// binary search for the last run starting at or before i
+			final int[] runs = runSlices[z];
+			int lo = 0, hi = runs.length / 3 - 1;
+			while (lo <= hi) {
+				final int mid = (lo + hi) >>> 1;
+				final int start = runs[3 * mid];
+				if (start > i)
+					hi = mid - 1;
+				else if (i >= start + runs[3 * mid + 1])
+					lo = mid + 1;
+				else
+					return runs[3 * mid + 2];
+			}
+			return 0;
+		}
+	}
+
+	/**
+	 * Decode a whole slice
+	 *
+	 * @param z
+	 *            0-based slice number
+	 * @param dest
+	 *            int[width * height] to hold the labels
+	 */
+	public void getSlice(int z, int[] dest) {
+		final int wh = width * height;
+		switch (storage) {
+		case BYTE:
+			final byte[] b = byteSlices[z];
+			for (int i = 0; i < wh; i++)
+				dest[i] = b[i] & 0xff;
+			break;
+		case SHORT:
+			final short[] s = shortSlices[z];
+			for (int i = 0; i < wh; i++)
+				dest[i] = s[i] & 0xffff;
+			break;
+		case INT:
+			System.arraycopy(intSlices[z], 0, dest, 0, wh);
+			break;
+		default:
+			Arrays.fill(dest, 0, wh, 0);
+			final int[] runs = runSlices[z];
+			for (int r = 0; r < runs.length; r += 3)
+				Arrays.fill(dest, runs[r], runs[r] + runs[r + 1],
+						runs[r + 2]);
+		}
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public int getStorage() {
+		return storage;
+	}
+}
@@ -0,0 +1,113 @@
+package org.doube.util;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Summary statistics and a fixed-width histogram of positive values,
+ * gathered one value at a time so that they can be collected while an image
+ * is being written rather than in extra passes over it afterwards.
+ * </p>
+ * <p>
+ * Values of 0 or less are ignored, as in {@link StackStats#meanStdDev}. Sums
+ * are taken relative to the first value added, which keeps the variance
+ * accurate when the spread is small compared to the mean.
+ * </p>
+ */
+public class StreamingStats {
+
+	private final double binWidth;
+
+	private long count;
+
+	private double shift, sum, sumSquares, max;
+
+	private long[] histogram = new long[64];
+
+	/** Number of bins that contain a value */
+	private int nBins;
+
+	/**
+	 * @param binWidth
+	 *            width of each histogram bin; bin i holds values in [i *
+	 *            binWidth, (i + 1) * binWidth)
+	 * @throws IllegalArgumentException
+	 *             if binWidth is not positive
+	 */
+	public StreamingStats(double binWidth) {
+		if (!(binWidth > 0))
+			throw new IllegalArgumentException("Bin width must be positive");
+		this.binWidth = binWidth;
+	}
+
+	/**
+	 * Add a value; values &le; 0 are ignored
+	 *
+	 * @param value
+	 */
+	public void add(double value) {
+		if (!(value > 0))
+			return;
+		if (count == 0)
+			shift = value;
+		count++;
+		final double residual = value - shift;
+		sum += residual;
+		sumSquares += residual * residual;
+		if (value > max)
+			max = value;
+		final int bin = (int) (value / binWidth);
+		if (bin >= histogram.length)
+			histogram = Arrays.copyOf(histogram,
+					Math.max(bin + 1, 2 * histogram.length));
+		histogram[bin]++;
+		if (bin >= nBins)
+			nBins = bin + 1;
+	}
+
+	/**
+	 * @return number of positive values added
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	/**
+	 * @return mean of positive values, or NaN if there are none
+	 */
+	public double getMean() {
+		return shift + sum / count;
+	}
+
+	/**
+	 * @return population standard deviation of positive values
+	 */
+	public double getStdDev() {
+		final double mean = sum / count;
+		return Math.sqrt(Math.max(0, sumSquares / count - mean * mean));
+	}
+
+	public double getMax() {
+		return max;
+	}
+
+	public double getBinWidth() {
+		return binWidth;
+	}
+
+	/**
+	 * @return counts per bin, up to the last bin that holds a value
+	 */
+	public long[] getHistogram() {
+		return Arrays.copyOf(histogram, nBins);
+	}
+
+	/**
+	 * @return mean, standard deviation and maximum as the 0th, 1st and 2nd
+	 *         elements, as returned by {@link StackStats#meanStdDev}
+	 */
+	public double[] meanStdDev() {
+		double[] stats = { getMean(), getStdDev(), max };
+		return stats;
+	}
+}
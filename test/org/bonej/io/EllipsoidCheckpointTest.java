@@ -0,0 +1,115 @@
+package org.bonej.io;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.doube.geometry.Ellipsoid;
+import org.junit.Test;
+
+public class EllipsoidCheckpointTest {
+
+	private static File tempFile() throws IOException {
+		File file = File.createTempFile("bonej", ".efcp");
+		file.delete();
+		file.deleteOnExit();
+		return file;
+	}
+
+	@Test
+	public void testSaveAndResume() throws IOException {
+		File file = tempFile();
+		final double t = Math.PI / 5;
+		Ellipsoid ellipsoid = new Ellipsoid(1.5, 2.5, 7, 10, 20, 30,
+				new double[][] { { Math.cos(t), -Math.sin(t), 0 },
+						{ Math.sin(t), Math.cos(t), 0 }, { 0, 0, 1 } });
+		EllipsoidCheckpoint checkpoint = new EllipsoidCheckpoint(file, 10, 42,
+				1000);
+		assertEquals(0, checkpoint.getNumberDone());
+		checkpoint.add(3, ellipsoid);
+		checkpoint.add(7, null);
+		// not due yet
+		assertFalse(file.exists());
+		checkpoint.save();
+		assertTrue(file.exists());
+		assertFalse(new File(file.getPath() + ".tmp").exists());
+
+		EllipsoidCheckpoint resumed = new EllipsoidCheckpoint(file, 10, 42,
+				1000);
+		assertEquals(2, resumed.getNumberDone());
+		assertTrue(resumed.isDone(3));
+		assertTrue(resumed.isDone(7));
+		assertFalse(resumed.isDone(0));
+		assertNull(resumed.get(7));
+		Ellipsoid e = resumed.get(3);
+		assertArrayEquals(ellipsoid.getCentre(), e.getCentre(), 0);
+		assertArrayEquals(ellipsoid.getRadii(), e.getRadii(), 0);
+		for (int i = 0; i < 3; i++)
+			assertArrayEquals(ellipsoid.getRotation()[i], e.getRotation()[i],
+					0);
+		assertEquals(ellipsoid.getVolume(), e.getVolume(), 0);
+		assertEquals(ellipsoid.contains(11, 21, 33), e.contains(11, 21, 33));
+
+		// saves again when the interval has passed
+		resumed = new EllipsoidCheckpoint(file, 10, 42, 0);
+		resumed.add(0, ellipsoid);
+		assertEquals(3, new EllipsoidCheckpoint(file, 10, 42, 0)
+				.getNumberDone());
+		file.delete();
+	}
+
+	@Test
+	public void testInterruptedSave() throws IOException {
+		File file = tempFile();
+		File temp = new File(file.getPath() + ".tmp");
+		Ellipsoid sphere = new Ellipsoid(2, 2, 2, 5, 5, 5, new double[][] {
+				{ 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } });
+		EllipsoidCheckpoint checkpoint = new EllipsoidCheckpoint(file, 10, 42,
+				1000);
+		checkpoint.add(4, sphere);
+		checkpoint.save();
+
+		// old checkpoint deleted, new one not yet renamed into place
+		assertTrue(file.renameTo(temp));
+		EllipsoidCheckpoint resumed = new EllipsoidCheckpoint(file, 10, 42,
+				1000);
+		assertEquals(1, resumed.getNumberDone());
+		assertArrayEquals(sphere.getCentre(), resumed.get(4).getCentre(), 0);
+		assertTrue(file.exists());
+		assertFalse(temp.exists());
+
+		// first save cut short, leaving an incomplete file and no checkpoint
+		FileOutputStream out = new FileOutputStream(temp);
+		FileInputStream in = new FileInputStream(file);
+		byte[] bytes = new byte[30];
+		assertEquals(30, in.read(bytes));
+		in.close();
+		out.write(bytes);
+		out.close();
+		assertTrue(file.delete());
+		resumed = new EllipsoidCheckpoint(file, 10, 42, 1000);
+		assertEquals(0, resumed.getNumberDone());
+		assertFalse(resumed.isDone(4));
+		temp.delete();
+	}
+
+	@Test
+	public void testWrongRun() throws IOException {
+		File file = tempFile();
+		new EllipsoidCheckpoint(file, 10, 42, 0).save();
+		try {
+			new EllipsoidCheckpoint(file, 10, 43, 0);
+			fail("key mismatch should not resume");
+		} catch (IOException e) {
+		}
+		try {
+			new EllipsoidCheckpoint(file, 11, 42, 0);
+			fail("point count mismatch should not resume");
+		} catch (IOException e) {
+		}
+		file.delete();
+	}
+}
@@ -2,7 +2,11 @@ package org.doube.bonej;
 
 import static org.junit.Assert.*;
 import ij.ImagePlus;
+import ij.ImageStack;
 import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+
+import java.util.Random;
 
 import org.doube.geometry.TestDataMaker;
 import org.junit.Test;
@@ -45,4 +49,79 @@ public class ConnectivityTest {
 			assertEquals(-4, sumEuler, 1e-12);
 		}
 	}
+
+	@Test
+	public void testGetSumEulerSweep() {
+		Random random = new Random(17);
+		final int w = 23, h = 17, d = 11;
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			byte[] pixels = new byte[w * h];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = (byte) random.nextInt(256);
+			stack.addSlice(new ByteProcessor(w, h, pixels, null));
+		}
+		ImagePlus imp = new ImagePlus("grey", stack);
+		double[] thresholds = { 128, 0, 255, 40.5, 200, 90, 254, 250 };
+		double[][] sweep = conn.getSumEulerSweep(imp, thresholds);
+		for (int t = 0; t < thresholds.length; t++) {
+			ImagePlus binary = threshold(imp, thresholds[t]);
+			final double sumEuler = conn.getSumEuler(binary);
+			assertEquals(sumEuler, sweep[0][t], 1e-12);
+			assertEquals(conn.getDeltaChi(binary, sumEuler), sweep[1][t],
+					1e-12);
+		}
+	}
+
+	@Test
+	public void testStream() {
+		Random random = new Random(5);
+		final int w = 19, h = 13;
+		ImagePlus[] images = { TestDataMaker.boxFrame(16, 24, 8),
+				TestDataMaker.crossedCircle(32), null, null };
+		for (int n = 2; n < images.length; n++) {
+			// random noise, and a single slice in the last case
+			final int d = n == 2 ? 9 : 1;
+			ImageStack stack = new ImageStack(w, h);
+			for (int z = 0; z < d; z++) {
+				byte[] pixels = new byte[w * h];
+				for (int i = 0; i < pixels.length; i++)
+					if (random.nextInt(3) == 0)
+						pixels[i] = (byte) 255;
+				stack.addSlice(new ByteProcessor(w, h, pixels, null));
+			}
+			images[n] = new ImagePlus("noise", stack);
+		}
+		for (ImagePlus imp : images) {
+			final int d = imp.getImageStackSize();
+			ImageStack stack = imp.getImageStack();
+			Connectivity streamed = new Connectivity();
+			streamed.startStream(imp.getWidth(), imp.getHeight(), d);
+			for (int z = 1; z <= d; z++)
+				streamed.addStreamSlice(((byte[]) stack.getPixels(z)).clone());
+			double[] result = streamed.endStream();
+			final double sumEuler = conn.getSumEuler(imp);
+			final double deltaChi = conn.getDeltaChi(imp, sumEuler);
+			assertEquals(sumEuler, result[0], 1e-12);
+			assertEquals(deltaChi, result[1], 1e-12);
+			if (imp == images[0])
+				assertEquals(5, conn.getConnectivity(result[1]), 1e-12);
+		}
+	}
+
+	/** Foreground is pixel value &gt; threshold, as in ThresholdMinConn */
+	private static ImagePlus threshold(ImagePlus imp, double threshold) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		ImageStack stack = new ImageStack(w, h);
+		for (int z = 1; z <= imp.getImageStackSize(); z++) {
+			byte[] grey = (byte[]) imp.getImageStack().getPixels(z);
+			byte[] pixels = new byte[w * h];
+			for (int i = 0; i < pixels.length; i++)
+				if ((grey[i] & 0xff) > threshold)
+					pixels[i] = (byte) 255;
+			stack.addSlice(new ByteProcessor(w, h, pixels, null));
+		}
+		return new ImagePlus("binary", stack);
+	}
 }
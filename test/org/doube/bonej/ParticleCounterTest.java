@@ -0,0 +1,274 @@
+package org.doube.bonej;
+
+import static org.junit.Assert.*;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.Prefs;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.doube.geometry.TestDataMaker;
+import org.doube.jama.EigenvalueDecomposition;
+import org.doube.jama.Matrix;
+import org.doube.util.LabelVolume;
+import org.junit.Test;
+
+public class ParticleCounterTest {
+
+	private ParticleCounter pc = new ParticleCounter();
+
+	@Test
+	public void testGetParticleStatistics() {
+		ImagePlus imp = TestDataMaker.binaryNoise(40, 30, 12, 0.9);
+		Calibration cal = imp.getCalibration();
+		cal.pixelWidth = 0.5;
+		cal.pixelHeight = 0.7;
+		cal.pixelDepth = 1.3;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		Object[] result = pc.getParticles(imp, 4, ParticleCounter.FORE);
+		int[][] labels = (int[][]) result[1];
+		final int nParticles = ((long[]) result[2]).length;
+		assertTrue(nParticles > 10);
+
+		Random random = new Random(42);
+		ImageStack valueStack = new ImageStack(w, h);
+		for (int z = 0; z < d; z++) {
+			float[] pixels = new float[w * h];
+			for (int i = 0; i < pixels.length; i++)
+				pixels[i] = 11 * random.nextFloat() - 1;
+			valueStack.addSlice(new FloatProcessor(w, h, pixels, null));
+		}
+		ImagePlus valueImp = new ImagePlus("values", valueStack);
+
+		long[] sizes = pc.getParticleSizes(labels);
+		double[][] centroids = getCentroids(imp, labels, sizes);
+		int[][] limits = getParticleLimits(imp, labels, nParticles);
+		EigenvalueDecomposition[] eigens = getEigens(imp, labels, centroids);
+		double[][] meanStdDev = getMeanStdDev(valueImp, labels, sizes, 0);
+
+		final int[][] threadsStripes = { { 1, 1 }, { 3, 1 }, { 3, 3 },
+				{ 4, 2 }, { 5, 3 } };
+		for (int[] ts : threadsStripes) {
+			int[][] copy = new int[d][];
+			for (int z = 0; z < d; z++)
+				copy[z] = labels[z].clone();
+			LabelVolume volume = LabelVolume.pack(copy, w);
+			Object[] stats = pc.getParticleStatistics(imp, volume,
+					nParticles, true, valueImp, 0, ts[0], ts[1]);
+			assertArrayEquals(sizes, (long[]) stats[0]);
+			double[][] c = (double[][]) stats[1];
+			int[][] l = (int[][]) stats[2];
+			EigenvalueDecomposition[] e = (EigenvalueDecomposition[]) stats[3];
+			double[][] m = (double[][]) stats[4];
+			for (int p = 1; p < nParticles; p++) {
+				assertArrayEquals(centroids[p], c[p], 1e-9);
+				assertArrayEquals(limits[p], l[p]);
+				assertArrayEquals(eigens[p].getRealEigenvalues(),
+						e[p].getRealEigenvalues(), 1e-6);
+				assertArrayEquals(meanStdDev[p], m[p], 1e-6);
+			}
+		}
+	}
+
+	@Test
+	public void testUnionFindPartition() {
+		final int threads = Prefs.getThreads();
+		Prefs.setThreads(4);
+		try {
+			final int slicesPerChunk = 3;
+			// sparse foreground, then sparse background, so each phase has
+			// many particles
+			Random random = new Random(7);
+			final int[] phases = { ParticleCounter.FORE, ParticleCounter.BACK };
+			final double[] ratios = { 0.85, 0.2 };
+			for (int n = 0; n < phases.length; n++) {
+				ImagePlus imp = TestDataMaker.binaryNoise(31, 27, 13,
+						ratios[n], random);
+				assertTrue(pc.getNChunks(imp, slicesPerChunk) > 1);
+				int[][] unionFind = label(imp, slicesPerChunk, phases[n],
+						ParticleCounter.UNION_FIND);
+				assertTrue(pc.getParticleSizes(unionFind).length > 10);
+				assertSamePartition(label(imp, slicesPerChunk, phases[n],
+						ParticleCounter.LINEAR), unionFind);
+			}
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+
+	private int[][] label(ImagePlus imp, int slicesPerChunk, int phase,
+			int method) {
+		pc.setLabelMethod(method);
+		return (int[][]) pc.getParticles(imp, slicesPerChunk, phase)[1];
+	}
+
+	/** Labels must map one to one, with 0 only where expected is 0 */
+	private static void assertSamePartition(int[][] expected, int[][] actual) {
+		int max = 0;
+		for (int[] slice : expected)
+			for (int label : slice)
+				max = Math.max(max, label);
+		int[] map = new int[max + 1];
+		Arrays.fill(map, -1);
+		int[] inverse = new int[max + 1];
+		Arrays.fill(inverse, -1);
+		for (int z = 0; z < expected.length; z++) {
+			for (int i = 0; i < expected[z].length; i++) {
+				final int e = expected[z][i];
+				final int a = actual[z][i];
+				assertEquals(e == 0, a == 0);
+				assertTrue(a <= max);
+				if (map[e] == -1 && inverse[a] == -1) {
+					map[e] = a;
+					inverse[a] = e;
+				}
+				assertEquals(map[e], a);
+				assertEquals(inverse[a], e);
+			}
+		}
+	}
+
+	/** Centroids as measured in a separate pass before fusing */
+	private static double[][] getCentroids(ImagePlus imp,
+			int[][] particleLabels, long[] particleSizes) {
+		final int nParticles = particleSizes.length;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		double[][] sums = new double[nParticles][3];
+		for (int z = 0; z < d; z++) {
+			for (int y = 0; y < h; y++) {
+				final int index = y * w;
+				for (int x = 0; x < w; x++) {
+					final int particle = particleLabels[z][index + x];
+					sums[particle][0] += x;
+					sums[particle][1] += y;
+					sums[particle][2] += z;
+				}
+			}
+		}
+		Calibration cal = imp.getCalibration();
+		double[][] centroids = new double[nParticles][3];
+		for (int p = 0; p < nParticles; p++) {
+			centroids[p][0] = cal.pixelWidth * sums[p][0] / particleSizes[p];
+			centroids[p][1] = cal.pixelHeight * sums[p][1] / particleSizes[p];
+			centroids[p][2] = cal.pixelDepth * sums[p][2] / particleSizes[p];
+		}
+		return centroids;
+	}
+
+	/** Limits as measured in a separate pass before fusing */
+	private static int[][] getParticleLimits(ImagePlus imp,
+			int[][] particleLabels, int nParticles) {
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		int[][] limits = new int[nParticles][6];
+		for (int i = 0; i < nParticles; i++) {
+			limits[i][0] = Integer.MAX_VALUE;
+			limits[i][2] = Integer.MAX_VALUE;
+			limits[i][4] = Integer.MAX_VALUE;
+		}
+		for (int z = 0; z < d; z++) {
+			for (int y = 0; y < h; y++) {
+				final int index = y * w;
+				for (int x = 0; x < w; x++) {
+					final int i = particleLabels[z][index + x];
+					limits[i][0] = Math.min(limits[i][0], x);
+					limits[i][1] = Math.max(limits[i][1], x);
+					limits[i][2] = Math.min(limits[i][2], y);
+					limits[i][3] = Math.max(limits[i][3], y);
+					limits[i][4] = Math.min(limits[i][4], z);
+					limits[i][5] = Math.max(limits[i][5], z);
+				}
+			}
+		}
+		return limits;
+	}
+
+	/** Inertia tensors from centred coordinates, before fusing */
+	private static EigenvalueDecomposition[] getEigens(ImagePlus imp,
+			int[][] particleLabels, double[][] centroids) {
+		Calibration cal = imp.getCalibration();
+		final double vW = cal.pixelWidth;
+		final double vH = cal.pixelHeight;
+		final double vD = cal.pixelDepth;
+		final double voxVhVd = (vH * vH + vD * vD) / 12;
+		final double voxVwVd = (vW * vW + vD * vD) / 12;
+		final double voxVhVw = (vH * vH + vW * vW) / 12;
+		final int w = imp.getWidth();
+		final int h = imp.getHeight();
+		final int d = imp.getImageStackSize();
+		final int nParticles = centroids.length;
+		double[][] momentTensors = new double[nParticles][6];
+		for (int z = 0; z < d; z++) {
+			final double zVd = z * vD;
+			for (int y = 0; y < h; y++) {
+				final double yVh = y * vH;
+				final int index = y * w;
+				for (int x = 0; x < w; x++) {
+					final int p = particleLabels[z][index + x];
+					if (p > 0) {
+						final double dx = x * vW - centroids[p][0];
+						final double dy = yVh - centroids[p][1];
+						final double dz = zVd - centroids[p][2];
+						momentTensors[p][0] += dy * dy + dz * dz + voxVhVd;
+						momentTensors[p][1] += dx * dx + dz * dz + voxVwVd;
+						momentTensors[p][2] += dy * dy + dx * dx + voxVhVw;
+						momentTensors[p][3] += dx * dy;
+						momentTensors[p][4] += dx * dz;
+						momentTensors[p][5] += dy * dz;
+					}
+				}
+			}
+		}
+		EigenvalueDecomposition[] eigens = new EigenvalueDecomposition[nParticles];
+		for (int p = 1; p < nParticles; p++) {
+			final double[] m = momentTensors[p];
+			double[][] inertiaTensor = { { m[0], -m[3], -m[4] },
+					{ -m[3], m[1], -m[5] }, { -m[4], -m[5], m[2] } };
+			eigens[p] = new EigenvalueDecomposition(new Matrix(inertiaTensor));
+		}
+		return eigens;
+	}
+
+	/** Two-pass mean, standard deviation and maximum, before fusing */
+	private static double[][] getMeanStdDev(ImagePlus imp,
+			int[][] particleLabels, long[] particleSizes, final int threshold) {
+		final int nParticles = particleSizes.length;
+		final int d = imp.getImageStackSize();
+		final int wh = imp.getWidth() * imp.getHeight();
+		ImageStack stack = imp.getImageStack();
+		double[] sums = new double[nParticles];
+		for (int z = 0; z < d; z++) {
+			float[] pixels = (float[]) stack.getPixels(z + 1);
+			for (int i = 0; i < wh; i++)
+				if (pixels[i] > threshold)
+					sums[particleLabels[z][i]] += pixels[i];
+		}
+		double[][] meanStdDev = new double[nParticles][3];
+		for (int p = 1; p < nParticles; p++)
+			meanStdDev[p][0] = sums[p] / particleSizes[p];
+		double[] sumSquares = new double[nParticles];
+		for (int z = 0; z < d; z++) {
+			float[] pixels = (float[]) stack.getPixels(z + 1);
+			for (int i = 0; i < wh; i++) {
+				final double value = pixels[i];
+				if (value > threshold) {
+					final int p = particleLabels[z][i];
+					final double residual = value - meanStdDev[p][0];
+					sumSquares[p] += residual * residual;
+					meanStdDev[p][2] = Math.max(meanStdDev[p][2], value);
+				}
+			}
+		}
+		for (int p = 1; p < nParticles; p++)
+			meanStdDev[p][1] = Math.sqrt(sumSquares[p] / particleSizes[p]);
+		return meanStdDev;
+	}
+}
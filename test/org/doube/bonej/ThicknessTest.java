@@ -3,8 +3,11 @@ package org.doube.bonej;
 import static org.junit.Assert.*;
 import ij.ImagePlus;
 
+import java.util.Arrays;
+
 import org.doube.geometry.TestDataMaker;
 import org.doube.util.StackStats;
+import org.doube.util.StreamingStats;
 import org.junit.Test;
 
 public class ThicknessTest {
@@ -50,4 +53,117 @@ public class ThicknessTest {
 		}
 	}
 
+	@Test
+	public void testGetLocalThicknesses() {
+		Thickness th = new Thickness();
+		ImagePlus imp = TestDataMaker.binaryNoise(40, 30, 20, 0.6);
+		for (boolean doMask : new boolean[] { false, true }) {
+			ImagePlus[] both = th.getLocalThicknesses(imp, doMask);
+			ImagePlus tbTh = th.getLocalThickness(imp, false, doMask);
+			ImagePlus tbSp = th.getLocalThickness(imp, true, doMask);
+			for (int z = 1; z <= imp.getStackSize(); z++) {
+				assertTrue(Arrays.equals((float[]) tbTh.getStack()
+						.getPixels(z), (float[]) both[0].getStack()
+						.getPixels(z)));
+				assertTrue(Arrays.equals((float[]) tbSp.getStack()
+						.getPixels(z), (float[]) both[1].getStack()
+						.getPixels(z)));
+			}
+		}
+	}
+
+	@Test
+	public void testGetLocalThicknessSlabs() {
+		Thickness th = new Thickness();
+		ImagePlus[] images = { TestDataMaker.binaryNoise(30, 25, 40, 0.7),
+				TestDataMaker.sphere(12) };
+		for (ImagePlus imp : images) {
+			for (boolean inv : new boolean[] { false, true }) {
+				ImagePlus expected = th.getLocalThickness(imp, inv, true);
+				for (int slabDepth : new int[] { 1, 3, 10 }) {
+					ImagePlus slabs = th.getLocalThickness(imp, inv, true,
+							slabDepth);
+					assertEquals(imp.getStackSize(), slabs.getStackSize());
+					for (int z = 1; z <= imp.getStackSize(); z++)
+						assertTrue(Arrays.equals((float[]) expected.getStack()
+								.getPixels(z), (float[]) slabs.getStack()
+								.getPixels(z)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testGetLocalThicknessStats() {
+		Thickness th = new Thickness();
+		ImagePlus imp = TestDataMaker.binaryNoise(30, 30, 20, 0.7);
+		for (int slabDepth : new int[] { 0, 5 }) {
+			StreamingStats stats = new StreamingStats(1);
+			ImagePlus map = th.getLocalThickness(imp, false, true, slabDepth,
+					stats, true);
+			double[] expected = StackStats.meanStdDev(map);
+			double[] streamed = stats.meanStdDev();
+			for (int i = 0; i < 3; i++)
+				assertEquals(expected[i], streamed[i], 1e-9);
+			StreamingStats unkept = new StreamingStats(1);
+			assertNull(th.getLocalThickness(imp, false, true, slabDepth,
+					unkept, false));
+			assertEquals(stats.getCount(), unkept.getCount());
+		}
+	}
+
+	@Test
+	public void testLocalThicknessPlateValues() {
+		Thickness th = new Thickness();
+		final int side = 40;
+		for (int t = 1; t <= 8; t++) {
+			ImagePlus plate = TestDataMaker.brick(side, side, t);
+			ImagePlus imp = th.getLocalThickness(plate, false, true);
+			final int w = imp.getWidth();
+			// pixelation rounds odd thicknesses up to the next even diameter
+			final float expected = t % 2 == 0 ? t : t + 1;
+			// away from the plate's edges every voxel has the same thickness
+			for (int z = 2; z <= t + 1; z++) {
+				float[] pixels = (float[]) imp.getStack().getPixels(z);
+				for (int y = t + 2; y < w - t - 2; y++)
+					for (int x = t + 2; x < w - t - 2; x++)
+						assertEquals(expected, pixels[y * w + x], 0);
+			}
+			// the masked background is 0
+			float[] padding = (float[]) imp.getStack().getPixels(1);
+			for (float value : padding)
+				assertEquals(0, value, 0);
+		}
+	}
+
+	@Test
+	public void testLocalThicknessSphereValues() {
+		Thickness th = new Thickness();
+		for (int r = 3; r <= 12; r++) {
+			ImagePlus sphere = TestDataMaker.sphere(r);
+			ImagePlus imp = th.getLocalThickness(sphere, false, true);
+			final int w = imp.getWidth();
+			float max = 0;
+			for (int z = 1; z <= imp.getStackSize(); z++)
+				for (float value : (float[]) imp.getStack().getPixels(z))
+					max = Math.max(max, value);
+			// the largest inscribed sphere is about the size of the sphere
+			assertEquals(2 * r, max, 2);
+			// and contains every voxel near the centre, which is at
+			// (r + 0.5, r + 0.5) in slice r + 2
+			final double cutOff = max / 2 - 1;
+			for (int z = 2; z <= 2 * r + 2; z++) {
+				float[] pixels = (float[]) imp.getStack().getPixels(z);
+				final double dz = z - 2 - r;
+				for (int y = 0; y < w; y++) {
+					final double dy = y - r - 0.5;
+					for (int x = 0; x < w; x++) {
+						final double dx = x - r - 0.5;
+						if (Math.sqrt(dx * dx + dy * dy + dz * dz) <= cutOff)
+							assertEquals(max, pixels[y * w + x], 1e-5);
+					}
+				}
+			}
+		}
+	}
 }
@@ -0,0 +1,28 @@
+package org.doube.geometry;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ConvexHullTest {
+
+	@Test
+	public void testHullVerticesOfCube() {
+		double[][] points = new double[27][3];
+		int i = 0;
+		for (int z = -1; z <= 1; z++)
+			for (int y = -1; y <= 1; y++)
+				for (int x = -1; x <= 1; x++) {
+					points[i][0] = x;
+					points[i][1] = y;
+					points[i][2] = z;
+					i++;
+				}
+		int[] hull = ConvexHull.getHullVertices(points);
+		for (int v : hull) {
+			for (int j = 0; j < 3; j++)
+				assertEquals(1, Math.abs(points[v][j]), 0);
+		}
+		assertEquals(8, hull.length);
+	}
+}
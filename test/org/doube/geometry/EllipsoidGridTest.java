@@ -0,0 +1,68 @@
+package org.doube.geometry;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class EllipsoidGridTest {
+
+	/** rotation of angle t about z followed by angle u about x */
+	private static double[][] rotation(double t, double u) {
+		final double ct = Math.cos(t), st = Math.sin(t);
+		final double cu = Math.cos(u), su = Math.sin(u);
+		return new double[][] { { ct, -st, 0 }, { cu * st, cu * ct, -su },
+				{ su * st, su * ct, cu } };
+	}
+
+	private static int bruteForce(Ellipsoid[] ellipsoids, double x, double y,
+			double z) {
+		for (int i = 0; i < ellipsoids.length; i++)
+			if (ellipsoids[i].contains(x, y, z))
+				return i;
+		return -1;
+	}
+
+	@Test
+	public void testFirstContaining() {
+		Random random = new Random(42);
+		final int n = 300;
+		Ellipsoid[] ellipsoids = new Ellipsoid[n];
+		for (int i = 0; i < n; i++) {
+			// a few big ellipsoids among many small ones
+			final double scale = i % 50 == 0 ? 30 : 4;
+			ellipsoids[i] = new Ellipsoid(1 + scale * random.nextDouble(),
+					1 + scale * random.nextDouble(),
+					1 + scale * random.nextDouble(), 100 * random.nextDouble(),
+					100 * random.nextDouble(), 50 * random.nextDouble(),
+					rotation(Math.PI * random.nextDouble(),
+							Math.PI * random.nextDouble()));
+		}
+		EllipsoidGrid grid = new EllipsoidGrid(ellipsoids);
+		int found = 0;
+		for (int z = -10; z < 60; z += 2) {
+			for (int y = -10; y < 110; y++) {
+				for (int x = -10; x < 110; x++) {
+					final int expected = bruteForce(ellipsoids, x, y, z);
+					assertEquals(expected, grid.firstContaining(x, y, z));
+					if (expected >= 0)
+						found++;
+				}
+			}
+		}
+		assertTrue(found > 0);
+	}
+
+	@Test
+	public void testEmpty() {
+		EllipsoidGrid grid = new EllipsoidGrid(new Ellipsoid[0]);
+		assertEquals(-1, grid.firstContaining(0, 0, 0));
+		Ellipsoid sphere = new Ellipsoid(2, 2, 2, 5, 5, 5, rotation(0, 0));
+		grid = new EllipsoidGrid(new Ellipsoid[] { sphere });
+		assertEquals(0, grid.firstContaining(5, 5, 5));
+		assertEquals(0, grid.firstContaining(7, 5, 5));
+		assertEquals(-1, grid.firstContaining(7.1, 5, 5));
+		assertEquals(-1, grid.firstContaining(50, 5, 5));
+	}
+}
@@ -212,6 +212,32 @@ public class EllipsoidTest {
 		}
 	}
 
+	@Test
+	public void testGetSurfacePointsArrays() {
+		final int n = 500;
+		double[][] vectors = Vectors.regularVectors(n);
+		double[][] copy = new double[n][];
+		for (int i = 0; i < n; i++)
+			copy[i] = vectors[i].clone();
+		double[][] expected = rotated.getSurfacePoints(vectors);
+		// the input vectors are left alone
+		for (int i = 0; i < n; i++)
+			assertArrayEquals(copy[i], vectors[i], 0);
+
+		double[][] u = Ellipsoid.getRegularVectors(n);
+		assertSame(u, Ellipsoid.getRegularVectors(n));
+		double[] x = new double[n];
+		double[] y = new double[n];
+		double[] z = new double[n];
+		rotated.getSurfacePoints(u[0], u[1], u[2], n, x, y, z);
+		for (int i = 0; i < n; i++) {
+			assertArrayEquals(vectors[i], new double[] { u[0][i], u[1][i],
+					u[2][i] }, 0);
+			assertArrayEquals(expected[i], new double[] { x[i], y[i], z[i] },
+					1E-9);
+		}
+	}
+
 	@Test
 	public void testDilate() {
 		unitSphere.dilate(1);
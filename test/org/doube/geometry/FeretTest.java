@@ -0,0 +1,73 @@
+package org.doube.geometry;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FeretTest {
+
+	private static double bruteForce(double[][] points) {
+		double max = 0;
+		for (int i = 0; i < points.length; i++)
+			for (int j = i + 1; j < points.length; j++)
+				max = Math.max(max, Trig.distance3D(points[i], points[j]));
+		return max;
+	}
+
+	private static double[][] randomPoints(Random random, int n) {
+		double[][] points = new double[n][3];
+		for (int i = 0; i < n; i++)
+			for (int j = 0; j < 3; j++)
+				points[i][j] = random.nextDouble() * (j + 1) * 10;
+		return points;
+	}
+
+	@Test
+	public void testGetDiameterExact() {
+		Random random = new Random(1);
+		for (int t = 0; t < 50; t++) {
+			double[][] points = randomPoints(random, 5 + random.nextInt(500));
+			assertEquals(bruteForce(points), Feret.getDiameter(points), 1e-9);
+		}
+	}
+
+	@Test
+	public void testGetDiameterGrid() {
+		// many coplanar and collinear points
+		double[][] points = new double[6 * 7 * 8][3];
+		int i = 0;
+		for (int z = 0; z < 8; z++)
+			for (int y = 0; y < 7; y++)
+				for (int x = 0; x < 6; x++) {
+					points[i][0] = x;
+					points[i][1] = y;
+					points[i][2] = z;
+					i++;
+				}
+		assertEquals(Math.sqrt(25 + 36 + 49), Feret.getDiameter(points), 1e-9);
+	}
+
+	@Test
+	public void testGetDiameterPlanar() {
+		double[][] points = { { 0, 0, 0 }, { 3, 0, 0 }, { 0, 4, 0 },
+				{ 1, 1, 0 } };
+		assertEquals(5, Feret.getDiameter(points), 1e-9);
+	}
+
+	@Test
+	public void testGetDiameterApproximate() {
+		Random random = new Random(2);
+		final double[] tolerances = { 0.1, 0.01, 0.001 };
+		for (double tolerance : tolerances) {
+			for (int t = 0; t < 20; t++) {
+				double[][] points = randomPoints(random, 200);
+				final double exact = bruteForce(points);
+				final double approx = Feret.getDiameter(points, tolerance);
+				assertTrue(approx <= exact + 1e-9);
+				assertTrue(approx >= exact / (1 + tolerance));
+			}
+		}
+	}
+}
@@ -8,6 +8,7 @@ import ij.process.ImageProcessor;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
 
 import javax.vecmath.Point3f;
 
@@ -191,13 +192,30 @@ public class TestDataMaker {
 
 	public static ImagePlus binaryNoise(int width, int height, int depth,
 			double ratio) {
+		return binaryNoise(width, height, depth, ratio, new Random());
+	}
+
+	/**
+	 * Create binary noise from a given random number generator, so that
+	 * seeding it makes the noise reproducible
+	 * 
+	 * @param width
+	 * @param height
+	 * @param depth
+	 * @param ratio
+	 *            fraction of voxels in the background
+	 * @param random
+	 *            source of random numbers
+	 * @return image of random foreground (255) voxels
+	 */
+	public static ImagePlus binaryNoise(int width, int height, int depth,
+			double ratio, Random random) {
 		final int npixels = width * height;
 		ImageStack stack = new ImageStack(width, height);
 		for (int i = 0; i < depth; i++) {
 			ByteProcessor bp = new ByteProcessor(width, height);
 			for (int index = 0; index < npixels; index ++){
-				double random = Math.random();
-				if (random > ratio)
+				if (random.nextDouble() > ratio)
 					bp.set(index, 255);
 			}
 			stack.addSlice(bp);
@@ -2,6 +2,8 @@ package org.doube.geometry;
 
 import static org.junit.Assert.*;
 
+import java.util.Random;
+
 import javax.vecmath.Point3f;
 
 //import org.doube.jama.Matrix;
@@ -66,6 +68,18 @@ public class VectorsTest {
 		}
 	}
 
+	@Test
+	public void testRandomVectorSeeded() {
+		Random random = new Random(13);
+		Random same = new Random(13);
+		for (int i = 0; i < 1000; i++) {
+			final double[] v = Vectors.randomVector(random);
+			assertEquals(1, Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]),
+					1e-9);
+			assertArrayEquals(v, Vectors.randomVector(same), 0);
+		}
+	}
+
 	@Test
 	public void testRegularVectors() {
 		final int n = 1000;
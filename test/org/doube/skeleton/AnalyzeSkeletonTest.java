@@ -0,0 +1,54 @@
+package org.doube.skeleton;
+
+import static org.junit.Assert.*;
+
+import org.doube.geometry.TestDataMaker;
+import org.junit.Test;
+
+import ij.ImagePlus;
+import ij.Prefs;
+
+public class AnalyzeSkeletonTest {
+
+	private static SkeletonResult analyse(ImagePlus skeleton, boolean parallel) {
+		final boolean parallelTrees = AnalyzeSkeleton.parallelTrees;
+		try {
+			AnalyzeSkeleton.parallelTrees = parallel;
+			AnalyzeSkeleton as = new AnalyzeSkeleton();
+			as.setup("", new ImagePlus("", skeleton.getImageStack().duplicate()));
+			return as.run(AnalyzeSkeleton.NONE, false, true, null, true, false);
+		} finally {
+			AnalyzeSkeleton.parallelTrees = parallelTrees;
+		}
+	}
+
+	@Test
+	public void testParallelTrees() {
+		final int threads = Prefs.getThreads();
+		try {
+			Prefs.setThreads(4);
+			ImagePlus skeleton = new Skeletonize3D().getSkeleton(TestDataMaker
+					.binaryNoise(60, 60, 30, 0.9));
+			SkeletonResult sequential = analyse(skeleton, false);
+			SkeletonResult parallel = analyse(skeleton, true);
+			final int nTrees = sequential.getNumOfTrees();
+			assertTrue(nTrees > 100);
+			assertEquals(nTrees, parallel.getNumOfTrees());
+			assertArrayEquals(sequential.getBranches(), parallel.getBranches());
+			assertArrayEquals(sequential.getJunctions(), parallel.getJunctions());
+			assertArrayEquals(sequential.getEndPoints(), parallel.getEndPoints());
+			assertArrayEquals(sequential.getSlabs(), parallel.getSlabs());
+			assertArrayEquals(sequential.getAverageBranchLength(),
+					parallel.getAverageBranchLength(), 0);
+			assertArrayEquals(sequential.getMaximumBranchLength(),
+					parallel.getMaximumBranchLength(), 0);
+			assertEquals(sequential.getShortestPathList(),
+					parallel.getShortestPathList());
+			for (int i = 0; i < nTrees; i++)
+				assertEquals(sequential.getGraph()[i].getEdges().size(),
+						parallel.getGraph()[i].getEdges().size());
+		} finally {
+			Prefs.setThreads(threads);
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package org.doube.skeleton;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class ShortestPathsTest {
+
+	private static Vertex vertex(int x) {
+		Vertex v = new Vertex();
+		v.addPoint(new Point(x, 0, 0));
+		return v;
+	}
+
+	private static Edge edge(Graph graph, Vertex v1, Vertex v2, double length) {
+		Edge e = new Edge(v1, v2, new ArrayList<Point>(), length);
+		graph.addEdge(e);
+		return e;
+	}
+
+	@Test
+	public void testSearch() {
+		Graph graph = new Graph();
+		Vertex[] v = { vertex(0), vertex(1), vertex(2), vertex(3) };
+		for (Vertex vertex : v)
+			graph.addVertex(vertex);
+		edge(graph, v[0], v[1], 1);
+		edge(graph, v[1], v[2], 2);
+		edge(graph, v[0], v[2], 5);
+		// longer and shorter parallel edges
+		edge(graph, v[2], v[3], 4);
+		Edge shortest = edge(graph, v[3], v[2], 1.5);
+		edge(graph, v[2], v[3], 1.5);
+
+		ShortestPaths paths = new ShortestPaths(graph);
+		final int n = paths.getNumberOfVertices();
+		double[] distance = new double[n];
+		int[] predecessor = new int[n];
+		paths.search(0, distance, predecessor, new int[n], new int[n]);
+		assertArrayEquals(new double[] { 0, 1, 3, 4.5 }, distance, 0);
+		assertEquals(-1, predecessor[0]);
+		assertSame(shortest, paths.getEdge(predecessor[3]));
+		assertEquals(2, paths.getOrigin(predecessor[3]));
+		assertEquals(1, paths.getOrigin(predecessor[2]));
+		assertEquals(0, paths.getLoopLength(0), 0);
+	}
+
+	@Test
+	public void testUnreachableAndRing() {
+		Graph graph = new Graph();
+		Vertex ring = vertex(0);
+		Vertex lone = vertex(1);
+		graph.addVertex(ring);
+		graph.addVertex(lone);
+		edge(graph, ring, ring, 7);
+		ShortestPaths paths = new ShortestPaths(graph);
+		double[] distance = new double[2];
+		int[] predecessor = new int[2];
+		paths.search(0, distance, predecessor, new int[2], new int[2]);
+		assertEquals(Double.POSITIVE_INFINITY, distance[1], 0);
+		assertEquals(7, paths.getLoopLength(0), 0);
+		assertEquals(0, paths.getLoopLength(1), 0);
+	}
+}
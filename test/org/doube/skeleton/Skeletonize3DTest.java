@@ -0,0 +1,104 @@
+package org.doube.skeleton;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.doube.bonej.Connectivity;
+import org.doube.bonej.ParticleCounter;
+import org.doube.geometry.TestDataMaker;
+import org.junit.Test;
+
+public class Skeletonize3DTest {
+
+	private static int countForeground(ImageStack stack) {
+		int count = 0;
+		for (int z = 1; z <= stack.getSize(); z++)
+			for (byte value : (byte[]) stack.getPixels(z))
+				if (value != 0)
+					count++;
+		return count;
+	}
+
+	private static int countParticles(ImagePlus imp) {
+		ParticleCounter pc = new ParticleCounter();
+		// the default MAPPED method can leave touching labels unjoined
+		pc.setLabelMethod(ParticleCounter.UNION_FIND);
+		int[][] labels = (int[][]) pc.getParticles(imp, 4,
+				ParticleCounter.FORE)[1];
+		int count = 0;
+		for (long size : pc.getParticleSizes(labels))
+			if (size > 0)
+				count++;
+		// label 0 is background
+		return count - 1;
+	}
+
+	@Test
+	public void testGetSkeletonIsStableSubset() {
+		// wider than one 64-bit word, so neighborhoods straddle words
+		ImagePlus imp = TestDataMaker.binaryNoise(130, 40, 20, 0.5);
+		ImageStack input = imp.getImageStack().duplicate();
+		ImageStack skeleton = new Skeletonize3D().getSkeleton(imp)
+				.getImageStack();
+		assertTrue(countForeground(skeleton) > 0);
+		for (int z = 1; z <= input.getSize(); z++) {
+			byte[] in = (byte[]) input.getPixels(z);
+			byte[] out = (byte[]) skeleton.getPixels(z);
+			for (int i = 0; i < in.length; i++)
+				if (out[i] != 0)
+					assertEquals((byte) 255, in[i]);
+		}
+		ImageStack again = new Skeletonize3D().getSkeleton(
+				new ImagePlus("skeleton", skeleton.duplicate())).getImageStack();
+		for (int z = 1; z <= skeleton.getSize(); z++)
+			assertArrayEquals((byte[]) skeleton.getPixels(z),
+					(byte[]) again.getPixels(z));
+	}
+
+	@Test
+	public void testGetSkeletonOfBoxFrame() {
+		ImagePlus imp = TestDataMaker.boxFrame(80, 60, 40);
+		ImageStack skeleton = new Skeletonize3D().getSkeleton(imp)
+				.getImageStack();
+		assertEquals(700, countForeground(skeleton));
+	}
+
+	@Test
+	public void testSubfieldsPreserveTopology() {
+		ImagePlus[] images = { TestDataMaker.binaryNoise(70, 50, 30, 0.6),
+				TestDataMaker.binaryNoise(70, 50, 30, 0.9),
+				TestDataMaker.boxFrame(80, 60, 40),
+				TestDataMaker.plates(64, 64, 40, 10),
+				TestDataMaker.sphere(20) };
+		Connectivity con = new Connectivity();
+		for (ImagePlus imp : images) {
+			ImagePlus subfields = new Skeletonize3D().getSkeleton(imp,
+					Skeletonize3D.SUBFIELDS);
+			assertEquals(con.getSumEuler(imp), con.getSumEuler(subfields), 0);
+			assertEquals(countParticles(imp), countParticles(subfields));
+			ImageStack again = new Skeletonize3D().getSkeleton(subfields,
+					Skeletonize3D.SUBFIELDS).getImageStack();
+			for (int z = 1; z <= again.getSize(); z++)
+				assertArrayEquals((byte[]) subfields.getImageStack()
+						.getPixels(z), (byte[]) again.getPixels(z));
+		}
+	}
+
+	@Test
+	public void testSubfieldsMatchSequentialTopology() {
+		ImagePlus[] images = { TestDataMaker.boxFrame(80, 60, 40),
+				TestDataMaker.crossedCircle(64), TestDataMaker.sphere(20) };
+		Connectivity con = new Connectivity();
+		for (ImagePlus imp : images) {
+			ImagePlus sequential = new Skeletonize3D().getSkeleton(imp,
+					Skeletonize3D.SEQUENTIAL);
+			ImagePlus subfields = new Skeletonize3D().getSkeleton(imp,
+					Skeletonize3D.SUBFIELDS);
+			assertEquals(con.getSumEuler(sequential),
+					con.getSumEuler(subfields), 0);
+			assertEquals(countParticles(sequential), countParticles(subfields));
+		}
+	}
+}
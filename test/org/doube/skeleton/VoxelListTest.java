@@ -0,0 +1,58 @@
+package org.doube.skeleton;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class VoxelListTest {
+
+	@Test
+	public void testAddAndGet() {
+		VoxelList list = new VoxelList(1);
+		list.add(0, 0, 0);
+		list.add(new Point(3, 2, 1));
+		list.add(2097151, 65536, 1048575);
+		assertEquals(3, list.size());
+		assertEquals(3, list.getX(1));
+		assertEquals(2, list.getY(1));
+		assertEquals(1, list.getZ(1));
+		assertEquals(new Point(2097151, 65536, 1048575), list.get(2));
+		ArrayList<Point> points = list.toPoints();
+		assertEquals(3, points.size());
+		assertEquals(new Point(0, 0, 0), points.get(0));
+		assertEquals(VoxelList.pack(new Point(3, 2, 1)), VoxelList.pack(3, 2, 1));
+	}
+
+	@Test
+	public void testRemove() {
+		VoxelList list = new VoxelList();
+		list.add(1, 1, 1);
+		list.add(2, 2, 2);
+		list.add(1, 1, 1);
+		list.add(3, 3, 3);
+		assertTrue(list.remove(1, 1, 1));
+		assertFalse(list.remove(4, 4, 4));
+		assertEquals(3, list.size());
+		assertEquals(new Point(2, 2, 2), list.get(0));
+		assertEquals(new Point(1, 1, 1), list.get(1));
+		assertEquals(new Point(3, 3, 3), list.get(2));
+	}
+
+	@Test
+	public void testEdgeSlabs() {
+		VoxelList slabs = new VoxelList();
+		slabs.add(5, 6, 7);
+		Edge edge = new Edge(new Vertex(), new Vertex(), slabs, 1);
+		assertSame(slabs, edge.getSlabVoxels());
+		assertEquals(1, edge.getSlabs().size());
+		assertEquals(new Point(5, 6, 7), edge.getSlabs().get(0));
+
+		ArrayList<Point> points = new ArrayList<Point>();
+		points.add(new Point(1, 2, 3));
+		edge = new Edge(new Vertex(), new Vertex(), points, 1);
+		assertSame(points, edge.getSlabs());
+		assertEquals(2, edge.getSlabVoxels().getY(0));
+	}
+}
@@ -0,0 +1,98 @@
+package org.doube.util;
+
+import static org.junit.Assert.*;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.doube.geometry.TestDataMaker;
+import org.junit.Test;
+
+public class DistanceTransformTest {
+
+	private static double bruteForce(ImageStack stack, int x, int y, int z,
+			double[] spacing) {
+		final int w = stack.getWidth();
+		if ((((byte[]) stack.getPixels(z + 1))[y * w + x] & 255) < 128)
+			return 0;
+		double min = Double.POSITIVE_INFINITY;
+		for (int k = 0; k < stack.getSize(); k++) {
+			final byte[] pixels = (byte[]) stack.getPixels(k + 1);
+			for (int j = 0; j < stack.getHeight(); j++) {
+				for (int i = 0; i < w; i++) {
+					if ((pixels[j * w + i] & 255) >= 128)
+						continue;
+					final double dx = (x - i) * spacing[0];
+					final double dy = (y - j) * spacing[1];
+					final double dz = (z - k) * spacing[2];
+					min = Math.min(min, dx * dx + dy * dy + dz * dz);
+				}
+			}
+		}
+		return Math.sqrt(min);
+	}
+
+	@Test
+	public void testGetDistanceMap() {
+		final double[][] spacings = { { 1, 1, 1 }, { 0.7, 1.3, 2.2 } };
+		ImagePlus imp = TestDataMaker.binaryNoise(15, 12, 9, 0.7);
+		ImageStack stack = imp.getImageStack();
+		for (double[] spacing : spacings) {
+			float[][] map = DistanceTransform.getDistanceMap(stack, false,
+					spacing[0], spacing[1], spacing[2]);
+			for (int z = 0; z < 9; z++)
+				for (int y = 0; y < 12; y++)
+					for (int x = 0; x < 15; x++)
+						assertEquals(bruteForce(stack, x, y, z, spacing),
+								map[z][y * 15 + x], 1e-5);
+		}
+	}
+
+	@Test
+	public void testSquaredDistancesOfBrick() {
+		// centre of a 5 x 5 x 5 brick in a 7 x 7 x 7 stack is 3 from the edge
+		ImagePlus imp = TestDataMaker.brick(5, 5, 5);
+		ImageStack stack = imp.getImageStack();
+		final int w = stack.getWidth();
+		byte[][] data = new byte[stack.getSize()][];
+		for (int z = 0; z < data.length; z++)
+			data[z] = (byte[]) stack.getPixels(z + 1);
+		float[][] map = DistanceTransform.getSquaredDistanceMap(data, w, false,
+				1, 1, 1);
+		float max = 0;
+		for (float[] slice : map)
+			for (float value : slice)
+				max = Math.max(max, value);
+		assertEquals(9, max, 0);
+	}
+
+	@Test
+	public void testSquaredDistanceMapIntoVolume() {
+		ImagePlus imp = TestDataMaker.binaryNoise(21, 18, 13, 0.6);
+		ImageStack stack = imp.getImageStack();
+		final int w = 21, wh = 21 * 18, d = 13;
+		byte[][] data = new byte[d][];
+		for (int z = 0; z < d; z++)
+			data[z] = (byte[]) stack.getPixels(z + 1);
+		for (boolean inverse : new boolean[] { false, true }) {
+			float[][] expected = DistanceTransform.getSquaredDistanceMap(data,
+					w, inverse, 1, 1, 1);
+			for (int storage : new int[] { FloatVolume.HEAP,
+					FloatVolume.MAPPED }) {
+				FloatVolume map = new FloatVolume(w, 18, d, storage);
+				float max = DistanceTransform.getSquaredDistanceMap(stack,
+						inverse, 1, 1, 1, map);
+				float expectedMax = 0;
+				float[] slice = new float[wh];
+				for (int z = 0; z < d; z++) {
+					map.get(z, 0, slice, 0, wh);
+					assertArrayEquals(expected[z], slice, 0);
+					for (float value : expected[z])
+						expectedMax = Math.max(expectedMax, value);
+				}
+				assertEquals(expectedMax, max, 0);
+				map.dispose();
+			}
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package org.doube.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LabelVolumeTest {
+
+	private static int[][] randomLabels(Random random, int w, int h, int d,
+			int maxLabel, double fill) {
+		int[][] labels = new int[d][w * h];
+		for (int z = 0; z < d; z++)
+			for (int i = 0; i < w * h; i++)
+				if (random.nextDouble() < fill)
+					labels[z][i] = 1 + random.nextInt(maxLabel);
+		return labels;
+	}
+
+	private static int[][] copy(int[][] labels) {
+		int[][] copy = new int[labels.length][];
+		for (int z = 0; z < labels.length; z++)
+			copy[z] = labels[z].clone();
+		return copy;
+	}
+
+	@Test
+	public void testGetMatchesLabels() {
+		Random random = new Random(1);
+		final int[] modes = { LabelVolume.BYTE, LabelVolume.SHORT,
+				LabelVolume.INT, LabelVolume.RUN_LENGTH };
+		final int w = 13, h = 7, d = 5;
+		int[][] expected = randomLabels(random, w, h, d, 255, 0.6);
+		for (int mode : modes) {
+			LabelVolume volume = new LabelVolume(copy(expected), w, mode);
+			int[] slice = new int[w * h];
+			for (int z = 0; z < d; z++) {
+				volume.getSlice(z, slice);
+				assertArrayEquals(expected[z], slice);
+				for (int i = 0; i < w * h; i++)
+					assertEquals(expected[z][i], volume.get(z, i));
+			}
+		}
+	}
+
+	@Test
+	public void testPack() {
+		Random random = new Random(2);
+		int[][] labels = randomLabels(random, 20, 20, 4, 200, 0.9);
+		assertEquals(LabelVolume.BYTE, LabelVolume.getStorage(labels));
+		labels = randomLabels(random, 20, 20, 4, 60000, 0.9);
+		assertEquals(LabelVolume.SHORT, LabelVolume.getStorage(labels));
+		labels = randomLabels(random, 20, 20, 4, 100000, 0.9);
+		assertEquals(LabelVolume.INT, LabelVolume.getStorage(labels));
+		labels = randomLabels(random, 20, 20, 4, 100000, 0.01);
+		assertEquals(LabelVolume.RUN_LENGTH, LabelVolume.getStorage(labels));
+		LabelVolume volume = LabelVolume.pack(labels, 20);
+		assertEquals(LabelVolume.RUN_LENGTH, volume.getStorage());
+		assertNull(labels[0]);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLabelTooLarge() {
+		int[][] labels = { { 0, 256 } };
+		new LabelVolume(labels, 2, LabelVolume.BYTE);
+	}
+}
@@ -0,0 +1,57 @@
+package org.doube.util;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class StreamingStatsTest {
+
+	@Test
+	public void testMatchesTwoPass() {
+		Random random = new Random(1);
+		double[] values = new double[1000];
+		StreamingStats stats = new StreamingStats(0.5);
+		double sum = 0, max = 0;
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			// a third are 0 and must be ignored
+			values[i] = random.nextInt(3) == 0 ? 0 : 1000 + 7 * random
+					.nextDouble();
+			stats.add(values[i]);
+			if (values[i] > 0) {
+				sum += values[i];
+				max = Math.max(max, values[i]);
+				n++;
+			}
+		}
+		final double mean = sum / n;
+		double sumSquares = 0;
+		for (double value : values)
+			if (value > 0)
+				sumSquares += (value - mean) * (value - mean);
+		assertEquals(n, stats.getCount());
+		assertEquals(mean, stats.getMean(), 1e-10);
+		assertEquals(Math.sqrt(sumSquares / n), stats.getStdDev(), 1e-10);
+		assertEquals(max, stats.getMax(), 0);
+	}
+
+	@Test
+	public void testHistogram() {
+		StreamingStats stats = new StreamingStats(2);
+		final double[] values = { 0.5, 1.9, 2, 5.5, 200, -3, 0 };
+		for (double value : values)
+			stats.add(value);
+		long[] histogram = stats.getHistogram();
+		assertEquals(101, histogram.length);
+		assertEquals(2, histogram[0]);
+		assertEquals(1, histogram[1]);
+		assertEquals(1, histogram[2]);
+		assertEquals(1, histogram[100]);
+		long total = 0;
+		for (long count : histogram)
+			total += count;
+		assertEquals(stats.getCount(), total);
+	}
+}